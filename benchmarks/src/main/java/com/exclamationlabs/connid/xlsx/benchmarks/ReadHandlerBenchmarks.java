@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx.benchmarks;
+
+import com.exclamationlabs.connid.xlsx.Configuration;
+import com.exclamationlabs.connid.xlsx.ReadHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Costs of a search as a connector instance sees it, from a new {@link ReadHandler} to the
+ * handed out connector objects. Run with {@code -prof gc} to see the allocation rates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ReadHandlerBenchmarks {
+
+    /**
+     * Accounts already merged into the snapshot cache, so only building connector objects is left.
+     */
+    @State(Scope.Benchmark)
+    public static class CachedState {
+
+        public Configuration configuration;
+
+        @Setup(Level.Trial)
+        public void load(WorkbookState workbook) {
+            this.configuration = workbook.configuration(workbook.sorted);
+            this.configuration.setSnapshotCacheProperty(true);
+            this.configuration.setSnapshotIdleTimeoutProperty(24 * 60 * 60);
+            ReadHandler readHandler = new ReadHandler(this.configuration.getFilePath());
+            try {
+                readHandler.preload(this.configuration);
+            } finally {
+                close(readHandler);
+            }
+        }
+    }
+
+    /**
+     * Accounts written to a columnar snapshot by a first search, so the searches measured map it
+     * instead of parsing the file.
+     */
+    @State(Scope.Benchmark)
+    public static class ColumnarState {
+
+        public Configuration configuration;
+
+        @Setup(Level.Trial)
+        public void build(WorkbookState workbook) throws IOException {
+            this.configuration = workbook.configuration(workbook.sorted);
+            this.configuration.setColumnarSnapshotProperty(true);
+            this.configuration.setWorkDirectoryProperty(Files.createTempDirectory("columnar").toString());
+            ReadHandler readHandler = new ReadHandler(this.configuration.getFilePath());
+            try {
+                readHandler.getAccounts(this.configuration, connectorObject -> true);
+            } finally {
+                close(readHandler);
+            }
+        }
+    }
+
+    /**
+     * Merges the way the file would be configured, as rows follow each other when the identifiers
+     * are sorted and in memory otherwise.
+     */
+    @Benchmark
+    public void merge(WorkbookState state, Blackhole blackhole) {
+        search(state.configuration(state.sorted), blackhole);
+    }
+
+    /**
+     * Merges in memory whether the identifiers are sorted or not, the difference to {@link #merge}
+     * on sorted files is the cost of the unsorted mode.
+     */
+    @Benchmark
+    public void mergeUnsortedMode(WorkbookState state, Blackhole blackhole) {
+        search(state.configuration(false), blackhole);
+    }
+
+    /**
+     * Time to the first result, the handler stops the search after it. Sorted files hand it out
+     * once the second identifier starts, unsorted files only after the whole file is merged.
+     */
+    @Benchmark
+    public void firstResult(WorkbookState state, Blackhole blackhole) {
+        Configuration configuration = state.configuration(state.sorted);
+        ReadHandler readHandler = new ReadHandler(configuration.getFilePath());
+        try {
+            readHandler.getAccounts(configuration, connectorObject -> {
+                blackhole.consume(connectorObject);
+                return false;
+            });
+        } finally {
+            close(readHandler);
+        }
+    }
+
+    @Benchmark
+    public void connectorObjects(CachedState state, Blackhole blackhole) {
+        search(state.configuration, blackhole);
+    }
+
+    @Benchmark
+    public void columnar(ColumnarState state, Blackhole blackhole) {
+        search(state.configuration, blackhole);
+    }
+
+    private static void search(Configuration configuration, Blackhole blackhole) {
+        ReadHandler readHandler = new ReadHandler(configuration.getFilePath());
+        try {
+            readHandler.getAccounts(configuration, connectorObject -> {
+                blackhole.consume(connectorObject);
+                return true;
+            });
+        } finally {
+            close(readHandler);
+        }
+    }
+
+    private static void close(ReadHandler readHandler) {
+        try {
+            readHandler.closeReader();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
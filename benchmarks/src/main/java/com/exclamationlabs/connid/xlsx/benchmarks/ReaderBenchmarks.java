@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx.benchmarks;
+
+import com.exclamationlabs.connid.xlsx.DelimitedReader;
+import com.exclamationlabs.connid.xlsx.XlsxStreamReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Costs of the streaming reader below the merge: opening the package, reading the heading and
+ * decoding every row, and of reading the same rows from CSV.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ReaderBenchmarks {
+
+    /**
+     * The rows of the generated workbook written as CSV next to it, optionally gzipped.
+     */
+    @State(Scope.Benchmark)
+    public static class DelimitedState {
+
+        @Param({"false", "true"})
+        public boolean gzip;
+
+        public File file;
+
+        @Setup(Level.Trial)
+        public void convert(WorkbookState state) throws IOException {
+            this.file = new File(state.file.getPath() + (this.gzip ? ".csv.gz" : ".csv"));
+            XlsxStreamReader reader = new XlsxStreamReader(state.file.getPath());
+            try (OutputStream file = new FileOutputStream(this.file);
+                 Writer out = new OutputStreamWriter(this.gzip ? new GZIPOutputStream(file) : file,
+                     StandardCharsets.UTF_8)) {
+                reader.readRows((rowNum, cells) -> {
+                    try {
+                        for (int col = 0; col < cells.length; col++) {
+                            String cell = cells[col] == null ? "" : cells[col];
+                            out.write(col > 0 ? "," : "");
+                            out.write(cell.indexOf(',') >= 0 || cell.indexOf('"') >= 0
+                                ? '"' + cell.replace("\"", "\"\"") + '"' : cell);
+                        }
+                        out.write('\n');
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return true;
+                });
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    @Benchmark
+    public void open(WorkbookState state) throws IOException {
+        XlsxStreamReader reader = new XlsxStreamReader(state.file.getPath());
+        reader.open();
+        reader.close();
+    }
+
+    @Benchmark
+    public String[] heading(WorkbookState state) throws IOException {
+        XlsxStreamReader reader = new XlsxStreamReader(state.file.getPath());
+        try {
+            return reader.readHeader();
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Benchmark
+    public void fullScan(WorkbookState state, Blackhole blackhole) throws IOException {
+        XlsxStreamReader reader = new XlsxStreamReader(state.file.getPath());
+        try {
+            reader.readRows((rowNum, cells) -> {
+                blackhole.consume(cells);
+                return true;
+            });
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Benchmark
+    public void delimitedScan(DelimitedState state, Blackhole blackhole) throws IOException {
+        DelimitedReader reader = new DelimitedReader(state.file.getPath(), null, ',');
+        reader.readRows((rowNum, cells) -> {
+            blackhole.consume(cells);
+            return true;
+        });
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx.benchmarks;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes an export file of generated accounts. The first column holds the identifier, the
+ * second the role column that is merged and may hold several values, the remaining columns
+ * text. A share of the rows repeats the identifier of an earlier row, with sorted identifiers
+ * the repeated rows follow the row they repeat, otherwise they are spread over the sheet. The
+ * same settings always produce the same file.
+ */
+public class SyntheticWorkbook {
+
+    public static final String IDENTIFIER = "id";
+
+    public static final String MERGE = "role";
+
+    private int rows = 10000;
+
+    private int columns = 10;
+
+    private double duplicateRatio = 0.1;
+
+    private double multivalueDensity = 0.1;
+
+    private boolean header = true;
+
+    private boolean sorted = true;
+
+    private String delimiter = ";";
+
+    public SyntheticWorkbook rows(int rows) {
+        this.rows = rows;
+        return this;
+    }
+
+    /**
+     * @param columns number of columns including the identifier and role columns, at least two
+     */
+    public SyntheticWorkbook columns(int columns) {
+        this.columns = Math.max(columns, 2);
+        return this;
+    }
+
+    /**
+     * @param duplicateRatio share of rows repeating the identifier of another row
+     */
+    public SyntheticWorkbook duplicateRatio(double duplicateRatio) {
+        this.duplicateRatio = duplicateRatio;
+        return this;
+    }
+
+    /**
+     * @param multivalueDensity share of role cells holding several delimited values
+     */
+    public SyntheticWorkbook multivalueDensity(double multivalueDensity) {
+        this.multivalueDensity = multivalueDensity;
+        return this;
+    }
+
+    public SyntheticWorkbook header(boolean header) {
+        this.header = header;
+        return this;
+    }
+
+    public SyntheticWorkbook sorted(boolean sorted) {
+        this.sorted = sorted;
+        return this;
+    }
+
+    public SyntheticWorkbook delimiter(String delimiter) {
+        this.delimiter = delimiter;
+        return this;
+    }
+
+    /**
+     * @return the name of the identifier column as the connector sees it
+     */
+    public String identifierColumn() {
+        return this.header ? IDENTIFIER : "col0";
+    }
+
+    /**
+     * @return the name of the role column as the connector sees it
+     */
+    public String mergeColumn() {
+        return this.header ? MERGE : "col1";
+    }
+
+    /**
+     * @return the name of the last column as the connector sees it, none of its values is ignored
+     */
+    public String lastColumn() {
+        return this.header && this.columns > 2 ? "attribute" + (this.columns - 1) : "col" + (this.columns - 1);
+    }
+
+    /**
+     * @return a file name telling the settings apart, so generated files can be reused
+     */
+    public String fileName() {
+        return String.format("synthetic-%d-%d-%s-%s-%s-%s.xlsx", this.rows, this.columns, this.duplicateRatio,
+            this.multivalueDensity, this.header ? "header" : "noheader", this.sorted ? "sorted" : "unsorted");
+    }
+
+    /**
+     * Writes the file unless it already exists.
+     *
+     * @return the file in the directory
+     */
+    public File generate(File directory) throws IOException {
+        File file = new File(directory, fileName());
+        if (!file.isFile()) {
+            directory.mkdirs();
+            File temp = File.createTempFile(file.getName(), ".tmp", directory);
+            try (OutputStream out = new FileOutputStream(temp)) {
+                write(out);
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Unable to write " + file);
+            }
+        }
+        return file;
+    }
+
+    public void write(OutputStream out) throws IOException {
+        Random random = new Random(42);
+        List<Integer> identifiers = identifiers(random);
+
+        SXSSFWorkbook workbook = new SXSSFWorkbook(1000);
+        try {
+            Sheet sheet = workbook.createSheet("Accounts");
+            int rowNum = 0;
+            if (this.header) {
+                Row row = sheet.createRow(rowNum++);
+                row.createCell(0).setCellValue(IDENTIFIER);
+                row.createCell(1).setCellValue(MERGE);
+                for (int column = 2; column < this.columns; column++) {
+                    row.createCell(column).setCellValue("attribute" + column);
+                }
+            }
+            for (int identifier : identifiers) {
+                Row row = sheet.createRow(rowNum++);
+                row.createCell(0).setCellValue(identifier);
+                row.createCell(1).setCellValue(role(random));
+                for (int column = 2; column < this.columns; column++) {
+                    row.createCell(column).setCellValue("value" + column + "-" + identifier);
+                }
+            }
+            workbook.write(out);
+        } finally {
+            workbook.dispose();
+            workbook.close();
+        }
+    }
+
+    /**
+     * @return the identifier of every row in sheet order
+     */
+    private List<Integer> identifiers(Random random) {
+        List<Integer> identifiers = new ArrayList<>(this.rows);
+        int next = 1;
+        for (int row = 0; row < this.rows; row++) {
+            identifiers.add(row > 0 && random.nextDouble() < this.duplicateRatio ? next - 1 : next++);
+        }
+        if (!this.sorted) {
+            Collections.shuffle(identifiers, random);
+        }
+        return identifiers;
+    }
+
+    private String role(Random random) {
+        if (random.nextDouble() >= this.multivalueDensity) {
+            return "role" + random.nextInt(20);
+        }
+        StringBuilder roles = new StringBuilder("role" + random.nextInt(20));
+        for (int count = 1 + random.nextInt(3); count > 0; count--) {
+            roles.append(this.delimiter).append("role").append(random.nextInt(20));
+        }
+        return roles.toString();
+    }
+
+    /**
+     * Writes a file into the given directory, for example to run the connector against it.
+     *
+     * Usage: directory [rows [columns [duplicateRatio [multivalueDensity [header [sorted]]]]]]
+     */
+    public static void main(String[] args) throws IOException {
+        SyntheticWorkbook workbook = new SyntheticWorkbook();
+        if (args.length > 1) {
+            workbook.rows(Integer.parseInt(args[1]));
+        }
+        if (args.length > 2) {
+            workbook.columns(Integer.parseInt(args[2]));
+        }
+        if (args.length > 3) {
+            workbook.duplicateRatio(Double.parseDouble(args[3]));
+        }
+        if (args.length > 4) {
+            workbook.multivalueDensity(Double.parseDouble(args[4]));
+        }
+        if (args.length > 5) {
+            workbook.header(Boolean.parseBoolean(args[5]));
+        }
+        if (args.length > 6) {
+            workbook.sorted(Boolean.parseBoolean(args[6]));
+        }
+        System.out.println(workbook.generate(new File(args.length > 0 ? args[0] : ".")));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx.benchmarks;
+
+import com.exclamationlabs.connid.xlsx.Configuration;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A generated export file shared by every iteration of a trial. Files are kept in the temporary
+ * directory and reused by later runs with the same parameters.
+ */
+@State(Scope.Benchmark)
+public class WorkbookState {
+
+    @Param({"10000", "100000"})
+    public int rows;
+
+    @Param("10")
+    public int columns;
+
+    @Param("0.1")
+    public double duplicateRatio;
+
+    @Param("0.1")
+    public double multivalueDensity;
+
+    @Param({"true", "false"})
+    public boolean header;
+
+    @Param({"true", "false"})
+    public boolean sorted;
+
+    public SyntheticWorkbook workbook;
+
+    public File file;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        this.workbook = new SyntheticWorkbook()
+            .rows(this.rows)
+            .columns(this.columns)
+            .duplicateRatio(this.duplicateRatio)
+            .multivalueDensity(this.multivalueDensity)
+            .header(this.header)
+            .sorted(this.sorted);
+        this.file = this.workbook.generate(new File(System.getProperty("java.io.tmpdir"), "connector-xlsx-benchmarks"));
+    }
+
+    /**
+     * @param uidSorted whether rows of the same identifier are merged as they follow each other
+     */
+    public Configuration configuration(boolean uidSorted) {
+        Configuration configuration = new Configuration();
+        configuration.setDirectoryPathProperty(this.file.getParent());
+        configuration.setFileNameProperty(this.file.getName());
+        configuration.setIncludesHeaderProperty(this.header);
+        configuration.setIdentifierProperty(this.workbook.identifierColumn());
+        configuration.setMergeProperty(this.workbook.mergeColumn());
+        configuration.setUidSortedProperty(uidSorted);
+        // the connector needs an ignore column to read files without a header
+        configuration.setIgnoreProperty(this.workbook.lastColumn());
+        configuration.setIgnoreValueProperty("ignored");
+        return configuration;
+    }
+}
@@ -17,14 +17,28 @@
 package com.exclamationlabs.connid.xlsx;
 
 import java.util.*;
+import java.util.function.BiConsumer;
 
+/**
+ * Values of one account, stored by the slots of an {@link AccountLayout} shared by every account
+ * of a read. A slot holds its single value directly, a list is only made once a merged row adds a
+ * second value.
+ */
 @SuppressWarnings("serial")
 public class Account {
 
+    private final AccountLayout layout;
     private String identifier;
-    private HashMap<String, List<Object>> attributes = new HashMap<>();
+    private Object[] values;
+
+    public Account(){
+        this(new AccountLayout());
+    }
 
-    public Account(){}
+    public Account(AccountLayout layout) {
+        this.layout = layout;
+        this.values = new Object[layout.size()];
+    }
 
     public String getIdentifier() {
         return identifier;
@@ -34,16 +48,62 @@ public class Account {
         this.identifier = identifier;
     }
 
+    /**
+     * @return a copy of the attributes, {@link #getValues} and {@link #forEachAttribute} read them
+     *         without copying
+     */
     public HashMap<String, List<Object>> getAttributes() {
+        HashMap<String, List<Object>> attributes = new HashMap<>();
+        forEachAttribute(attributes::put);
         return attributes;
     }
 
+    /**
+     * @return the values of the attribute, null when it has none
+     */
+    public List<Object> getValues(String attribute) {
+        int slot = layout.find(attribute);
+        return slot >= 0 && slot < values.length ? values(values[slot]) : null;
+    }
+
+    public void forEachAttribute(BiConsumer<String, List<Object>> action) {
+        for (int slot = 0; slot < values.length; slot++) {
+            if (values[slot] != null) {
+                action.accept(layout.name(slot), values(values[slot]));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> values(Object value) {
+        if (value == null) {
+            return null;
+        }
+        return value instanceof List ? (List<Object>) value : Collections.singletonList(value);
+    }
+
     public void addAttribute(String attribute, String value) {
-        List<Object> existingValue = this.attributes.get(attribute);
+        addValue(layout.slot(attribute), value);
+    }
+
+    /**
+     * Adds a value to the attribute of the slot, values after the first are trimmed.
+     */
+    @SuppressWarnings("unchecked")
+    public void addValue(int slot, String value) {
+        if (slot >= values.length) {
+            values = Arrays.copyOf(values, Math.max(slot + 1, layout.size()));
+        }
+        Object existingValue = values[slot];
         if(existingValue == null){
-            this.attributes.put(attribute, new ArrayList<>(Arrays.asList(value)));
-        }else {
-            existingValue.add(value.trim());
+            values[slot] = value;
+        } else if (existingValue instanceof List) {
+            ((List<Object>) existingValue).add(value.trim());
+        } else {
+            List<Object> merged = new ArrayList<>(2);
+            merged.add(existingValue);
+            merged.add(value.trim());
+            values[slot] = merged;
         }
     }
 
@@ -54,13 +114,13 @@ public class Account {
 
         Account that = (Account) o;
         if (identifier != null ? !identifier.equals(that.identifier) : that.identifier != null) return false;
-        return attributes != null ? attributes.equals(that.attributes) : that.attributes == null;
+        return getAttributes().equals(that.getAttributes());
     }
 
     @Override
     public int hashCode() {
         int result = identifier != null ? identifier.hashCode() : 0;
-        result = 31 * result + (attributes != null ? attributes.hashCode() : 0);
+        result = 31 * result + getAttributes().hashCode();
         return result;
     }
 
@@ -68,6 +128,6 @@ public class Account {
     public String toString() {
         return "Account:" +
                 "identifier='" + identifier + '\'' +
-                ", attributes='" + attributes + '\'';
+                ", attributes='" + getAttributes() + '\'';
     }
 }
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Attribute name to slot table shared by the accounts of one read, so each account only holds
+ * an array of values indexed by slot. Names not seen yet get the next free slot.
+ */
+public class AccountLayout {
+
+    private final Map<String, Integer> slots = new HashMap<>();
+
+    private final List<String> names = new ArrayList<>();
+
+    /**
+     * @return the slot of the attribute, added when it has none yet
+     */
+    public int slot(String name) {
+        Integer slot = this.slots.get(name);
+        if (slot == null) {
+            slot = this.names.size();
+            this.slots.put(name, slot);
+            this.names.add(name);
+        }
+        return slot;
+    }
+
+    /**
+     * @return the slot of the attribute, -1 when it has none
+     */
+    public int find(String name) {
+        Integer slot = this.slots.get(name);
+        return slot != null ? slot : -1;
+    }
+
+    public String name(int slot) {
+        return this.names.get(slot);
+    }
+
+    public int size() {
+        return this.names.size();
+    }
+}
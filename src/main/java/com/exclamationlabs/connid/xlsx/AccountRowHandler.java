@@ -0,0 +1,609 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Merges the streamed rows into accounts, rows sharing an identifier add their merge columns
+ * to the first account seen. The accounts of one read share an {@link AccountLayout} with a slot
+ * per heading. Unsorted files are merged in a HashMap, or through a
+ * {@link SpillingMerger} when a merge memory budget is configured. When the filter names the
+ * identifiers it can match, reading stops once every one of them has been completed in the
+ * sorted and spilling modes. In sorted mode an account is handed out as soon as the next
+ * identifier starts, and reading stops in every mode once the handler returns false.
+ * <p>
+ * Sorted mode only holds the current account. With the sorted check enabled identifiers must
+ * ascend, numbers by value, and an identifier lower than the current one either fails the read
+ * or makes it fall back: the rows are read again through a {@link SpillingMerger} and only the
+ * accounts not handed out yet are emitted. Without the check rows of an identifier that are
+ * split apart are handed out as separate accounts.
+ */
+public class AccountRowHandler implements RowHandler {
+
+    private static final Log LOG = Log.getLog(AccountRowHandler.class);
+
+    /**
+     * Merge memory budget in MB of a fallback from sorted mode without a configured budget.
+     */
+    private static final int FALLBACK_MERGE_BUDGET = 64;
+
+    private final Configuration configuration;
+    private final String sortedCheck;
+    private final String[] heading;
+    private final AccountLayout layout = new AccountLayout();
+    private final int[] columnSlots;
+    private final HashMap<String, Account> accounts = new HashMap<>();
+    private Account account = new Account(layout);
+    private int accountRow = -1;
+    private int identifierColumn = -1;
+    private int ignoreColumn = -1;
+    private List<Integer> mergeColumns = new ArrayList<>();
+    private final AccountHandler handler;
+    private SpillingMerger merger;
+    private Filter filter;
+    private Filter identifierFilter;
+    private Set<String> identifiers;
+    private Set<String> remaining;
+    private UidIndex.Builder indexBuilder;
+    private Set<String> attributesToGet;
+    private boolean[] wantedColumns;
+    private boolean done;
+    private boolean stopped;
+    private final SkipRules skipRules;
+    private SkipRules.Bound skipFilter;
+
+    private Set<String> hiddenIdentifiers;
+
+    private int pageSize;
+    private int offset;
+    private int skip;
+    private int startRow;
+    private String afterIdentifier;
+    private int returned;
+    private String lastIdentifier;
+    private boolean nextPage;
+    private int nextPageRow = -1;
+    private int remainingResults;
+    private QueryMetrics metrics = new QueryMetrics();
+    private boolean fallingBack;
+    private int fallbackRow = -1;
+    private String fallbackIdentifier;
+
+    public AccountRowHandler(Configuration configuration, String[] heading, AccountHandler handler) {
+        this.configuration = configuration;
+        this.sortedCheck = configuration.getUidSortedCheckProperty();
+        this.skipRules = SkipRules.compile(configuration.getSkipRulesProperty(), configuration.getSkipDateFormatProperty());
+        this.heading = heading;
+        this.columnSlots = new int[heading.length];
+        for (int col = 0; col < heading.length; col++) {
+            columnSlots[col] = heading[col] != null ? layout.slot(heading[col]) : -1;
+        }
+        this.handler = handler;
+        this.merger = !configuration.isUidSortedProperty() && configuration.getMergeMemoryBudgetProperty() > 0
+            ? new SpillingMerger(configuration.getMergeMemoryBudgetProperty() * 1024L * 1024L,
+                ReadHandler.workDirectory(configuration))
+            : null;
+
+        if (!configuration.getIncludesHeaderProperty()) {
+            identifierColumn = Integer.parseInt(configuration.getIdentifierProperty().substring(3));
+            ignoreColumn = Integer.parseInt(configuration.getIgnoreProperty().substring(3));
+            mergeColumns = getMergeColumnIndex(configuration);
+            skipFilter = skipRules.bind(AccountRowHandler::headerlessColumn, ignoreColumn,
+                configuration.getIgnoreValueProperty());
+            LOG.info("{0}",identifierColumn);
+            LOG.info("{0}",mergeColumns);
+        }
+    }
+
+    /**
+     * @param filter accounts not matching are skipped, rows of identifiers that cannot match are
+     *               rejected before they are merged, may be null
+     */
+    public AccountRowHandler filter(Filter filter) {
+        this.filter = filter;
+        this.identifierFilter = filter != null && filter.isIdentifierOnly() ? filter : null;
+        this.identifiers = filter != null ? filter.getIdentifiers() : null;
+        this.remaining = identifiers != null ? new HashSet<>(identifiers) : null;
+        this.wantedColumns = null;
+        return this;
+    }
+
+    /**
+     * @param attributesToGet column names to decode besides the identifier, ignore and merge columns,
+     *                        null decodes every column
+     */
+    public AccountRowHandler attributesToGet(Set<String> attributesToGet) {
+        this.attributesToGet = attributesToGet;
+        this.wantedColumns = null;
+        return this;
+    }
+
+    /**
+     * @param metrics counts the rows and accounts handled, replaces the handler's own
+     */
+    public AccountRowHandler metrics(QueryMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    public QueryMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param hiddenIdentifiers receives the identifiers of ignored and skipped rows, readers may
+     *                          add to it from several threads, may be null
+     */
+    public AccountRowHandler hiddenIdentifiers(Set<String> hiddenIdentifiers) {
+        this.hiddenIdentifiers = hiddenIdentifiers;
+        return this;
+    }
+
+    /**
+     * @param indexBuilder records the rows of every identifier read, may be null
+     */
+    public AccountRowHandler indexBuilder(UidIndex.Builder indexBuilder) {
+        this.indexBuilder = indexBuilder;
+        return this;
+    }
+
+    /**
+     * Limits the accounts handed out to one page. A cookie from the previous page resumes at the row
+     * of its next account in sorted mode and after its last identifier in spilling mode, other
+     * modes skip the accounts already returned.
+     *
+     * @param pageSize accounts per page, 0 or less hands out every account
+     * @param cookie cookie of the previous page, may be null
+     * @param offset accounts to skip when there is no cookie
+     */
+    public AccountRowHandler page(int pageSize, PagedResultsCookie cookie, int offset) {
+        this.pageSize = pageSize;
+        this.offset = cookie != null ? cookie.getOffset() : offset;
+        if (cookie != null && configuration.isUidSortedProperty()) {
+            this.startRow = cookie.getNextRow();
+        } else if (cookie != null && merger != null) {
+            this.afterIdentifier = cookie.getLastIdentifier();
+        } else {
+            this.skip = this.offset;
+        }
+        return this;
+    }
+
+    /**
+     * @return the columns needed for the requested attributes, null when every column is
+     */
+    private boolean[] wantedColumns() {
+        if (attributesToGet == null) {
+            return null;
+        }
+        Set<String> names = new HashSet<>(attributesToGet);
+        if (filter != null) {
+            names.addAll(filter.getAttributeNames());
+        }
+        int width = Math.max(heading.length, Math.max(identifierColumn, ignoreColumn) + 1);
+        for (int col : mergeColumns) {
+            width = Math.max(width, col + 1);
+        }
+        Set<Integer> skipColumns = skipFilter != null ? skipFilter.getColumns() : Collections.emptySet();
+        for (int col : skipColumns) {
+            width = Math.max(width, col + 1);
+        }
+        boolean[] wanted = new boolean[width];
+        for (int col = 0; col < heading.length; col++) {
+            wanted[col] = names.contains(heading[col]);
+        }
+        for (int col : mergeColumns) {
+            wanted[col] = true;
+        }
+        if (identifierColumn >= 0) {
+            wanted[identifierColumn] = true;
+        }
+        if (ignoreColumn >= 0) {
+            wanted[ignoreColumn] = true;
+        }
+        for (int col : skipColumns) {
+            wanted[col] = true;
+        }
+        return wanted;
+    }
+
+    private boolean isHeading(int rowNum) {
+        return rowNum == 0 && configuration.getIncludesHeaderProperty();
+    }
+
+    @Override
+    public boolean wantsRow(int rowNum) {
+        return rowNum >= startRow || isHeading(rowNum);
+    }
+
+    @Override
+    public boolean wantsColumn(int column) {
+        if (wantedColumns == null && attributesToGet != null && identifierColumn >= 0) {
+            wantedColumns = wantedColumns();
+        }
+        return wantedColumns == null || (column < wantedColumns.length && wantedColumns[column]);
+    }
+
+    /**
+     * @return the skip rules and the ignore property bound to the columns, known once the heading
+     *         row has been handled
+     */
+    @Override
+    public RowFilter rowFilter() {
+        if (skipFilter == null || hiddenIdentifiers == null) {
+            return skipFilter;
+        }
+        SkipRules.Bound bound = skipFilter;
+        int column = identifierColumn;
+        return cells -> {
+            if (!bound.rejects(cells)) {
+                return false;
+            }
+            String identifier = cells.apply(column);
+            if (identifier != null && !identifier.isEmpty()) {
+                hiddenIdentifiers.add(identifier);
+            }
+            return true;
+        };
+    }
+
+    @Override
+    public boolean handle(int rowNum, String[] cells) {
+        if (done || fallingBack) {
+            return false;
+        }
+        // Find Identifier, first iteration
+        if(isHeading(rowNum)) {
+            for (int col = 0; col < cells.length && fallbackRow < 0; col++) {
+                String cellValue = cells[col];
+                if (cellValue == null) {
+                    continue;
+                }
+                if (cellValue.equals(configuration.getIdentifierProperty())) {
+                    identifierColumn = col;
+                } else if (configuration.getMergeProperty() != null && configuration.getMergeProperty().contains(cellValue)) {
+                    mergeColumns.add(col);
+                } else if (configuration.getIgnoreProperty() != null && configuration.getIgnoreProperty().contains(cellValue)) {
+                    ignoreColumn = col;
+                }
+            }
+            if (fallbackRow < 0) {
+                List<String> names = Arrays.asList(cells);
+                skipFilter = skipRules.bind(names::indexOf, ignoreColumn, configuration.getIgnoreValueProperty());
+            }
+            return true;
+        }
+        if (rowNum < startRow) {
+            return true;
+        }
+
+        metrics.rowsRead++;
+        String identifier = cellValue(cells, identifierColumn);
+        if (indexBuilder != null && !identifier.isEmpty() && rowNum > fallbackRow) {
+            indexBuilder.add(identifier, rowNum);
+        }
+        String ignore = cellValue(cells, ignoreColumn);
+        if (identifier.isEmpty() || ignore.equals(configuration.getIgnoreValueProperty())){
+            //continue on null input and ignored row value
+            if (!identifier.isEmpty()) {
+                metrics.rowsIgnored++;
+                if (hiddenIdentifiers != null) {
+                    hiddenIdentifiers.add(identifier);
+                }
+            }
+            return true;
+        }
+        if ((identifiers != null && !identifiers.contains(identifier))
+                || (identifierFilter != null && !identifierFilter.matchesIdentifier(identifier))) {
+            //the account can never match the filter
+            return true;
+        }
+        if (afterIdentifier != null && compareIdentifiers(identifier, afterIdentifier) <= 0) {
+            //returned on a previous page
+            return true;
+        }
+        if (merger != null) {
+            try {
+                merger.add(identifier, rowNum, cells);
+            } catch (IOException e) {
+                throw new ConnectorIOException(e);
+            }
+            return true;
+        }
+        if (configuration.isUidSortedProperty()) {
+            // only the current account is held, the next identifier completes it
+            if (identifier.equals(account.getIdentifier())) {
+                mergeRow(account, cells);
+                return true;
+            }
+            if (account.getIdentifier() != null) {
+                if (!"none".equals(sortedCheck) && compareIdentifiers(identifier, account.getIdentifier()) < 0) {
+                    return outOfOrder(identifier, rowNum);
+                }
+                emit(account, accountRow);
+                if (done) {
+                    return false;
+                }
+            }
+            account = newAccount(cells);
+            accountRow = rowNum;
+            return true;
+        }
+        //account already exists, get the merge and move on
+        Account existing = accounts.get(identifier);
+        if (existing != null) {
+            mergeRow(existing, cells);
+        } else {
+            accounts.put(identifier, newAccount(cells));
+        }
+        return true;
+    }
+
+    /**
+     * Fails the read, or stops it and prepares reading the rows again into a spilling merge.
+     *
+     * @return false to stop reading
+     */
+    private boolean outOfOrder(String identifier, int rowNum) {
+        String message = "Identifier " + identifier + " in row " + (rowNum + 1) + " follows "
+            + account.getIdentifier() + ", the rows are not sorted by identifier";
+        if ("fail".equals(sortedCheck)) {
+            throw new ConnectorException(message);
+        }
+        if (pageSize > 0) {
+            throw new ConnectorException(message + ", paged searches cannot fall back");
+        }
+        LOG.warn("{0}, merging the rows by identifier instead", message);
+        metrics.sortedFallbacks++;
+        int budget = configuration.getMergeMemoryBudgetProperty() > 0
+            ? configuration.getMergeMemoryBudgetProperty() : FALLBACK_MERGE_BUDGET;
+        merger = new SpillingMerger(budget * 1024L * 1024L, ReadHandler.workDirectory(configuration));
+        fallingBack = true;
+        fallbackRow = rowNum;
+        fallbackIdentifier = account.getIdentifier();
+        account = new Account(layout);
+        accountRow = -1;
+        return false;
+    }
+
+    /**
+     * @return whether the handler returned false, leaving the rest of the accounts unread
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * @return whether the read stopped to fall back from sorted mode, the rows have to be handed
+     *         to this handler again from the start
+     */
+    public boolean fallBack() {
+        boolean fallBack = fallingBack;
+        fallingBack = false;
+        return fallBack;
+    }
+
+    /**
+     * The order of identifiers in sorted sheets, spilled runs and paging cookies: identifiers of
+     * digits by value before all others, the others as strings. Identifiers of equal value, like
+     * 7 and 007, are ordered as strings, so only equal identifiers compare as equal.
+     */
+    static final Comparator<String> IDENTIFIER_ORDER = AccountRowHandler::compareIdentifiers;
+
+    static int compareIdentifiers(String a, String b) {
+        boolean aDigits = isDigits(a);
+        boolean bDigits = isDigits(b);
+        if (aDigits != bDigits) {
+            return aDigits ? -1 : 1;
+        }
+        if (aDigits) {
+            String x = stripLeadingZeros(a);
+            String y = stripLeadingZeros(b);
+            int byValue = x.length() != y.length() ? Integer.compare(x.length(), y.length()) : x.compareTo(y);
+            if (byValue != 0) {
+                return byValue;
+            }
+        }
+        return a.compareTo(b);
+    }
+
+    private static boolean isDigits(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return !value.isEmpty();
+    }
+
+    private static String stripLeadingZeros(String value) {
+        int start = 0;
+        while (start < value.length() - 1 && value.charAt(start) == '0') {
+            start++;
+        }
+        return value.substring(start);
+    }
+
+    private Account newAccount(String[] cells) {
+        Account newAccount = new Account(layout);
+        for (int col = 0; col < cells.length; col++) {
+            String cellValue = cells[col];
+            if (cellValue == null) {
+                continue;
+            }
+            if (col == identifierColumn) {
+                newAccount.setIdentifier(cellValue);
+            } else if(!cellValue.isEmpty() && col < columnSlots.length && columnSlots[col] >= 0) {
+                newAccount.addValue(columnSlots[col], cellValue);
+            }
+        }
+        return newAccount;
+    }
+
+    private void mergeRow(Account existing, String[] cells) {
+        metrics.rowsMerged++;
+        for(int col : mergeColumns){
+            if (col < columnSlots.length && columnSlots[col] >= 0) {
+                existing.addValue(columnSlots[col], cellValue(cells, col));
+            }
+        }
+    }
+
+    public void finish() throws IOException {
+        if (merger != null) {
+            // rows arrive grouped by identifier, an identifier change completes the account
+            merger.merge((rowNum, cells) -> {
+                if (cellValue(cells, identifierColumn).equals(account.getIdentifier())) {
+                    mergeRow(account, cells);
+                } else {
+                    if (account.getIdentifier() != null) {
+                        emitMerged(account, accountRow);
+                    }
+                    account = newAccount(cells);
+                    accountRow = rowNum;
+                }
+                return !done;
+            });
+            if (account.getIdentifier() != null && !done) {
+                emitMerged(account, accountRow);
+            }
+        } else if(configuration.isUidSortedProperty()) {
+            if (account.getIdentifier() != null && !done) {
+                emit(account, accountRow);
+            }
+        }else {
+            metrics.accountsHeld(accounts.size());
+            for (Account acc : accounts.values()) {
+                if (done && !nextPage) {
+                    return;
+                }
+                if (!nextPage) {
+                    emit(acc, -1);
+                } else if (filter == null || filter.matches(acc)) {
+                    remainingResults++;
+                }
+            }
+            return;
+        }
+        if (nextPage) {
+            remainingResults = -1;
+        }
+    }
+
+    /**
+     * Emits an account of the spilling merge unless the sorted read it fell back from completed
+     * it, which it did for every account starting before the fallback but the current one.
+     */
+    private void emitMerged(Account completed, int firstRow) {
+        if (firstRow >= fallbackRow || completed.getIdentifier().equals(fallbackIdentifier)) {
+            emit(completed, firstRow);
+        }
+    }
+
+    /**
+     * Hands a completed account to the handler when it matches the filter and falls on the
+     * requested page. A matching account past the end of the page marks that a next page exists.
+     */
+    private void emit(Account completed, int firstRow) {
+        if (filter == null || filter.matches(completed)) {
+            if (skip > 0) {
+                skip--;
+            } else if (pageSize > 0 && returned == pageSize) {
+                nextPage = true;
+                nextPageRow = firstRow;
+                remainingResults = 1;
+                done = true;
+                return;
+            } else {
+                long start = System.nanoTime();
+                boolean more = handler.handle(completed);
+                metrics.emitted(System.nanoTime() - start);
+                returned++;
+                lastIdentifier = completed.getIdentifier();
+                if (!more) {
+                    // the handler stops the whole read, there is no next page to tell about
+                    done = true;
+                    stopped = true;
+                    return;
+                }
+            }
+        }
+        if (remaining != null && remaining.remove(completed.getIdentifier()) && remaining.isEmpty()) {
+            done = true;
+        }
+    }
+
+    /**
+     * @return the cookie of the next page, null when this page was the last one
+     */
+    public PagedResultsCookie getPagedResultsCookie(FileFingerprint fingerprint) {
+        if (!nextPage) {
+            return null;
+        }
+        return new PagedResultsCookie(fingerprint.toString(), offset + returned, nextPageRow, lastIdentifier);
+    }
+
+    /**
+     * @return accounts left after this page, -1 when unknown
+     */
+    public int getRemainingPagedResults() {
+        return remainingResults;
+    }
+
+    public void close() {
+        if (merger != null) {
+            merger.close();
+        }
+    }
+
+    private static int headerlessColumn(String name) {
+        try {
+            return name.startsWith("col") ? Integer.parseInt(name.substring(3)) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Counts the rows readers rejected through the {@link #rowFilter()} as read and ignored.
+     */
+    void countRejectedRows() {
+        if (skipFilter != null) {
+            long rejected = skipFilter.getRejected();
+            metrics.rowsRead += rejected;
+            metrics.rowsIgnored += rejected;
+        }
+    }
+
+    static String cellValue(String[] cells, int col) {
+        return (col >= 0 && col < cells.length && cells[col] != null) ? cells[col] : "";
+    }
+
+    private static List<Integer> getMergeColumnIndex(Configuration configuration) {
+        return Arrays.asList(configuration.getMergeProperty()
+                .split(configuration.getMultivalueDelimiter())).stream()
+                .map(c -> Integer.parseInt(c.substring(3)))
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exclamationlabs.connid.xlsx;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.common.objects.SearchResult;
+import org.identityconnectors.framework.spi.SearchResultsHandler;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs a query on a worker thread and hands the objects it finds to the results handler on the
+ * calling thread, through a bounded queue, so the file is parsed while the handler works. A full
+ * queue holds the worker back. A handler returning false or failing stops the worker. The
+ * calling thread always waits for the worker to end, then throws what the worker failed with.
+ */
+public final class AsyncQuery {
+
+    private static final AtomicInteger THREAD = new AtomicInteger();
+
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(runnable -> {
+        Thread worker = new Thread(runnable, "xlsx-query-" + THREAD.incrementAndGet());
+        worker.setDaemon(true);
+        return worker;
+    });
+
+    private static final Object END = new Object();
+
+    private AsyncQuery() {
+    }
+
+    /**
+     * @param depth objects the query may find ahead of the handler
+     * @param query runs the query against the handler it is given, on the worker
+     */
+    public static void run(int depth, ResultsHandler handler, Consumer<ResultsHandler> query) {
+        BlockingQueue<Object> queue = new ArrayBlockingQueue<>(depth);
+        AtomicBoolean stopped = new AtomicBoolean();
+        Future<?> worker = WORKERS.submit(() -> {
+            try {
+                query.accept(new Producer(queue, stopped));
+            } finally {
+                end(queue);
+            }
+        });
+
+        boolean interrupted = false;
+        boolean ended = false;
+        try {
+            while (!ended) {
+                Object item;
+                try {
+                    item = queue.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    stopped.set(true);
+                    continue;
+                }
+                if (item == END) {
+                    ended = true;
+                } else if (item instanceof SearchResult) {
+                    if (!interrupted && handler instanceof SearchResultsHandler) {
+                        ((SearchResultsHandler) handler).handleResult((SearchResult) item);
+                    }
+                } else if (!stopped.get() && !handler.handle((ConnectorObject) item)) {
+                    // objects the worker queued before it noticed are dropped
+                    stopped.set(true);
+                }
+            }
+        } finally {
+            if (!ended) {
+                // the handler failed, the worker may be waiting for room in the queue
+                stopped.set(true);
+                interrupted |= drain(queue);
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        Throwable failure = failure(worker);
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new ConnectorException(failure);
+        }
+        if (interrupted) {
+            throw new ConnectorException("Interrupted while handling the results of the query");
+        }
+    }
+
+    /**
+     * Waits for the worker, which has queued its end and is about to return.
+     *
+     * @return what the worker failed with, null when it did not
+     */
+    private static Throwable failure(Future<?> worker) {
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (true) {
+                try {
+                    worker.get();
+                    return null;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    return e.getCause();
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return whether the calling thread was interrupted while waiting for the end
+     */
+    private static boolean drain(BlockingQueue<Object> queue) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (queue.take() == END) {
+                    return interrupted;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+    }
+
+    private static void end(BlockingQueue<Object> queue) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(END);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues the objects and the search result of the query, asking the query to stop once the
+     * handler did.
+     */
+    private static final class Producer implements SearchResultsHandler {
+
+        private final BlockingQueue<Object> queue;
+
+        private final AtomicBoolean stopped;
+
+        Producer(BlockingQueue<Object> queue, AtomicBoolean stopped) {
+            this.queue = queue;
+            this.stopped = stopped;
+        }
+
+        @Override
+        public boolean handle(ConnectorObject connectorObject) {
+            return !stopped.get() && put(connectorObject) && !stopped.get();
+        }
+
+        /**
+         * Queued even after the handler stopped, like the result of a query run on the calling thread.
+         */
+        @Override
+        public void handleResult(SearchResult result) {
+            put(result);
+        }
+
+        private boolean put(Object item) {
+            try {
+                queue.put(item);
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stopped.set(true);
+                return false;
+            }
+        }
+    }
+}
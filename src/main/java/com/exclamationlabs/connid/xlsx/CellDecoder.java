@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import org.apache.poi.ss.usermodel.BuiltinFormats;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.xssf.model.SharedStrings;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFRichTextString;
+import org.identityconnectors.common.logging.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Formats the cells of a {@link RawSheetHandler.RawRow} the way
+ * {@link org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler} formats cached formula results.
+ * Text, boolean and error cells are resolved without a {@link DataFormatter}, and so are integers
+ * in the General format, the usual identifiers and counters of an export. Other numbers go through
+ * the DataFormatter of the thread with the number format looked up once per style. Safe to use
+ * from several threads.
+ */
+public class CellDecoder {
+
+    private static final Log LOG = Log.getLog(CellDecoder.class);
+
+    private static final NumberFormat NO_FORMAT = new NumberFormat((short) -1, null);
+
+    private final StylesTable styles;
+
+    private final SharedStrings strings;
+
+    private final ThreadLocal<DataFormatter> formatter = ThreadLocal.withInitial(DataFormatter::new);
+
+    private final ConcurrentHashMap<String, NumberFormat> formats = new ConcurrentHashMap<>();
+
+    private final boolean plainIntegers;
+
+    public CellDecoder(StylesTable styles, SharedStrings strings) {
+        this.styles = styles;
+        this.strings = strings;
+        // locales with other digits or signs keep every number on the DataFormatter
+        this.plainIntegers = "-1234567890".equals(
+            this.formatter.get().formatRawCellContents(-1234567890d, 0, "General"));
+    }
+
+    /**
+     * @return false for the cell types holding text, every other type is read as a number
+     */
+    static boolean isNumber(String type) {
+        return !("b".equals(type) || "e".equals(type) || "inlineStr".equals(type) || "s".equals(type)
+            || "str".equals(type));
+    }
+
+    public String[] decode(RawSheetHandler.RawRow row) {
+        String[] cells = new String[row.width];
+        for (int col = 0; col < row.width; col++) {
+            if (row.values[col] != null) {
+                cells[col] = decode(row.types[col], row.styles[col], row.values[col]);
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * @return the formatted cell of the column, null when the row has none
+     */
+    public String decode(RawSheetHandler.RawRow row, int col) {
+        return col < row.width && row.values[col] != null
+            ? decode(row.types[col], row.styles[col], row.values[col])
+            : null;
+    }
+
+    String decode(String type, String style, String value) {
+        if (type != null) {
+            switch (type) {
+                case "b":
+                    return value.charAt(0) == '0' ? "FALSE" : "TRUE";
+                case "e":
+                    return "ERROR:" + value;
+                case "inlineStr":
+                    return new XSSFRichTextString(value).toString();
+                case "s":
+                    try {
+                        return this.strings.getItemAt(Integer.parseInt(value)).toString();
+                    } catch (NumberFormatException e) {
+                        LOG.warn("Failed to parse SST index {0}", value);
+                        return null;
+                    }
+                case "str":
+                    return value;
+                case RawSheetHandler.RawRow.FORMULA:
+                    NumberFormat format = format(style);
+                    if (format.pattern == null) {
+                        return value;
+                    }
+                    try {
+                        return this.formatter.get().formatRawCellContents(Double.parseDouble(value), format.index,
+                            format.pattern);
+                    } catch (NumberFormatException e) {
+                        return value;
+                    }
+                default:
+            }
+        }
+        NumberFormat format = format(style);
+        if (format.pattern == null || value.isEmpty()) {
+            return value;
+        }
+        if (format.general && this.plainIntegers) {
+            String integer = generalInteger(value);
+            if (integer != null) {
+                return integer;
+            }
+        }
+        return this.formatter.get().formatRawCellContents(Double.parseDouble(value), format.index, format.pattern);
+    }
+
+    /**
+     * @return the integer as the General format writes it, null when the value is not an integer
+     *         of at most ten digits, optionally followed by a zero fraction
+     */
+    static String generalInteger(String value) {
+        int length = value.length();
+        int start = value.charAt(0) == '-' ? 1 : 0;
+        int end = start;
+        while (end < length && value.charAt(end) >= '0' && value.charAt(end) <= '9') {
+            end++;
+        }
+        int digits = end - start;
+        if (digits == 0 || digits > 10) {
+            return null;
+        }
+        if (end < length) {
+            if (value.charAt(end) != '.' || end + 1 == length) {
+                return null;
+            }
+            for (int i = end + 1; i < length; i++) {
+                if (value.charAt(i) != '0') {
+                    return null;
+                }
+            }
+        }
+        if (end == length && (value.charAt(start) != '0' || (digits == 1 && start == 0))) {
+            return value;
+        }
+        return Long.toString(Long.parseLong(value.substring(0, end)));
+    }
+
+    /**
+     * @return the number format of the style, cells without a style use the first one
+     */
+    private NumberFormat format(String style) {
+        return this.formats.computeIfAbsent(style != null ? style : "", key -> {
+            XSSFCellStyle cellStyle = null;
+            if (this.styles != null) {
+                if (!key.isEmpty()) {
+                    cellStyle = this.styles.getStyleAt(Integer.parseInt(key));
+                } else if (this.styles.getNumCellStyles() > 0) {
+                    cellStyle = this.styles.getStyleAt(0);
+                }
+            }
+            if (cellStyle == null) {
+                return NO_FORMAT;
+            }
+            short index = cellStyle.getDataFormat();
+            String pattern = cellStyle.getDataFormatString();
+            return new NumberFormat(index, pattern != null ? pattern : BuiltinFormats.getBuiltinFormat(index));
+        });
+    }
+
+    private static class NumberFormat {
+
+        final short index;
+
+        final String pattern;
+
+        final boolean general;
+
+        NumberFormat(short index, String pattern) {
+            this.index = index;
+            this.pattern = pattern;
+            this.general = "General".equalsIgnoreCase(pattern);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Merged accounts of one version of an export file in a compact local file that is read through a
+ * memory mapping instead of parsing the export again, kept as a {@link SidecarFile} under the
+ * fingerprint of the export. The accounts are sorted in the
+ * {@link AccountRowHandler#IDENTIFIER_ORDER}. All strings are stored once in a dictionary and
+ * referenced by number: the identifiers in one column, the values of every attribute in a column of
+ * its own with an offset per account, so only the requested columns are decoded.
+ * <p>
+ * Layout after the header, every number a big endian int: the dictionary offsets, the UTF-8
+ * dictionary bytes, the identifier column, then per attribute its account offsets and value
+ * numbers.
+ */
+public class ColumnarSnapshot {
+
+    private static final Log LOG = Log.getLog(ColumnarSnapshot.class);
+
+    private static final String MAGIC = "XLSXCOL2";
+
+    private final String[] attributes;
+
+    private final int accounts;
+
+    private final int dictionarySize;
+
+    private final ByteBuffer buffer;
+
+    private final int dictionaryOffsets;
+
+    private final int dictionaryBytes;
+
+    private final int identifiers;
+
+    private final int[] valueOffsets;
+
+    private final int[] values;
+
+    private final String[] strings;
+
+    private ColumnarSnapshot(String[] attributes, int accounts, int dictionarySize, int[] positions, ByteBuffer buffer) {
+        this.attributes = attributes;
+        this.accounts = accounts;
+        this.dictionarySize = dictionarySize;
+        this.buffer = buffer;
+        this.dictionaryOffsets = positions[0];
+        this.dictionaryBytes = positions[1];
+        this.identifiers = positions[2];
+        this.valueOffsets = new int[attributes.length];
+        this.values = new int[attributes.length];
+        for (int attribute = 0; attribute < attributes.length; attribute++) {
+            this.valueOffsets[attribute] = positions[3 + 2 * attribute];
+            this.values[attribute] = positions[4 + 2 * attribute];
+        }
+        this.strings = new String[dictionarySize];
+    }
+
+    /**
+     * @param sheetName sheet the snapshot covers, null for the first sheet
+     */
+    public static File file(File directory, FileFingerprint fingerprint, String sheetName) {
+        String name = new File(fingerprint.getPath()).getName();
+        String path = sheetName == null ? fingerprint.getPath() : fingerprint.getPath() + "#" + sheetName;
+        return new File(directory, name + "." + Integer.toHexString(path.hashCode()) + ".xcol");
+    }
+
+    /**
+     * @return the snapshot mapped from the file, or null when it is missing, unreadable or stale
+     */
+    public static ColumnarSnapshot open(File file, FileFingerprint fingerprint, String settings) {
+        try {
+            return SidecarFile.load(file, MAGIC, fingerprint.toString(), settings, in -> {
+                String[] attributes = new String[in.readInt()];
+                for (int attribute = 0; attribute < attributes.length; attribute++) {
+                    attributes[attribute] = in.readUTF();
+                }
+                int accounts = in.readInt();
+                int dictionarySize = in.readInt();
+                int[] positions = new int[3 + 2 * attributes.length];
+                for (int position = 0; position < positions.length; position++) {
+                    positions[position] = in.readInt();
+                }
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    return new ColumnarSnapshot(attributes, accounts, dictionarySize, positions, buffer);
+                }
+            });
+        } catch (IOException e) {
+            LOG.warn(e, "Unable to read columnar snapshot {0}", file);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the accounts sorted by identifier.
+     */
+    public static void write(File file, FileFingerprint fingerprint, String settings, List<Account> accounts)
+            throws IOException {
+        List<Account> sorted = new ArrayList<>(accounts);
+        sorted.sort(Comparator.comparing(Account::getIdentifier, AccountRowHandler.IDENTIFIER_ORDER));
+
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        Map<String, Integer> attributeNumbers = new LinkedHashMap<>();
+        int[] identifierColumn = new int[sorted.size()];
+        List<List<int[]>> columns = new ArrayList<>();
+        for (int account = 0; account < sorted.size(); account++) {
+            int current = account;
+            identifierColumn[account] = dictionary.computeIfAbsent(sorted.get(account).getIdentifier(), s -> dictionary.size());
+            sorted.get(account).forEachAttribute((name, values) -> {
+                Integer attribute = attributeNumbers.get(name);
+                if (attribute == null) {
+                    attribute = attributeNumbers.size();
+                    attributeNumbers.put(name, attribute);
+                    columns.add(new ArrayList<>(Collections.nCopies(sorted.size(), null)));
+                }
+                int[] numbers = new int[values.size()];
+                for (int value = 0; value < numbers.length; value++) {
+                    numbers[value] = dictionary.computeIfAbsent(values.get(value).toString(), s -> dictionary.size());
+                }
+                columns.get(attribute).set(current, numbers);
+            });
+        }
+
+        List<byte[]> encoded = new ArrayList<>(dictionary.size());
+        long dictionaryLength = 0;
+        for (String string : dictionary.keySet()) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            encoded.add(bytes);
+            dictionaryLength += bytes.length;
+        }
+        long[] sizes = new long[3 + 2 * columns.size()];
+        sizes[0] = 4L * (dictionary.size() + 1);
+        sizes[1] = dictionaryLength;
+        sizes[2] = 4L * sorted.size();
+        for (int attribute = 0; attribute < columns.size(); attribute++) {
+            sizes[3 + 2 * attribute] = 4L * (sorted.size() + 1);
+            long count = 0;
+            for (int[] numbers : columns.get(attribute)) {
+                count += numbers != null ? numbers.length : 0;
+            }
+            sizes[4 + 2 * attribute] = 4L * count;
+        }
+
+        String[] attributes = attributeNumbers.keySet().toArray(new String[0]);
+        int[] positions = new int[sizes.length];
+        long position = SidecarFile.headerLength(MAGIC, fingerprint.toString(), settings)
+            + header(attributes, sorted.size(), dictionary.size(), positions).length;
+        for (int section = 0; section < sizes.length; section++) {
+            positions[section] = (int) position;
+            position += sizes[section];
+        }
+        if (position > Integer.MAX_VALUE) {
+            throw new IOException("Columnar snapshot of " + fingerprint.getPath() + " would exceed 2 GB");
+        }
+
+        SidecarFile.save(file, MAGIC, fingerprint.toString(), settings, out -> {
+            out.write(header(attributes, sorted.size(), dictionary.size(), positions));
+            int offset = 0;
+            out.writeInt(offset);
+            for (byte[] bytes : encoded) {
+                offset += bytes.length;
+                out.writeInt(offset);
+            }
+            for (byte[] bytes : encoded) {
+                out.write(bytes);
+            }
+            for (int identifier : identifierColumn) {
+                out.writeInt(identifier);
+            }
+            for (List<int[]> column : columns) {
+                offset = 0;
+                out.writeInt(offset);
+                for (int[] numbers : column) {
+                    offset += numbers != null ? numbers.length : 0;
+                    out.writeInt(offset);
+                }
+                for (int[] numbers : column) {
+                    if (numbers != null) {
+                        for (int number : numbers) {
+                            out.writeInt(number);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private static byte[] header(String[] attributes, int accounts, int dictionarySize, int[] positions)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(attributes.length);
+            for (String attribute : attributes) {
+                out.writeUTF(attribute);
+            }
+            out.writeInt(accounts);
+            out.writeInt(dictionarySize);
+            for (int position : positions) {
+                out.writeInt(position);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    public int size() {
+        return accounts;
+    }
+
+    public String[] getAttributes() {
+        return attributes.clone();
+    }
+
+    public String getIdentifier(int account) {
+        return string(buffer.getInt(identifiers + 4 * account));
+    }
+
+    /**
+     * @return the position of the account with the identifier, -1 when there is none
+     */
+    public int find(String identifier) {
+        int low = 0;
+        int high = accounts - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int compared = AccountRowHandler.compareIdentifiers(getIdentifier(middle), identifier);
+            if (compared < 0) {
+                low = middle + 1;
+            } else if (compared > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param columns attributes to decode, by their position in {@link #getAttributes()}, null
+     *                decodes all of them
+     */
+    public Account getAccount(int account, AccountLayout layout, boolean[] columns) {
+        Account result = new Account(layout);
+        result.setIdentifier(getIdentifier(account));
+        for (int attribute = 0; attribute < attributes.length; attribute++) {
+            if (columns != null && !columns[attribute]) {
+                continue;
+            }
+            int first = buffer.getInt(valueOffsets[attribute] + 4 * account);
+            int last = buffer.getInt(valueOffsets[attribute] + 4 * (account + 1));
+            if (first == last) {
+                continue;
+            }
+            int slot = layout.slot(attributes[attribute]);
+            for (int value = first; value < last; value++) {
+                result.addValue(slot, string(buffer.getInt(values[attribute] + 4 * value)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Decodes a dictionary entry once, later lookups of the same entry return the same string.
+     */
+    private String string(int number) {
+        String string = strings[number];
+        if (string == null) {
+            int start = buffer.getInt(dictionaryOffsets + 4 * number);
+            int end = buffer.getInt(dictionaryOffsets + 4 * (number + 1));
+            byte[] bytes = new byte[end - start];
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(dictionaryBytes + start);
+            slice.get(bytes);
+            string = new String(bytes, StandardCharsets.UTF_8);
+            strings[number] = string;
+        }
+        return string;
+    }
+}
@@ -19,10 +19,17 @@ package com.exclamationlabs.connid.xlsx;
 import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.framework.common.exceptions.ConfigurationException;
 import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.objects.ObjectClass;
 import org.identityconnectors.framework.spi.AbstractConfiguration;
 import org.identityconnectors.framework.spi.ConfigurationProperty;
 
 import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
 
 public class Configuration extends AbstractConfiguration {
 
@@ -35,6 +42,28 @@ public class Configuration extends AbstractConfiguration {
     private String multivalueDelimiter = ";";
     private Boolean includesHeaderProperty = false;
     private Boolean uidSortedProperty = false;
+    private Boolean snapshotCacheProperty = false;
+    private Integer snapshotIdleTimeoutProperty = 300;
+    private Integer mergeMemoryBudgetProperty = 0;
+    private Boolean uidIndexProperty = false;
+    private String workDirectoryProperty;
+    private Integer parallelismProperty = 1;
+    private String sheetProperty;
+    private String[] objectClassSheetsProperty = {};
+    private String groupMembershipProperty;
+    private Boolean multiFileProperty = false;
+    private Integer newestFilesProperty = 0;
+    private Boolean watchDirectoryProperty = false;
+    private Integer watchQuietPeriodProperty = 2;
+    private String uidSortedCheckProperty = "none";
+    private Boolean columnarSnapshotProperty = false;
+    private Integer writeBatchSizeProperty = 100;
+    private String[] skipRulesProperty = {};
+    private String skipDateFormatProperty = "yyyy-MM-dd";
+    private String fileFormatProperty;
+    private Integer asyncQueueDepthProperty = 0;
+    private Integer writeIntervalProperty = 60;
+    private Boolean writeBeforeReadProperty = false;
 
     @ConfigurationProperty(
             displayMessageKey = "File Name",
@@ -67,17 +96,36 @@ public class Configuration extends AbstractConfiguration {
     }
 
     public String getFilePath() {
+        return getFilePaths().get(0);
+    }
+
+    /**
+     * @return the files starting with the file name in name order, only the first of them unless
+     *         multiple files are read, and only the newest ones when their number is limited
+     */
+    public List<String> getFilePaths() {
 
         File file = new File(this.directoryPathProperty);
 
         if(file.exists() && file.isDirectory()) {
-            String[] files = file.list();
-
-            for(String fileName : files) {
+            List<File> matching = new ArrayList<>();
+            for(String fileName : file.list()) {
                 if(fileName.startsWith(this.fileNameProperty)) {
-                    return new File(this.directoryPathProperty, fileName).getPath();
+                    matching.add(new File(this.directoryPathProperty, fileName));
                 }
             }
+            if (newestFilesProperty != null && newestFilesProperty > 0 && matching.size() > newestFilesProperty) {
+                matching.sort(Comparator.comparingLong(File::lastModified).reversed());
+                matching = matching.subList(0, newestFilesProperty);
+            }
+            matching.sort(Comparator.comparing(File::getName));
+            if (!matching.isEmpty()) {
+                List<String> paths = new ArrayList<>();
+                for (File match : Boolean.TRUE.equals(multiFileProperty) ? matching : matching.subList(0, 1)) {
+                    paths.add(match.getPath());
+                }
+                return paths;
+            }
         }
         throw new ConnectorIOException("Configured XLSX was not found.");
     }
@@ -130,7 +178,7 @@ public class Configuration extends AbstractConfiguration {
     @ConfigurationProperty(
             displayMessageKey = "Uid Sorted",
             groupMessageKey ="XLSX Configuration",
-            helpMessageKey = "If items are sorted by Uid they will be handled individually, Default false",
+            helpMessageKey = "If items are sorted by Uid they will be handled individually, with multiple files the rows of all files in name order must be, Default false",
             order = 6)
     public boolean isUidSortedProperty() {
         return uidSortedProperty;
@@ -152,6 +200,72 @@ public class Configuration extends AbstractConfiguration {
         ) {
             throw new ConfigurationException("Cannot read connector file specified");
         }
+        getSheetMappings();
+        if (!Arrays.asList("none", "fail", "fallback").contains(getUidSortedCheckProperty())) {
+            throw new ConfigurationException("Uid sorted check must be none, fail or fallback");
+        }
+        if (Boolean.TRUE.equals(watchDirectoryProperty) && !Boolean.TRUE.equals(snapshotCacheProperty)) {
+            throw new ConfigurationException("Watching the directory requires the snapshot cache");
+        }
+        if (writeBatchSizeProperty == null || writeBatchSizeProperty < 1) {
+            throw new ConfigurationException("Write batch size must be at least 1");
+        }
+        SkipRules.compile(skipRulesProperty, getSkipDateFormatProperty());
+        if (!StringUtil.isBlank(fileFormatProperty)
+                && !Arrays.asList("xlsx", "xls", "csv", "tsv").contains(fileFormatProperty.trim().toLowerCase(Locale.ROOT))) {
+            throw new ConfigurationException("File format must be xlsx, xls, csv or tsv");
+        }
+        if (asyncQueueDepthProperty != null && asyncQueueDepthProperty < 0) {
+            throw new ConfigurationException("Async queue depth must not be negative");
+        }
+        if (writeIntervalProperty != null && writeIntervalProperty < 0) {
+            throw new ConfigurationException("Write interval must not be negative");
+        }
+    }
+
+    /**
+     * @return the object classes read from sheets of their own, an entry for the account class
+     *         replaces the account sheet, identifier and merge properties
+     */
+    public List<SheetMapping> getSheetMappings() {
+        List<SheetMapping> mappings = new ArrayList<>();
+        if (objectClassSheetsProperty != null) {
+            for (String entry : objectClassSheetsProperty) {
+                if (!StringUtil.isBlank(entry)) {
+                    mappings.add(SheetMapping.parse(entry));
+                }
+            }
+        }
+        return mappings;
+    }
+
+    /**
+     * Copies every {@link ConfigurationProperty} through its getter and setter, properties added
+     * later are carried over without touching this method. Skip rules name account columns and are
+     * only kept for a mapping of the account class.
+     *
+     * @return a copy of this configuration reading the sheet, identifier and merge columns of the mapping
+     */
+    public Configuration forSheet(SheetMapping mapping) {
+        Configuration sheet = new Configuration();
+        try {
+            for (Method getter : Configuration.class.getMethods()) {
+                if (!getter.isAnnotationPresent(ConfigurationProperty.class)) {
+                    continue;
+                }
+                String property = getter.getName().substring(getter.getName().startsWith("is") ? 2 : 3);
+                Configuration.class.getMethod("set" + property, getter.getReturnType()).invoke(sheet, getter.invoke(this));
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to copy the configuration", e);
+        }
+        sheet.setIdentifierProperty(mapping.getIdentifier());
+        sheet.setMergeProperty(mapping.getMerge());
+        sheet.setSheetProperty(mapping.getSheet());
+        if (!ObjectClass.ACCOUNT.equals(mapping.getObjectClass())) {
+            sheet.setSkipRulesProperty(new String[0]);
+        }
+        return sheet;
     }
 
     @ConfigurationProperty(
@@ -198,4 +312,334 @@ public class Configuration extends AbstractConfiguration {
     public void setIgnoreValueProperty(String ignoreValueProperty) {
         this.ignoreValueProperty = ignoreValueProperty;
     }
+
+    @ConfigurationProperty(
+            displayMessageKey = "Snapshot Cache",
+            groupMessageKey ="XLSX Configuration",
+            helpMessageKey = "Keep the merged accounts of an unchanged file in memory and share them between connector instances, Default false",
+            order = 10,
+            confidential = false,
+            required = false)
+    public Boolean getSnapshotCacheProperty() {
+        return snapshotCacheProperty != null && snapshotCacheProperty;
+    }
+
+    public void setSnapshotCacheProperty(Boolean snapshotCacheProperty) {
+        this.snapshotCacheProperty = snapshotCacheProperty;
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "Snapshot Idle Timeout",
+            groupMessageKey ="XLSX Configuration",
+            helpMessageKey = "Seconds an unused snapshot is kept in the cache, Default 300",
+            order = 11,
+            confidential = false,
+            required = false)
+    public Integer getSnapshotIdleTimeoutProperty() {
+        return snapshotIdleTimeoutProperty == null ? 300 : snapshotIdleTimeoutProperty;
+    }
+
+    public void setSnapshotIdleTimeoutProperty(Integer snapshotIdleTimeoutProperty) {
+        this.snapshotIdleTimeoutProperty = snapshotIdleTimeoutProperty;
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "Merge Memory Budget",
+            groupMessageKey ="XLSX Configuration",
+            helpMessageKey = "Megabytes of rows held while merging an unsorted file before spilling sorted runs to temporary files, Default 0 merges in memory",
+            order = 12,
+            confidential = false,
+            required = false)
+    public Integer getMergeMemoryBudgetProperty() {
+        return mergeMemoryBudgetProperty == null ? 0 : mergeMemoryBudgetProperty;
+    }
+
+    public void setMergeMemoryBudgetProperty(Integer mergeMemoryBudgetProperty) {
+        this.mergeMemoryBudgetProperty = mergeMemoryBudgetProperty;
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "Uid Index",
+            groupMessageKey ="XLSX Configuration",
+            helpMessageKey = "Keep an identifier to row index next to the work files so Uid lookups only decode the rows of that account, Default false",
+            order = 13,
+            confidential = false,
+            required = false)
+    public Boolean getUidIndexProperty() {
+        return uidIndexProperty != null && uidIndexProperty;
+    }
+
+    public void setUidIndexProperty(Boolean uidIndexProperty) {
+        this.uidIndexProperty = uidIndexProperty;
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "Work Directory",
+            groupMessageKey ="XLSX Configuration",
+            helpMessageKey = "Directory for the files the connector derives from the export, Default the system temporary directory",
+            order = 14,
+            confidential = false,
+            required = false)
+    public String getWorkDirectoryProperty() {
+        return workDirectoryProperty;
+    }
+
+    public void setWorkDirectoryProperty(String workDirectoryProperty) {
+        this.workDirectoryProperty = workDirectoryProperty;
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "Parallelism",
+            groupMessageKey ="XLSX Configuration",
+            helpMessageKey = "Number of threads formatting the cells of XLSX rows while the sheet is read, Default 1",
+            order = 15,
+            confidential = false,
+            required = false)
+    public Integer getParallelismProperty() {
+        return parallelismProperty;
+    }
+
+    public void setParallelismProperty(Integer parallelismProperty) {
+        this.parallelismProperty = parallelismProperty;
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "Sheet",
+            groupMessageKey ="XLSX Configuration",
+            helpMessageKey = "Name of the sheet holding the accounts, Default the first sheet",
+            order = 16,
+            confidential = false,
+            required = false)
+    public String getSheetProperty() {
+        return sheetProperty;
+    }
+
+    public void setSheetProperty(String sheetProperty) {
+        this.sheetProperty = sheetProperty;
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "Object Class Sheets",
+            groupMessageKey ="XLSX Configuration",
+            helpMessageKey = "Object classes read from their own sheet, one per entry as objectClass:sheet:identifier[:merge columns], e.g. __GROUP__:Groups:name:member",
+            order = 17,
+            confidential = false,
+            required = false)
+    public String[] getObjectClassSheetsProperty() {
+        return objectClassSheetsProperty;
+    }
+
+    public void setObjectClassSheetsProperty(String[] objectClassSheetsProperty) {
+        this.objectClassSheetsProperty = objectClassSheetsProperty;
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "Group Membership Column",
+            groupMessageKey ="XLSX Configuration",
+            helpMessageKey = "Account column naming the groups of the account, groups are derived from it when no sheet is mapped to __GROUP__",
+            order = 18,
+            confidential = false,
+            required = false)
+    public String getGroupMembershipProperty() {
+        return groupMembershipProperty;
+    }
+
+    public void setGroupMembershipProperty(String groupMembershipProperty) {
+        this.groupMembershipProperty = groupMembershipProperty;
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "Multiple Files",
+            groupMessageKey ="XLSX Configuration",
+            helpMessageKey = "Read every file starting with the file name as one source, rows of the same identifier are merged across files, Default false",
+            order = 19,
+            confidential = false,
+            required = false)
+    public Boolean getMultiFileProperty() {
+        return multiFileProperty != null && multiFileProperty;
+    }
+
+    public void setMultiFileProperty(Boolean multiFileProperty) {
+        this.multiFileProperty = multiFileProperty;
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "Newest Files",
+            groupMessageKey ="XLSX Configuration",
+            helpMessageKey = "Only read the given number of most recently modified files starting with the file name, Default 0 for all",
+            order = 20,
+            confidential = false,
+            required = false)
+    public Integer getNewestFilesProperty() {
+        return newestFilesProperty;
+    }
+
+    public void setNewestFilesProperty(Integer newestFilesProperty) {
+        this.newestFilesProperty = newestFilesProperty;
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "Watch Directory",
+            groupMessageKey ="XLSX Configuration",
+            helpMessageKey = "Load new or changed files into the snapshot cache as soon as they are complete, queries then use them without parsing, requires the snapshot cache, Default false",
+            order = 21,
+            confidential = false,
+            required = false)
+    public Boolean getWatchDirectoryProperty() {
+        return watchDirectoryProperty;
+    }
+
+    public void setWatchDirectoryProperty(Boolean watchDirectoryProperty) {
+        this.watchDirectoryProperty = watchDirectoryProperty;
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "Watch Quiet Period",
+            groupMessageKey ="XLSX Configuration",
+            helpMessageKey = "Seconds a changed file must stay unchanged before it is loaded, Default 2",
+            order = 22,
+            confidential = false,
+            required = false)
+    public Integer getWatchQuietPeriodProperty() {
+        return watchQuietPeriodProperty == null ? 2 : watchQuietPeriodProperty;
+    }
+
+    public void setWatchQuietPeriodProperty(Integer watchQuietPeriodProperty) {
+        this.watchQuietPeriodProperty = watchQuietPeriodProperty;
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "Uid Sorted Check",
+            groupMessageKey ="XLSX Configuration",
+            helpMessageKey = "With Uid Sorted, whether identifiers must ascend, numbers by value: none, fail on an identifier out of order, or fallback to merging the whole file by identifier, Default none",
+            order = 23,
+            confidential = false,
+            required = false)
+    public String getUidSortedCheckProperty() {
+        return uidSortedCheckProperty == null ? "none" : uidSortedCheckProperty;
+    }
+
+    public void setUidSortedCheckProperty(String uidSortedCheckProperty) {
+        this.uidSortedCheckProperty = uidSortedCheckProperty;
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "Columnar Snapshot",
+            groupMessageKey ="XLSX Configuration",
+            helpMessageKey = "Keep the merged accounts of the current file in a columnar snapshot in the work directory, so searches read it instead of parsing the file again, accounts are returned ordered by identifier, Default false",
+            order = 24,
+            confidential = false,
+            required = false)
+    public Boolean getColumnarSnapshotProperty() {
+        return columnarSnapshotProperty != null && columnarSnapshotProperty;
+    }
+
+    public void setColumnarSnapshotProperty(Boolean columnarSnapshotProperty) {
+        this.columnarSnapshotProperty = columnarSnapshotProperty;
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "Write Batch Size",
+            groupMessageKey ="XLSX Configuration",
+            helpMessageKey = "Creates, updates and deletes journaled before the file is rewritten with all of them, until then searches and syncs do not see them. Rewrites keep the cells and styles of the other rows, files with formulas are refused, Default 100",
+            order = 25,
+            confidential = false,
+            required = false)
+    public Integer getWriteBatchSizeProperty() {
+        return writeBatchSizeProperty;
+    }
+
+    public void setWriteBatchSizeProperty(Integer writeBatchSizeProperty) {
+        this.writeBatchSizeProperty = writeBatchSizeProperty;
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "Skip Rules",
+            groupMessageKey ="XLSX Configuration",
+            helpMessageKey = "Rows of the account sheet matching any rule are skipped before they are merged, a rule joins conditions column operator value with &&, operators = != ~ !~ < <= > >=, e.g. status = disabled && \"Last Login\" < 2020-01-01",
+            order = 26,
+            confidential = false,
+            required = false)
+    public String[] getSkipRulesProperty() {
+        return skipRulesProperty;
+    }
+
+    public void setSkipRulesProperty(String[] skipRulesProperty) {
+        this.skipRulesProperty = skipRulesProperty;
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "Skip Date Format",
+            groupMessageKey ="XLSX Configuration",
+            helpMessageKey = "Pattern of the dates compared by skip rules, as the cells show them, Default yyyy-MM-dd",
+            order = 27,
+            confidential = false,
+            required = false)
+    public String getSkipDateFormatProperty() {
+        return skipDateFormatProperty == null ? "yyyy-MM-dd" : skipDateFormatProperty;
+    }
+
+    public void setSkipDateFormatProperty(String skipDateFormatProperty) {
+        this.skipDateFormatProperty = skipDateFormatProperty;
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "File Format",
+            groupMessageKey ="XLSX Configuration",
+            helpMessageKey = "Format of the export files, xlsx, xls, csv or tsv, CSV and TSV files may be gzipped, Default taken from the file extension",
+            order = 28,
+            confidential = false,
+            required = false)
+    public String getFileFormatProperty() {
+        return fileFormatProperty;
+    }
+
+    public void setFileFormatProperty(String fileFormatProperty) {
+        this.fileFormatProperty = fileFormatProperty;
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "Async Queue Depth",
+            groupMessageKey ="XLSX Configuration",
+            helpMessageKey = "Objects a search may find ahead of a slow results handler while the file is parsed on a thread of its own, 0 parses on the thread of the handler, Default 0",
+            order = 29,
+            confidential = false,
+            required = false)
+    public Integer getAsyncQueueDepthProperty() {
+        return asyncQueueDepthProperty;
+    }
+
+    public void setAsyncQueueDepthProperty(Integer asyncQueueDepthProperty) {
+        this.asyncQueueDepthProperty = asyncQueueDepthProperty;
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "Write Interval",
+            groupMessageKey ="XLSX Configuration",
+            helpMessageKey = "Seconds a smaller batch of changes stays journaled, it is written by the next operation after that, 0 waits for a full batch, Default 60",
+            order = 30,
+            confidential = false,
+            required = false)
+    public Integer getWriteIntervalProperty() {
+        return writeIntervalProperty;
+    }
+
+    public void setWriteIntervalProperty(Integer writeIntervalProperty) {
+        this.writeIntervalProperty = writeIntervalProperty;
+    }
+
+    @ConfigurationProperty(
+            displayMessageKey = "Write Before Read",
+            groupMessageKey ="XLSX Configuration",
+            helpMessageKey = "Searches and syncs write the pending changes first so they see them, each costs a rewrite of the file after a change, Default false",
+            order = 31,
+            confidential = false,
+            required = false)
+    public Boolean getWriteBeforeReadProperty() {
+        return writeBeforeReadProperty != null && writeBeforeReadProperty;
+    }
+
+    public void setWriteBeforeReadProperty(Boolean writeBeforeReadProperty) {
+        this.writeBeforeReadProperty = writeBeforeReadProperty;
+    }
 }
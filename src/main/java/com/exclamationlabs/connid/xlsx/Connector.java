@@ -18,29 +18,41 @@ package com.exclamationlabs.connid.xlsx;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.function.Function;
 
+import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
 import org.identityconnectors.framework.common.objects.*;
-import org.identityconnectors.framework.common.objects.filter.AbstractFilterTranslator;
 import org.identityconnectors.framework.common.objects.filter.FilterTranslator;
 import org.identityconnectors.framework.spi.ConnectorClass;
+import org.identityconnectors.framework.spi.operations.CreateOp;
+import org.identityconnectors.framework.spi.operations.DeleteOp;
+import org.identityconnectors.framework.spi.operations.SPIOperation;
 import org.identityconnectors.framework.spi.operations.SchemaOp;
 import org.identityconnectors.framework.spi.operations.SearchOp;
+import org.identityconnectors.framework.spi.operations.SyncOp;
 import org.identityconnectors.framework.spi.operations.TestOp;
+import org.identityconnectors.framework.spi.operations.UpdateOp;
 
 /**
  * This sample connector provides (empty) implementations for all ConnId operations, but this is not mandatory: any
  * connector can choose which operations are actually to be implemented.
  */
 @ConnectorClass(configurationClass = Configuration.class, displayNameKey = "xlsx.connector.display")
-public class Connector implements org.identityconnectors.framework.spi.Connector, SchemaOp, TestOp, SearchOp<Filter> {
+public class Connector implements org.identityconnectors.framework.spi.Connector, SchemaOp, TestOp, SearchOp<Filter>,
+        SyncOp, CreateOp, UpdateOp, DeleteOp {
 
     private static final Log LOG = Log.getLog(Connector.class);
 
     private Configuration configuration;
 
-    private ReadHandler readHandler;
+    private Map<ObjectClass, ReadHandler> readHandlers;
+
+    private Map<ObjectClass, Configuration> configurations;
+
+    private DirectoryWatcher watcher;
 
     @Override
     public Configuration getConfiguration() {
@@ -50,72 +62,184 @@ public class Connector implements org.identityconnectors.framework.spi.Connector
     @Override
     public void init(final org.identityconnectors.framework.spi.Configuration configuration) {
         this.configuration = (Configuration) configuration;
-        String filePath = ((Configuration) configuration).getFilePath();
 
+        this.configurations = new LinkedHashMap<>();
+        this.configurations.put(ObjectClass.ACCOUNT, this.configuration);
+        for (SheetMapping mapping : this.configuration.getSheetMappings()) {
+            this.configurations.put(mapping.getObjectClass(), this.configuration.forSheet(mapping));
+        }
+        this.readHandlers = createReadHandlers(this.configuration, this.configurations);
+
+        if (Boolean.TRUE.equals(this.configuration.getWatchDirectoryProperty())) {
+            this.watcher = watch(this.configuration, this.configurations);
+        }
+
+        LOG.ok("Connector {0} successfully inited", getClass().getName());
+    }
+
+    /**
+     * The set of files is resolved here, files rotated in later are only read by handlers created
+     * after them.
+     */
+    private static Map<ObjectClass, ReadHandler> createReadHandlers(Configuration configuration,
+                                                                    Map<ObjectClass, Configuration> configurations) {
+        List<String> filePaths = configuration.getFilePaths();
+        boolean includesHeader = configuration.getIncludesHeaderProperty();
+
+        Map<ObjectClass, ReadHandler> handlers = new LinkedHashMap<>();
+        // each object class streams only its own sheet
+        configurations.forEach((objectClass, sheetConfiguration) -> handlers.put(objectClass,
+            new ReadHandler(filePaths, sheetConfiguration.getSheetProperty(), objectClass, includesHeader,
+                configuration.getFileFormatProperty())));
+        return handlers;
+    }
+
+    /**
+     * Connector instances only live for one operation, the watcher is shared by every instance
+     * reading the same files with the same settings. It outlives them for the snapshot idle
+     * timeout, snapshots it preloads later would be evicted before an operation used them.
+     */
+    private static DirectoryWatcher watch(Configuration configuration, Map<ObjectClass, Configuration> configurations) {
+        StringBuilder settings = new StringBuilder(configuration.getMultiFileProperty() + "|"
+            + configuration.getNewestFilesProperty());
+        configurations.forEach((objectClass, sheetConfiguration) -> settings.append('|')
+            .append(objectClass.getObjectClassValue()).append('|').append(ReadHandler.parseSettings(sheetConfiguration)));
         try {
-            this.readHandler = new ReadHandler(filePath);
+            return DirectoryWatcher.watch(configuration.getDirectoryPathProperty(), configuration.getFileNameProperty(),
+                settings.toString(), configuration.getWatchQuietPeriodProperty() * 1000L,
+                configuration.getSnapshotIdleTimeoutProperty() * 1000L, () -> preload(configuration, configurations));
         } catch (IOException e) {
-            throw new ConnectorIOException(e);
+            throw new ConnectorIOException("Unable to watch " + configuration.getDirectoryPathProperty(), e);
         }
+    }
 
-        LOG.ok("Connector {0} successfully inited", getClass().getName());
+    /**
+     * Called by the watcher once changed files are complete, parses them into the snapshot cache
+     * so the next operation finds them loaded. Operations running meanwhile hold on to the
+     * snapshot of the files they started with.
+     */
+    private static void preload(Configuration configuration, Map<ObjectClass, Configuration> configurations) {
+        Map<ObjectClass, ReadHandler> handlers = createReadHandlers(configuration, configurations);
+        try {
+            handlers.forEach((objectClass, readHandler) -> readHandler.preload(configurations.get(objectClass)));
+        } finally {
+            closeReadHandlers(handlers);
+        }
+    }
+
+    private static void closeReadHandlers(Map<ObjectClass, ReadHandler> handlers) {
+        handlers.forEach(Connector::closeReader);
+    }
+
+    /**
+     * A reader failing to close is left to the garbage collector, it holds no changes.
+     */
+    private static void closeReader(ObjectClass objectClass, ReadHandler readHandler) {
+        try {
+            readHandler.closeReader();
+        } catch (IOException e) {
+            LOG.warn(e, "Unable to close the reader of {0}", objectClass.getObjectClassValue());
+        }
     }
 
     @Override
     public void dispose(){
-        try {
-			readHandler.closeReader();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-        readHandler = null;
+        if (watcher != null) {
+            watcher.release();
+            watcher = null;
+        }
+        if (readHandlers == null) {
+            return;
+        }
+        closeReadHandlers(readHandlers);
+        readHandlers = null;
     }
 
     @Override
     public void test() {
 
-        if (readHandler != null) {
-            try {
-				readHandler.closeReader();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-        }
+        for (Map.Entry<ObjectClass, ReadHandler> entry : readHandlers.entrySet()) {
+            ReadHandler readHandler = entry.getValue();
+            closeReader(entry.getKey(), readHandler);
 
-        try {
-            readHandler.openReader();
-        } catch (IOException e) {
-            throw new ConnectorIOException("Unable to open XLSX ReadHandler");
+            try {
+                readHandler.openReader();
+            } catch (IOException e) {
+                throw new ConnectorIOException("Unable to open XLSX ReadHandler");
+            }
+            Configuration sheetConfiguration = configurations.get(entry.getKey());
+            List<String> heading = Arrays.asList(readHandler.getHeading(sheetConfiguration.getIncludesHeaderProperty()));
+            SkipRules.compile(sheetConfiguration.getSkipRulesProperty(), sheetConfiguration.getSkipDateFormatProperty())
+                .bind(heading::indexOf, -1, null);
         }
     }
 
     @Override
     public Schema schema() {
         SchemaBuilder schemaBuilder = new SchemaBuilder(Connector.class);
-        ObjectClassInfoBuilder objectClassBuilderUser = new ObjectClassInfoBuilder();
+
+        readHandlers.forEach((objectClass, readHandler) ->
+            schemaBuilder.defineObjectClass(objectClassInfo(objectClass, configurations.get(objectClass), readHandler)));
+
+        if (isDerivedGroup(ObjectClass.GROUP)) {
+            ObjectClassInfoBuilder objectClassBuilderGroup = new ObjectClassInfoBuilder();
+            objectClassBuilderGroup.setType(ObjectClass.GROUP_NAME);
+            objectClassBuilderGroup.addAttributeInfo(
+                identifierInfoBuilder(Uid.NAME, configuration.getGroupMembershipProperty()));
+            objectClassBuilderGroup.addAttributeInfo(
+                identifierInfoBuilder(Name.NAME, configuration.getGroupMembershipProperty()));
+            ObjectClassInfo groupInfo = objectClassBuilderGroup.build();
+            schemaBuilder.defineObjectClass(groupInfo);
+            // derived groups only exist as values of the accounts
+            schemaBuilder.removeSupportedObjectClass(CreateOp.class, groupInfo);
+            schemaBuilder.removeSupportedObjectClass(UpdateOp.class, groupInfo);
+            schemaBuilder.removeSupportedObjectClass(DeleteOp.class, groupInfo);
+        }
+
+        Set<Class<? extends SPIOperation>> reads = new HashSet<>(Arrays.asList(SearchOp.class, SyncOp.class));
+        Set<Class<? extends SPIOperation>> searches = Collections.singleton(SearchOp.class);
+        defineOperationOption(schemaBuilder, OperationOptionInfoBuilder.buildAttributesToGet(), reads);
+        defineOperationOption(schemaBuilder, OperationOptionInfoBuilder.buildPageSize(), searches);
+        defineOperationOption(schemaBuilder, OperationOptionInfoBuilder.buildPagedResultsCookie(), searches);
+        defineOperationOption(schemaBuilder, OperationOptionInfoBuilder.buildPagedResultsOffset(), searches);
+
+        return schemaBuilder.build();
+    }
+
+    /**
+     * The framework only takes the operations as varargs, the one array of a generic type is
+     * created here.
+     */
+    @SuppressWarnings("unchecked")
+    private static void defineOperationOption(SchemaBuilder schemaBuilder, OperationOptionInfo option,
+                                              Set<Class<? extends SPIOperation>> operations) {
+        schemaBuilder.defineOperationOption(option, (Class<? extends SPIOperation>[]) operations.toArray(new Class<?>[0]));
+    }
+
+    private ObjectClassInfo objectClassInfo(ObjectClass objectClass, Configuration configuration,
+                                            ReadHandler readHandler) {
+        ObjectClassInfoBuilder objectClassBuilder = new ObjectClassInfoBuilder();
 
         List<String> mergeProperty = Arrays.asList(configuration.getMergeProperty()
             .split(configuration.getMultivalueDelimiter())
         );
 
-        objectClassBuilderUser.setType(ObjectClass.ACCOUNT_NAME);
-        objectClassBuilderUser.addAttributeInfo(
+        objectClassBuilder.setType(objectClass.getObjectClassValue());
+        objectClassBuilder.addAttributeInfo(
             identifierInfoBuilder(Uid.NAME, configuration.getIdentifierProperty()));
-        objectClassBuilderUser.addAttributeInfo(
+        objectClassBuilder.addAttributeInfo(
             identifierInfoBuilder(Name.NAME, configuration.getIdentifierProperty()));
 
         for (String colName: readHandler.getHeading(configuration.getIncludesHeaderProperty())) {
             if(!(colName.equals(configuration.getIdentifierProperty()))){
                 if(mergeProperty.contains(colName)){
-                    objectClassBuilderUser.addAttributeInfo(
+                    objectClassBuilder.addAttributeInfo(
                         AttributeInfoBuilder.build(colName,
                             String.class,
                             EnumSet.of(AttributeInfo.Flags.MULTIVALUED))
                     );
                 }else{
-                    objectClassBuilderUser.addAttributeInfo(
+                    objectClassBuilder.addAttributeInfo(
                         AttributeInfoBuilder.build(colName,
                             String.class)
                     );
@@ -123,20 +247,25 @@ public class Connector implements org.identityconnectors.framework.spi.Connector
             }
         }
 
-        ObjectClassInfo userOci = objectClassBuilderUser.build();
-        schemaBuilder.defineObjectClass(userOci);
+        return objectClassBuilder.build();
+    }
 
-//        ObjectClassInfoBuilder objectClassBuilderGroup = new ObjectClassInfoBuilder();
-//        objectClassBuilderGroup.setType(ObjectClass.GROUP_NAME);
-//        objectClassBuilderGroup.addAttributeInfo(infoBuilder(Uid.NAME,configuration.getIdentifierProperty()));
-//        objectClassBuilderGroup.addAttributeInfo(infoBuilder(Name.NAME,configuration.getIdentifierProperty()));
-//
-//        ObjectClassInfo groupOci = objectClassBuilderGroup.build();
-//        schemaBuilder.defineObjectClass(groupOci);
-//
-//        schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildAttributesToGet(), SearchOp.class);
+    /**
+     * @return true for groups derived from the membership column of the accounts, which is the
+     *         case when no sheet is mapped to them
+     */
+    private boolean isDerivedGroup(ObjectClass objectClass) {
+        return objectClass.equals(ObjectClass.GROUP) && !readHandlers.containsKey(ObjectClass.GROUP)
+            && !StringUtil.isBlank(configuration.getGroupMembershipProperty());
+    }
 
-        return schemaBuilder.build();
+    private ReadHandler readHandler(ObjectClass objectClass, String operation) {
+        ReadHandler readHandler = readHandlers.get(objectClass);
+        if (readHandler == null) {
+            LOG.info("Unsupported objectClass {0} passed to {1}", objectClass.getDisplayNameKey(), operation);
+            throw new IllegalArgumentException("Unsupported object class "+objectClass.getDisplayNameKey());
+        }
+        return readHandler;
     }
 
     private AttributeInfo identifierInfoBuilder(String name, String nativeName){
@@ -151,8 +280,7 @@ public class Connector implements org.identityconnectors.framework.spi.Connector
             final ObjectClass objectClass,
             final OperationOptions options) {
 
-        return new AbstractFilterTranslator<Filter>() {
-        };
+        return new XlsxFilterTranslator();
     }
 
     @Override
@@ -162,47 +290,153 @@ public class Connector implements org.identityconnectors.framework.spi.Connector
             final ResultsHandler handler,
             final OperationOptions options) {
 
-        if (objectClass.equals(ObjectClass.ACCOUNT)) {
-            readHandler.getAccounts(configuration, handler);
-
+        commitPendingWrites();
+        Integer queueDepth = configuration.getAsyncQueueDepthProperty();
+        if (queueDepth != null && queueDepth > 0) {
+            AsyncQuery.run(queueDepth, handler, queued -> query(objectClass, query, queued, options));
+        } else {
+            query(objectClass, query, handler, options);
         }
-//        else if (objectClass.equals(ObjectClass.GROUP)) {
-//            for (ConnectorObject groupConnectorObject : getConnectorObjectListOfGroups()) {
-//                handler.handle(groupConnectorObject);
-//            }
-//        }
-        else {
-            LOG.info("Unsupported objectClass {0} passed to query", objectClass.getDisplayNameKey());
-            throw new IllegalArgumentException("Unsupported object class "+objectClass.getDisplayNameKey());
+    }
+
+    private void query(ObjectClass objectClass, Filter query, ResultsHandler handler, OperationOptions options) {
+        if (isDerivedGroup(objectClass)) {
+            readHandlers.get(ObjectClass.ACCOUNT).getGroups(configuration, query, handler);
+        } else {
+            readHandler(objectClass, "query").getAccounts(configurations.get(objectClass), query, options, handler);
         }
+    }
 
+    @Override
+    public void sync(
+            final ObjectClass objectClass,
+            final SyncToken token,
+            final SyncResultsHandler handler,
+            final OperationOptions options) {
+
+        commitPendingWrites();
+        readHandler(objectClass, "sync").sync(configurations.get(objectClass), token, options, handler);
     }
 
+    @Override
+    public SyncToken getLatestSyncToken(final ObjectClass objectClass) {
+        commitPendingWrites();
+        return readHandler(objectClass, "getLatestSyncToken").getLatestSyncToken(configurations.get(objectClass));
+    }
 
-    private ConnectorObject getGroupConnectorObjectFromAccount(String groupName) {
-        ConnectorObjectBuilder cob = new ConnectorObjectBuilder();
-        cob.setName(groupName);
-        cob.setUid(groupName);
-        cob.setObjectClass(ObjectClass.GROUP);
+    @Override
+    public Uid create(
+            final ObjectClass objectClass,
+            final Set<Attribute> createAttributes,
+            final OperationOptions options) {
 
-        return cob.build();
+        return write(objectClass, "create", writeHandler -> writeHandler.create(createAttributes));
     }
 
-//    private List<ConnectorObject> getConnectorObjectListOfGroups() {
-//        Collection<Account> groups;
-//        List<ConnectorObject> connectorObjects = new ArrayList<>();
-//
-//        groups = readHandler.getAccounts(configuration);
-//        Set<String> groupNames = new HashSet<>();
-//
-//        for (Account account : groups) {
-//            for (String group : account.getGroups()) {
-//                if (groupNames.add(group)) {
-//                    connectorObjects.add(getGroupConnectorObjectFromAccount(group));
-//                }
-//            }
-//        }
-//
-//        return connectorObjects;
-//    }
+    @Override
+    public Uid update(
+            final ObjectClass objectClass,
+            final Uid uid,
+            final Set<Attribute> replaceAttributes,
+            final OperationOptions options) {
+
+        return write(objectClass, "update", writeHandler -> writeHandler.update(uid, replaceAttributes));
+    }
+
+    @Override
+    public void delete(
+            final ObjectClass objectClass,
+            final Uid uid,
+            final OperationOptions options) {
+
+        write(objectClass, "delete", writeHandler -> {
+            writeHandler.delete(uid);
+            return uid;
+        });
+    }
+
+    /**
+     * Journals the change and rewrites the file once the journal holds a batch, or its oldest
+     * change is older than the write interval.
+     */
+    private Uid write(ObjectClass objectClass, String operation, Function<WriteHandler, Uid> change) {
+        if (isDerivedGroup(objectClass)) {
+            throw new IllegalArgumentException("Unsupported object class " + objectClass.getDisplayNameKey());
+        }
+        ReadHandler readHandler = readHandler(objectClass, operation);
+        WriteJournal journal = writeJournal();
+        synchronized (journal) {
+            Uid uid = change.apply(new WriteHandler(journal, configurations.get(objectClass), readHandler, objectClass));
+            if (journal.size() >= configuration.getWriteBatchSizeProperty() || isDue(journal)) {
+                commit(journal);
+            }
+            return uid;
+        }
+    }
+
+    private WriteJournal writeJournal() {
+        if (configuration.getMultiFileProperty()) {
+            throw new ConnectorException("Writes need a single export file, multiple files are configured");
+        }
+        String filePath = configuration.getFilePath();
+        if (!ReadHandler.fileFormat(filePath, configuration.getFileFormatProperty()).equals("xlsx")) {
+            throw new ConnectorException("Writes are only supported for XLSX files");
+        }
+        try {
+            return WriteJournal.of(filePath, ReadHandler.workDirectory(configuration));
+        } catch (IOException e) {
+            throw new ConnectorIOException(e);
+        }
+    }
+
+    /**
+     * Writes the changes journaled by earlier writes before a read when it is to see them, or once
+     * they are older than the write interval. A failing rewrite leaves them
+     * journaled and the read is served from the file as it is.
+     */
+    private void commitPendingWrites() {
+        if (configuration.getMultiFileProperty()) {
+            return;
+        }
+        try {
+            WriteJournal journal = WriteJournal.pending(configuration.getFilePath(),
+                ReadHandler.workDirectory(configuration));
+            if (journal != null) {
+                synchronized (journal) {
+                    if (configuration.getWriteBeforeReadProperty() || isDue(journal)) {
+                        commit(journal);
+                    }
+                }
+            }
+        } catch (IOException | ConnectorIOException e) {
+            LOG.warn(e, "Unable to write pending changes of {0}", configuration.getFilePath());
+        }
+    }
+
+    private boolean isDue(WriteJournal journal) {
+        Integer interval = configuration.getWriteIntervalProperty();
+        return interval != null && interval > 0 && journal.size() > 0
+            && System.currentTimeMillis() - journal.getPendingSince() >= interval * 1000L;
+    }
+
+    /**
+     * Rewrites the file with the pending changes of every sheet. The readers of this instance are
+     * closed first, they open the new version when they are used again.
+     */
+    private void commit(WriteJournal journal) {
+        if (journal.size() == 0) {
+            return;
+        }
+        Map<String, Configuration> sheetConfigurations = new HashMap<>();
+        configurations.values().forEach(sheetConfiguration -> sheetConfigurations.put(
+            WriteJournal.sheetKey(sheetConfiguration.getSheetProperty()), sheetConfiguration));
+        closeReadHandlers(readHandlers);
+        try {
+            WorkbookRewriter.rewrite(journal.getFilePath(), journal.getChanges(), sheetConfigurations);
+            journal.committed(FileFingerprint.of(journal.getFilePath()));
+        } catch (IOException e) {
+            throw new ConnectorIOException("Unable to write " + journal.getFilePath(), e);
+        }
+        LOG.ok("Wrote pending changes to {0}", journal.getFilePath());
+    }
 }
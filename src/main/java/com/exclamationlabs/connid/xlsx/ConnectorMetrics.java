@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import org.identityconnectors.common.logging.Log;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process wide totals of the {@link QueryMetrics} of every read, registered with the platform
+ * MBean server on first use so they can be watched and alerted on from the connector server.
+ */
+public class ConnectorMetrics implements ConnectorMetricsMBean {
+
+    public static final String OBJECT_NAME = "com.exclamationlabs.connid.xlsx:type=ConnectorMetrics";
+
+    private static final Log LOG = Log.getLog(ConnectorMetrics.class);
+
+    private static final ConnectorMetrics INSTANCE = register(new ConnectorMetrics());
+
+    private final LongAdder parses = new LongAdder();
+    private final LongAdder openNanos = new LongAdder();
+    private final LongAdder rowsRead = new LongAdder();
+    private final LongAdder rowsIgnored = new LongAdder();
+    private final LongAdder rowsMerged = new LongAdder();
+    private final LongAdder accountsEmitted = new LongAdder();
+    private final LongAdder decodeNanos = new LongAdder();
+    private final LongAdder mergeNanos = new LongAdder();
+    private final LongAdder emitNanos = new LongAdder();
+    private final LongAdder handlerNanos = new LongAdder();
+    private final LongAdder sortedFallbacks = new LongAdder();
+    private final LongAdder spilledRuns = new LongAdder();
+    private final LongAdder snapshotCacheHits = new LongAdder();
+    private final LongAdder snapshotCacheMisses = new LongAdder();
+    private final LongAdder columnarSnapshotHits = new LongAdder();
+    private final LongAdder columnarSnapshotMisses = new LongAdder();
+    private final AtomicLong lastRowsPerSecond = new AtomicLong();
+    private final AtomicLong maxAccountsInMemory = new AtomicLong();
+    private final AtomicLong lastHeapUsedBytes = new AtomicLong();
+
+    public static ConnectorMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    private static ConnectorMetrics register(ConnectorMetrics metrics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(OBJECT_NAME));
+        } catch (JMException | SecurityException e) {
+            LOG.warn(e, "Unable to register {0}", OBJECT_NAME);
+        }
+        return metrics;
+    }
+
+    void record(QueryMetrics query) {
+        if (query.readNanos > 0) {
+            parses.increment();
+            decodeNanos.add(query.readNanos - query.rowNanos);
+            lastRowsPerSecond.set(query.rowsRead * TimeUnit.SECONDS.toNanos(1) / query.readNanos);
+            lastHeapUsedBytes.set(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        }
+        openNanos.add(query.openNanos);
+        rowsRead.add(query.rowsRead);
+        rowsIgnored.add(query.rowsIgnored);
+        rowsMerged.add(query.rowsMerged);
+        accountsEmitted.add(query.accountsEmitted);
+        mergeNanos.add(Math.max(query.rowNanos + query.finishNanos - query.emitNanos, 0));
+        emitNanos.add(query.emitNanos);
+        handlerNanos.add(query.handlerNanos);
+        sortedFallbacks.add(query.sortedFallbacks);
+        maxAccountsInMemory.accumulateAndGet(query.accountsHeld, Math::max);
+    }
+
+    void runSpilled() {
+        spilledRuns.increment();
+    }
+
+    void snapshotCacheHit() {
+        snapshotCacheHits.increment();
+    }
+
+    void snapshotCacheMiss() {
+        snapshotCacheMisses.increment();
+    }
+
+    void columnarSnapshotHit() {
+        columnarSnapshotHits.increment();
+    }
+
+    void columnarSnapshotMiss() {
+        columnarSnapshotMisses.increment();
+    }
+
+    @Override
+    public long getParses() {
+        return parses.sum();
+    }
+
+    @Override
+    public long getOpenTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(openNanos.sum());
+    }
+
+    @Override
+    public long getRowsRead() {
+        return rowsRead.sum();
+    }
+
+    @Override
+    public long getRowsIgnored() {
+        return rowsIgnored.sum();
+    }
+
+    @Override
+    public long getRowsMerged() {
+        return rowsMerged.sum();
+    }
+
+    @Override
+    public long getAccountsEmitted() {
+        return accountsEmitted.sum();
+    }
+
+    @Override
+    public long getDecodeTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(decodeNanos.sum());
+    }
+
+    @Override
+    public long getMergeTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mergeNanos.sum());
+    }
+
+    @Override
+    public long getEmitTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(emitNanos.sum());
+    }
+
+    @Override
+    public long getHandlerTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(handlerNanos.sum());
+    }
+
+    @Override
+    public long getSortedFallbacks() {
+        return sortedFallbacks.sum();
+    }
+
+    @Override
+    public long getSpilledRuns() {
+        return spilledRuns.sum();
+    }
+
+    @Override
+    public long getSnapshotCacheHits() {
+        return snapshotCacheHits.sum();
+    }
+
+    @Override
+    public long getSnapshotCacheMisses() {
+        return snapshotCacheMisses.sum();
+    }
+
+    @Override
+    public long getColumnarSnapshotHits() {
+        return columnarSnapshotHits.sum();
+    }
+
+    @Override
+    public long getColumnarSnapshotMisses() {
+        return columnarSnapshotMisses.sum();
+    }
+
+    @Override
+    public long getLastRowsPerSecond() {
+        return lastRowsPerSecond.get();
+    }
+
+    @Override
+    public long getMaxAccountsInMemory() {
+        return maxAccountsInMemory.get();
+    }
+
+    @Override
+    public long getLastHeapUsedBytes() {
+        return lastHeapUsedBytes.get();
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder adder : new LongAdder[]{parses, openNanos, rowsRead, rowsIgnored, rowsMerged,
+                accountsEmitted, decodeNanos, mergeNanos, emitNanos, handlerNanos, sortedFallbacks, spilledRuns,
+                snapshotCacheHits, snapshotCacheMisses, columnarSnapshotHits, columnarSnapshotMisses}) {
+            adder.reset();
+        }
+        lastRowsPerSecond.set(0);
+        maxAccountsInMemory.set(0);
+        lastHeapUsedBytes.set(0);
+    }
+}
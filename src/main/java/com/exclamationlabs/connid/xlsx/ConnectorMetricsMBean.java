@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+/**
+ * Totals over every read of the connectors in this process, published as
+ * {@value ConnectorMetrics#OBJECT_NAME}. Times are in milliseconds.
+ */
+public interface ConnectorMetricsMBean {
+
+    /**
+     * @return number of full or partial reads of an export file
+     */
+    long getParses();
+
+    /**
+     * @return time spent opening files and reading their heading
+     */
+    long getOpenTimeMillis();
+
+    long getRowsRead();
+
+    /**
+     * @return rows skipped by the ignore rule
+     */
+    long getRowsIgnored();
+
+    /**
+     * @return rows merged into an account started by an earlier row
+     */
+    long getRowsMerged();
+
+    long getAccountsEmitted();
+
+    /**
+     * @return time spent parsing and decoding cells, outside of the merge
+     */
+    long getDecodeTimeMillis();
+
+    /**
+     * @return time spent merging rows into accounts
+     */
+    long getMergeTimeMillis();
+
+    /**
+     * @return time spent handing out accounts, including building the connector objects
+     */
+    long getEmitTimeMillis();
+
+    /**
+     * @return time spent blocked in the results handlers of searches
+     */
+    long getHandlerTimeMillis();
+
+    /**
+     * @return sorted reads that found identifiers out of order and fell back to a spilling merge
+     */
+    long getSortedFallbacks();
+
+    /**
+     * @return runs merges spilled to the work directory because their rows exceeded the memory budget
+     */
+    long getSpilledRuns();
+
+    long getSnapshotCacheHits();
+
+    long getSnapshotCacheMisses();
+
+    /**
+     * @return searches served from a current columnar snapshot without parsing the file
+     */
+    long getColumnarSnapshotHits();
+
+    /**
+     * @return searches that found no current columnar snapshot and built it
+     */
+    long getColumnarSnapshotMisses();
+
+    /**
+     * @return rows read per second by the last read
+     */
+    long getLastRowsPerSecond();
+
+    /**
+     * @return the most accounts held in memory at once by an unsorted merge
+     */
+    long getMaxAccountsInMemory();
+
+    /**
+     * @return heap in use right after the last read, a rough upper bound of what it needed
+     */
+    long getLastHeapUsedBytes();
+
+    void reset();
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.exclamationlabs.connid.xlsx;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streams the records of a CSV or TSV file as rows, one record per row and one field per column.
+ * Fields may be quoted with doubled quotes inside, quoted fields may span lines. Files starting
+ * with the gzip magic bytes are decompressed while they are read, whatever their name.
+ */
+public class DelimitedReader implements SheetReader {
+
+    private static final int BUFFER = 1 << 16;
+
+    private static final String[] BLANK = {};
+
+    private final String filePath;
+
+    private final String sheetName;
+
+    private final char delimiter;
+
+    /**
+     * @param sheetName must be null, a delimited file has a single sheet
+     * @param delimiter separates the fields of a record, ',' for CSV and '\t' for TSV
+     */
+    public DelimitedReader(String filePath, String sheetName, char delimiter) {
+        this.filePath = filePath;
+        this.sheetName = sheetName;
+        this.delimiter = delimiter;
+    }
+
+    @Override
+    public void open() throws IOException {
+        if (this.sheetName != null) {
+            throw new IOException("No sheet " + this.sheetName + " in " + this.filePath
+                + ", delimited files hold a single sheet");
+        }
+    }
+
+    /**
+     * Blank lines are counted as rows but never handed out, like rows missing from a sheet.
+     */
+    @Override
+    public void readRows(RowHandler handler) throws IOException {
+        open();
+        try (Reader in = openStream()) {
+            Records records = new Records(in, this.delimiter);
+            for (int rowNum = 0; ; rowNum++) {
+                boolean wanted = handler.wantsRow(rowNum);
+                String[] cells = records.next(wanted ? handler : null);
+                if (cells == null) {
+                    return;
+                }
+                if (!wanted || cells == BLANK) {
+                    continue;
+                }
+                RowFilter filter = handler.rowFilter();
+                if (filter != null && filter.rejects(col -> col < cells.length ? cells[col] : null)) {
+                    continue;
+                }
+                if (!handler.handle(rowNum, cells)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public String[] readHeader() throws IOException {
+        String[][] header = {new String[0]};
+        readRows((rowNum, cells) -> {
+            header[0] = cells;
+            return false;
+        });
+        return header[0];
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private Reader openStream() throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(this.filePath), BUFFER);
+        try {
+            in.mark(2);
+            boolean gzip = in.read() == 0x1f && in.read() == 0x8b;
+            in.reset();
+            if (gzip) {
+                in = new GZIPInputStream(in, BUFFER);
+            }
+            return new InputStreamReader(in, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Splits the characters of a file into records, only building the strings of wanted fields.
+     */
+    private static final class Records {
+
+        private final Reader in;
+
+        private final char delimiter;
+
+        private final char[] buffer = new char[BUFFER];
+
+        private int pos;
+
+        private int limit;
+
+        private final StringBuilder field = new StringBuilder();
+
+        private final List<String> cells = new ArrayList<>();
+
+        private boolean started;
+
+        Records(Reader in, char delimiter) {
+            this.in = in;
+            this.delimiter = delimiter;
+        }
+
+        /**
+         * @param handler decides the columns to keep, null skips the record
+         * @return the cells of the next record indexed by column, empty fields are null unless
+         *         quoted, {@link #BLANK} for a blank line, null at the end of the file
+         */
+        String[] next(RowHandler handler) throws IOException {
+            int c = read();
+            if (!started) {
+                started = true;
+                if (c == '\uFEFF') {
+                    // byte order mark
+                    c = read();
+                }
+            }
+            if (c < 0) {
+                return null;
+            }
+            if (c == '\n' || c == '\r') {
+                endLine(c);
+                return BLANK;
+            }
+            cells.clear();
+            for (int col = 0; ; col++) {
+                boolean wanted = handler != null && handler.wantsColumn(col);
+                field.setLength(0);
+                boolean quoted = c == '"';
+                if (quoted) {
+                    while ((c = read()) >= 0) {
+                        if (c == '"' && (c = read()) != '"') {
+                            break;
+                        }
+                        if (wanted) {
+                            field.append((char) c);
+                        }
+                    }
+                }
+                // text after a closing quote is kept as it is
+                while (c >= 0 && c != delimiter && c != '\n' && c != '\r') {
+                    if (wanted) {
+                        field.append((char) c);
+                    }
+                    c = read();
+                }
+                if (wanted) {
+                    while (cells.size() < col) {
+                        cells.add(null);
+                    }
+                    cells.add(quoted || field.length() > 0 ? field.toString() : null);
+                }
+                if (c != delimiter) {
+                    endLine(c);
+                    return cells.toArray(new String[0]);
+                }
+                c = read();
+            }
+        }
+
+        private void endLine(int c) throws IOException {
+            if (c == '\r' && peek() == '\n') {
+                pos++;
+            }
+        }
+
+        private int read() throws IOException {
+            int c = peek();
+            if (c >= 0) {
+                pos++;
+            }
+            return c;
+        }
+
+        private int peek() throws IOException {
+            if (pos == limit) {
+                limit = Math.max(in.read(buffer, 0, buffer.length), 0);
+                pos = 0;
+                if (limit == 0) {
+                    return -1;
+                }
+            }
+            return buffer[pos];
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the export directory for files starting with the configured name on a daemon thread.
+ * Once such a file was created, modified or renamed into place and then neither an event arrived
+ * nor the size or modification time of a matching file changed for the quiet period, the
+ * listener is called on the watcher thread. A listener failing, for example on a file that is
+ * still incomplete, is logged and called again after the next change. Watchers are process wide,
+ * one per directory, file name and settings, and counted by the connector instances using them.
+ * Once the last one released it, a watcher keeps watching for its linger time, instances only
+ * live for one operation, and then stops its thread and closes its watch service.
+ */
+public class DirectoryWatcher {
+
+    private static final Log LOG = Log.getLog(DirectoryWatcher.class);
+
+    private static final Map<String, DirectoryWatcher> WATCHERS = new HashMap<>();
+
+    public interface Listener {
+        void changed() throws Exception;
+    }
+
+    private final Path directory;
+
+    private final String prefix;
+
+    private final long quietMillis;
+
+    private final Listener listener;
+
+    private final WatchService watchService;
+
+    private final Thread thread;
+
+    private final String key;
+
+    private final long lingerMillis;
+
+    private int users;
+
+    private long releasedAt;
+
+    /**
+     * Starts watching unless a watcher for the same directory, file name and settings is running,
+     * the caller releases the watcher returned once it no longer needs it.
+     *
+     * @param settings tells watchers of the same files apart whose listeners load them differently
+     * @param lingerMillis how long the watcher runs on after the last release, 0 stops it right away
+     */
+    public static synchronized DirectoryWatcher watch(String directory, String prefix, String settings,
+                                                      long quietMillis, long lingerMillis, Listener listener)
+            throws IOException {
+        String key = new File(directory).getCanonicalPath() + "|" + prefix + "|" + settings;
+        DirectoryWatcher watcher = WATCHERS.get(key);
+        if (watcher == null) {
+            watcher = new DirectoryWatcher(key, directory, prefix, quietMillis, lingerMillis, listener);
+            WATCHERS.put(key, watcher);
+        }
+        watcher.users++;
+        return watcher;
+    }
+
+    /**
+     * @return whether a watcher of the directory is running
+     */
+    static synchronized boolean isWatching(String directory) throws IOException {
+        String path = new File(directory).getCanonicalPath() + "|";
+        return WATCHERS.keySet().stream().anyMatch(key -> key.startsWith(path));
+    }
+
+    DirectoryWatcher(String key, String directory, String prefix, long quietMillis, long lingerMillis,
+                     Listener listener) throws IOException {
+        this.key = key;
+        this.directory = Paths.get(directory);
+        this.prefix = prefix;
+        this.quietMillis = quietMillis;
+        this.lingerMillis = lingerMillis;
+        this.listener = listener;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.directory.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        this.thread = new Thread(this::run, "xlsx-watch-" + this.directory.getFileName());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public void release() {
+        synchronized (DirectoryWatcher.class) {
+            if (--this.users > 0) {
+                return;
+            }
+            this.releasedAt = System.currentTimeMillis();
+            if (this.lingerMillis <= 0) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * @return whether the watcher was stopped, as it was unused for its linger time
+     */
+    private boolean closeUnused() {
+        synchronized (DirectoryWatcher.class) {
+            if (this.users > 0 || System.currentTimeMillis() - this.releasedAt < this.lingerMillis) {
+                return false;
+            }
+            close();
+            return true;
+        }
+    }
+
+    /**
+     * Callers hold the class lock. The watcher thread ends once the watch service is closed.
+     */
+    private void close() {
+        WATCHERS.remove(this.key);
+        try {
+            this.watchService.close();
+        } catch (IOException e) {
+            LOG.warn(e, "Unable to close the watch service of {0}", this.directory);
+        }
+    }
+
+    private void run() {
+        boolean pending = false;
+        List<String> state = null;
+        try {
+            while (true) {
+                WatchKey key = this.watchService.poll(pending ? this.quietMillis : Math.max(this.lingerMillis, 1000),
+                    TimeUnit.MILLISECONDS);
+                if (key == null && !pending) {
+                    if (closeUnused()) {
+                        break;
+                    }
+                    continue;
+                }
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                                || event.context().toString().startsWith(this.prefix)) {
+                            pending = true;
+                        }
+                    }
+                    key.reset();
+                    continue;
+                }
+                // quiet for a whole period, the files are complete once they stay the same for one more
+                List<String> current = state();
+                if (!current.equals(state)) {
+                    state = current;
+                    continue;
+                }
+                pending = false;
+                try {
+                    LOG.info("Export files in {0} changed", this.directory);
+                    this.listener.changed();
+                } catch (Exception e) {
+                    LOG.warn(e, "Unable to load changed export files in {0}", this.directory);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopped
+        }
+        LOG.ok("Stopped watching {0}", this.directory);
+    }
+
+    /**
+     * @return name, size and modification time of every matching file
+     */
+    private List<String> state() {
+        List<String> state = new ArrayList<>();
+        File[] files = this.directory.toFile().listFiles((dir, name) -> name.startsWith(this.prefix));
+        if (files != null) {
+            for (File file : files) {
+                state.add(file.getName() + "|" + file.length() + "|" + file.lastModified());
+            }
+        }
+        state.sort(null);
+        return state;
+    }
+}
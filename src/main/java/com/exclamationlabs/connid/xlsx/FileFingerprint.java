@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Identifies one version of an export file by its canonical path, modification time, size and
+ * a SHA-256 of its content. The content hash of a file is only recomputed when its modification
+ * time or size changes, and only for the most recently used files.
+ */
+public final class FileFingerprint {
+
+    private static final int KNOWN_FILES = 256;
+
+    private static final Map<String, FileFingerprint> KNOWN = new LinkedHashMap<String, FileFingerprint>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FileFingerprint> eldest) {
+            return size() > KNOWN_FILES;
+        }
+    };
+
+    private final String path;
+
+    private final long lastModified;
+
+    private final long size;
+
+    private final String contentHash;
+
+    private FileFingerprint(String path, long lastModified, long size, String contentHash) {
+        this.path = path;
+        this.lastModified = lastModified;
+        this.size = size;
+        this.contentHash = contentHash;
+    }
+
+    public static FileFingerprint of(String filePath) throws IOException {
+        File file = new File(filePath).getCanonicalFile();
+        long lastModified = file.lastModified();
+        long size = file.length();
+
+        FileFingerprint known;
+        synchronized (KNOWN) {
+            known = KNOWN.get(file.getPath());
+        }
+        if (known != null && known.lastModified == lastModified && known.size == size) {
+            return known;
+        }
+        FileFingerprint fingerprint = new FileFingerprint(file.getPath(), lastModified, size, hash(file));
+        synchronized (KNOWN) {
+            KNOWN.put(file.getPath(), fingerprint);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Identifies one version of a set of files read as one source, by the latest modification
+     * time, the total size and a SHA-256 over the path and content hash of every file.
+     *
+     * @param path names the source, the files are not found through it
+     */
+    public static FileFingerprint of(String path, List<String> filePaths) throws IOException {
+        MessageDigest digest = digest();
+        long lastModified = 0;
+        long size = 0;
+        for (String filePath : filePaths) {
+            FileFingerprint file = of(filePath);
+            lastModified = Math.max(lastModified, file.lastModified);
+            size += file.size;
+            digest.update((file.path + "\n" + file.contentHash + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        return new FileFingerprint(path, lastModified, size, hex(digest));
+    }
+
+    private static String hash(File file) throws IOException {
+        MessageDigest digest = digest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return hex(digest);
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(MessageDigest digest) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof FileFingerprint)) return false;
+
+        FileFingerprint that = (FileFingerprint) o;
+        return lastModified == that.lastModified
+                && size == that.size
+                && path.equals(that.path)
+                && contentHash.equals(that.contentHash);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = path.hashCode();
+        result = 31 * result + Long.hashCode(lastModified);
+        result = 31 * result + Long.hashCode(size);
+        result = 31 * result + contentHash.hashCode();
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return size + "-" + lastModified + "-" + contentHash;
+    }
+}
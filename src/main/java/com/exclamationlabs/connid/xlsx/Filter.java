@@ -16,9 +16,220 @@
 
 package com.exclamationlabs.connid.xlsx;
 
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.Uid;
+
+import java.util.*;
+
 /**
- * This implementation depends on the logic that this connector follows.
+ * Native query built by {@link XlsxFilterTranslator}. Attributes are either {@link Uid#NAME} and
+ * {@link Name#NAME}, which both refer to the identifier column, or a column name.
  */
 public class Filter {
 
+    public enum Operation { EQUALS, STARTS_WITH, IN, AND, OR }
+
+    private final Operation operation;
+
+    private final String attribute;
+
+    private final Set<String> values;
+
+    private final List<Filter> children;
+
+    private Filter(Operation operation, String attribute, Set<String> values, List<Filter> children) {
+        this.operation = operation;
+        this.attribute = attribute;
+        this.values = values;
+        this.children = children;
+    }
+
+    public static Filter equalTo(String attribute, String value) {
+        return new Filter(Operation.EQUALS, attribute, Collections.singleton(value), Collections.emptyList());
+    }
+
+    public static Filter startsWith(String attribute, String prefix) {
+        return new Filter(Operation.STARTS_WITH, attribute, Collections.singleton(prefix), Collections.emptyList());
+    }
+
+    public static Filter in(String attribute, Collection<String> values) {
+        return new Filter(Operation.IN, attribute, new LinkedHashSet<>(values), Collections.emptyList());
+    }
+
+    public static Filter and(Filter left, Filter right) {
+        return new Filter(Operation.AND, null, Collections.emptySet(), Arrays.asList(left, right));
+    }
+
+    /**
+     * Equality on the same attribute on both sides collapses into a single {@link Operation#IN}.
+     */
+    public static Filter or(Filter left, Filter right) {
+        if (left.isValueSet() && right.isValueSet() && left.attribute.equals(right.attribute)) {
+            Set<String> union = new LinkedHashSet<>(left.values);
+            union.addAll(right.values);
+            return in(left.attribute, union);
+        }
+        return new Filter(Operation.OR, null, Collections.emptySet(), Arrays.asList(left, right));
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public String getAttribute() {
+        return attribute;
+    }
+
+    public Set<String> getValues() {
+        return values;
+    }
+
+    public List<Filter> getChildren() {
+        return children;
+    }
+
+    /**
+     * @return the column names this filter reads, identifier attributes excluded
+     */
+    public Set<String> getAttributeNames() {
+        Set<String> names = new HashSet<>();
+        if (operation == Operation.AND || operation == Operation.OR) {
+            for (Filter child : children) {
+                names.addAll(child.getAttributeNames());
+            }
+        } else if (!isIdentifier(attribute)) {
+            names.add(attribute);
+        }
+        return names;
+    }
+
+    private boolean isValueSet() {
+        return operation == Operation.EQUALS || operation == Operation.IN;
+    }
+
+    public static boolean isIdentifier(String attribute) {
+        return Uid.NAME.equals(attribute) || Name.NAME.equals(attribute);
+    }
+
+    /**
+     * @return the only identifiers that can match this filter, or null when any identifier can
+     */
+    public Set<String> getIdentifiers() {
+        switch (operation) {
+            case EQUALS:
+            case IN:
+                return isIdentifier(attribute) ? values : null;
+            case AND:
+                Set<String> intersection = null;
+                for (Filter child : children) {
+                    Set<String> identifiers = child.getIdentifiers();
+                    if (identifiers != null) {
+                        if (intersection == null) {
+                            intersection = new LinkedHashSet<>(identifiers);
+                        } else {
+                            intersection.retainAll(identifiers);
+                        }
+                    }
+                }
+                return intersection;
+            case OR:
+                Set<String> union = new LinkedHashSet<>();
+                for (Filter child : children) {
+                    Set<String> identifiers = child.getIdentifiers();
+                    if (identifiers == null) {
+                        return null;
+                    }
+                    union.addAll(identifiers);
+                }
+                return union;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return whether this filter only needs the identifier to be evaluated
+     */
+    public boolean isIdentifierOnly() {
+        if (operation == Operation.AND || operation == Operation.OR) {
+            for (Filter child : children) {
+                if (!child.isIdentifierOnly()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return isIdentifier(attribute);
+    }
+
+    /**
+     * Evaluates the filter against the identifier alone, only valid when {@link #isIdentifierOnly()}.
+     */
+    public boolean matchesIdentifier(String identifier) {
+        switch (operation) {
+            case AND:
+                for (Filter child : children) {
+                    if (!child.matchesIdentifier(identifier)) {
+                        return false;
+                    }
+                }
+                return true;
+            case OR:
+                for (Filter child : children) {
+                    if (child.matchesIdentifier(identifier)) {
+                        return true;
+                    }
+                }
+                return false;
+            default:
+                return matchValues(Collections.singletonList(identifier));
+        }
+    }
+
+    public boolean matches(Account account) {
+        switch (operation) {
+            case AND:
+                for (Filter child : children) {
+                    if (!child.matches(account)) {
+                        return false;
+                    }
+                }
+                return true;
+            case OR:
+                for (Filter child : children) {
+                    if (child.matches(account)) {
+                        return true;
+                    }
+                }
+                return false;
+            default:
+                List<?> accountValues = isIdentifier(attribute)
+                    ? Collections.singletonList(account.getIdentifier())
+                    : account.getValues(attribute);
+                return accountValues != null && matchValues(accountValues);
+        }
+    }
+
+    private boolean matchValues(List<?> accountValues) {
+        for (Object value : accountValues) {
+            if (value == null) {
+                continue;
+            }
+            String stringValue = value.toString();
+            if (operation == Operation.STARTS_WITH
+                    ? stringValue.startsWith(values.iterator().next())
+                    : values.contains(stringValue)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        if (operation == Operation.AND || operation == Operation.OR) {
+            return "(" + children.get(0) + " " + operation + " " + children.get(1) + ")";
+        }
+        return attribute + " " + operation + " " + values;
+    }
 }
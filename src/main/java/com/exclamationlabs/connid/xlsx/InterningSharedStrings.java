@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.RichTextString;
+import org.apache.poi.xssf.model.SharedStrings;
+
+import java.util.Arrays;
+
+/**
+ * Resolves each index of the shared strings table to one String instance, so a value repeated
+ * across rows (department, location, status) is held once by all the accounts using it.
+ */
+public class InterningSharedStrings implements SharedStrings {
+
+    private final SharedStrings strings;
+
+    private volatile SharedString[] items;
+
+    public InterningSharedStrings(SharedStrings strings) {
+        this.strings = strings;
+        this.items = new SharedString[Math.max(strings.getUniqueCount(), 16)];
+    }
+
+    /**
+     * Safe to call from several threads, a race only resolves the same entry twice.
+     */
+    @Override
+    public RichTextString getItemAt(int idx) {
+        SharedString[] current = this.items;
+        if (idx < current.length && current[idx] != null) {
+            return current[idx];
+        }
+        SharedString item = new SharedString(this.strings.getItemAt(idx).toString());
+        synchronized (this) {
+            if (idx >= this.items.length) {
+                this.items = Arrays.copyOf(this.items, Math.max(idx + 1, this.items.length * 2));
+            }
+            this.items[idx] = item;
+        }
+        return item;
+    }
+
+    @Override
+    public int getCount() {
+        return this.strings.getCount();
+    }
+
+    @Override
+    public int getUniqueCount() {
+        return this.strings.getUniqueCount();
+    }
+
+    /**
+     * Plain text of a shared string, formatting runs are not kept.
+     */
+    private static class SharedString implements RichTextString {
+
+        private final String string;
+
+        SharedString(String string) {
+            this.string = string;
+        }
+
+        @Override
+        public String getString() {
+            return this.string;
+        }
+
+        @Override
+        public String toString() {
+            return this.string;
+        }
+
+        @Override
+        public int length() {
+            return this.string.length();
+        }
+
+        @Override
+        public int numFormattingRuns() {
+            return 0;
+        }
+
+        @Override
+        public int getIndexOfFormattingRun(int index) {
+            return -1;
+        }
+
+        @Override
+        public void applyFont(int startIndex, int endIndex, short fontIndex) {
+            throw new UnsupportedOperationException("Shared strings are read only");
+        }
+
+        @Override
+        public void applyFont(int startIndex, int endIndex, Font font) {
+            throw new UnsupportedOperationException("Shared strings are read only");
+        }
+
+        @Override
+        public void applyFont(Font font) {
+            throw new UnsupportedOperationException("Shared strings are read only");
+        }
+
+        @Override
+        public void applyFont(short fontIndex) {
+            throw new UnsupportedOperationException("Shared strings are read only");
+        }
+
+        @Override
+        public void clearFormatting() {
+            throw new UnsupportedOperationException("Shared strings are read only");
+        }
+    }
+}
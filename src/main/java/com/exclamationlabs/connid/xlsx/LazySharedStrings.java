@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import org.apache.poi.ooxml.POIXMLException;
+import org.apache.poi.ooxml.util.SAXHelper;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.ss.usermodel.RichTextString;
+import org.apache.poi.xssf.model.SharedStrings;
+import org.apache.poi.xssf.usermodel.XSSFRichTextString;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shared strings table that only parses the shared strings part as far as the highest index
+ * requested so far. Used to resolve the heading row without loading every string of the file.
+ */
+public class LazySharedStrings implements SharedStrings {
+
+    private static final int MIN_READ_AHEAD = 64;
+
+    private final PackagePart part;
+
+    private List<String> items = new ArrayList<>();
+
+    private boolean complete;
+
+    public LazySharedStrings(PackagePart part) {
+        this.part = part;
+        this.complete = part == null;
+    }
+
+    @Override
+    public RichTextString getItemAt(int idx) {
+        if (idx >= this.items.size() && !this.complete) {
+            readUpTo(Math.max(idx + 1, this.items.size() * 2 + MIN_READ_AHEAD));
+        }
+        return new XSSFRichTextString(this.items.get(idx));
+    }
+
+    @Override
+    public int getCount() {
+        return this.items.size();
+    }
+
+    @Override
+    public int getUniqueCount() {
+        return this.items.size();
+    }
+
+    private void readUpTo(int size) {
+        ItemHandler itemHandler = new ItemHandler(size);
+        try (InputStream stream = this.part.getInputStream()) {
+            XMLReader parser = SAXHelper.newXMLReader();
+            parser.setContentHandler(itemHandler);
+            parser.parse(new InputSource(stream));
+            this.complete = true;
+        } catch (EnoughItemsException e) {
+            // requested items are available
+        } catch (IOException | SAXException | ParserConfigurationException e) {
+            throw new POIXMLException("Unable to read shared strings", e);
+        }
+        this.items = itemHandler.items;
+    }
+
+    private static class EnoughItemsException extends SAXException {
+
+        private static final long serialVersionUID = 1L;
+
+        EnoughItemsException() {
+            super("Enough shared strings read");
+        }
+    }
+
+    /**
+     * Collects the text of each {@code <si>} entry, skipping phonetic runs.
+     */
+    private static class ItemHandler extends DefaultHandler {
+
+        private final int size;
+
+        private final List<String> items = new ArrayList<>();
+
+        private final StringBuilder text = new StringBuilder();
+
+        private boolean inText;
+
+        private boolean inPhonetic;
+
+        ItemHandler(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            if ("si".equals(localName)) {
+                this.text.setLength(0);
+            } else if ("rPh".equals(localName)) {
+                this.inPhonetic = true;
+            } else if ("t".equals(localName) && !this.inPhonetic) {
+                this.inText = true;
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if ("si".equals(localName)) {
+                this.items.add(this.text.toString());
+                if (this.items.size() >= this.size) {
+                    throw new EnoughItemsException();
+                }
+            } else if ("rPh".equals(localName)) {
+                this.inPhonetic = false;
+            } else if ("t".equals(localName)) {
+                this.inText = false;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (this.inText) {
+                this.text.append(ch, start, length);
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads several export files as one source, as if their rows were concatenated in file order.
+ * The heading of every file after the first is dropped. Each file is parsed on a worker of its
+ * own. Rows are buffered until the files before them are done, then handed to the
+ * {@link RowHandler} on the calling thread. A worker more than {@link #BUFFERED_ROWS} rows ahead
+ * of the handler waits, and every worker stops once the handler asks to stop. Row numbers hold the file index above the 20 bits a
+ * sheet can use, so they are known before parsing and unique across files.
+ */
+public class MultiFileReader implements SheetReader {
+
+    static final int ROW_BITS = 20;
+
+    /**
+     * Rows a file may be read ahead of the handler before its worker waits.
+     */
+    static final int BUFFERED_ROWS = 4096;
+
+    private static final AtomicInteger POOL = new AtomicInteger();
+
+    private static final Object[] END = {};
+
+    private final List<SheetReader> readers;
+
+    private final boolean includesHeader;
+
+    private int parallelism = 1;
+
+    /**
+     * @param includesHeader the first row of every file is a heading
+     */
+    public MultiFileReader(List<SheetReader> readers, boolean includesHeader) {
+        if (readers.size() > Integer.MAX_VALUE >> ROW_BITS) {
+            throw new IllegalArgumentException("Too many files: " + readers.size());
+        }
+        this.readers = readers;
+        this.includesHeader = includesHeader;
+    }
+
+    static int rowNum(int file, int rowNum) {
+        return file << ROW_BITS | rowNum;
+    }
+
+    @Override
+    public void open() throws IOException {
+        for (SheetReader reader : this.readers) {
+            reader.open();
+        }
+    }
+
+    @Override
+    public void readRows(RowHandler handler) throws IOException {
+        if (this.includesHeader) {
+            // the handler learns its columns before any worker asks which cells it wants
+            String[] header = this.readers.get(0).readHeader();
+            if (handler.wantsRow(0) && !handler.handle(0, header)) {
+                return;
+            }
+        }
+        handler.wantsColumn(0);
+
+        int threads = Math.max(1, Math.min(this.parallelism, this.readers.size()));
+        int pool = POOL.incrementAndGet();
+        AtomicInteger thread = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread worker = new Thread(runnable, "xlsx-files-" + pool + "-" + thread.incrementAndGet());
+            worker.setDaemon(true);
+            return worker;
+        });
+        List<LinkedBlockingQueue<Object[]>> queues = new ArrayList<>();
+        List<Future<?>> parses = new ArrayList<>();
+        AtomicBoolean stopped = new AtomicBoolean();
+        try {
+            for (int file = 0; file < this.readers.size(); file++) {
+                LinkedBlockingQueue<Object[]> queue = new LinkedBlockingQueue<>(BUFFERED_ROWS);
+                queues.add(queue);
+                parses.add(executor.submit(parse(file, handler, queue, stopped)));
+            }
+            for (int file = 0; file < this.readers.size(); file++) {
+                LinkedBlockingQueue<Object[]> queue = queues.get(file);
+                for (Object[] row = queue.take(); row != END; row = queue.take()) {
+                    if (!handler.handle((Integer) row[0], (String[]) row[1])) {
+                        stopped.set(true);
+                        return;
+                    }
+                }
+                parses.get(file).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading " + this.readers.size() + " files");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            stopped.set(true);
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return a task reading the rows of one file into its queue, ending it with {@link #END}
+     *         even when reading fails
+     */
+    private Callable<Void> parse(int file, RowHandler handler, LinkedBlockingQueue<Object[]> queue,
+                                 AtomicBoolean stopped) {
+        return () -> {
+            try {
+                this.readers.get(file).readRows(new RowHandler() {
+                    @Override
+                    public boolean wantsRow(int rowNum) {
+                        return !(includesHeader && rowNum == 0) && handler.wantsRow(rowNum(file, rowNum));
+                    }
+
+                    @Override
+                    public boolean wantsColumn(int column) {
+                        return handler.wantsColumn(column);
+                    }
+
+                    @Override
+                    public RowFilter rowFilter() {
+                        return handler.rowFilter();
+                    }
+
+                    @Override
+                    public boolean handle(int rowNum, String[] cells) {
+                        if (stopped.get()) {
+                            return false;
+                        }
+                        if (rowNum >> ROW_BITS != 0) {
+                            throw new ConnectorException("Row " + rowNum + " of file " + file
+                                + " is beyond the " + (1 << ROW_BITS) + " rows read from each of several files");
+                        }
+                        if (wantsRow(rowNum)) {
+                            try {
+                                queue.put(new Object[]{rowNum(file, rowNum), cells});
+                            } catch (InterruptedException e) {
+                                // stopped while waiting for the handler
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                });
+            } finally {
+                if (!stopped.get()) {
+                    queue.put(END);
+                }
+            }
+            return null;
+        };
+    }
+
+    @Override
+    public String[] readHeader() throws IOException {
+        return this.readers.get(0).readHeader();
+    }
+
+    @Override
+    public String readDimension() throws IOException {
+        return this.readers.get(0).readDimension();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (SheetReader reader : this.readers) {
+            reader.close();
+        }
+    }
+
+    @Override
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import java.io.*;
+import java.util.Base64;
+
+/**
+ * Position of the next page of a paged search. The cookie carries the fingerprint of the file it
+ * was issued for, the number of accounts returned so far, the first row of the next account and the
+ * last identifier returned.
+ */
+public class PagedResultsCookie {
+
+    private final String fingerprint;
+
+    private final int offset;
+
+    private final int nextRow;
+
+    private final String lastIdentifier;
+
+    public PagedResultsCookie(String fingerprint, int offset, int nextRow, String lastIdentifier) {
+        this.fingerprint = fingerprint;
+        this.offset = offset;
+        this.nextRow = nextRow;
+        this.lastIdentifier = lastIdentifier;
+    }
+
+    public static PagedResultsCookie decode(String cookie) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(cookie)))) {
+            String fingerprint = in.readUTF();
+            int offset = in.readInt();
+            int nextRow = in.readInt();
+            String lastIdentifier = in.readBoolean() ? in.readUTF() : null;
+            return new PagedResultsCookie(fingerprint, offset, nextRow, lastIdentifier);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid paged results cookie", e);
+        }
+    }
+
+    public String encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(fingerprint);
+            out.writeInt(offset);
+            out.writeInt(nextRow);
+            out.writeBoolean(lastIdentifier != null);
+            if (lastIdentifier != null) {
+                out.writeUTF(lastIdentifier);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getNextRow() {
+        return nextRow;
+    }
+
+    public String getLastIdentifier() {
+        return lastIdentifier;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import org.xml.sax.SAXException;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Formats batches of raw rows on a pool of worker threads while the sheet is still being parsed.
+ * Formatted batches are handed to the {@link RowHandler} on the parsing thread in row order, so
+ * the handler sees the same calls in the same order as with a serial read and needs no locking.
+ * Rows the filter of the handler rejects are dropped by the worker threads.
+ */
+public class ParallelRowDecoder implements RawSheetHandler.RowSink, AutoCloseable {
+
+    private static final int BATCH_SIZE = 256;
+
+    private static final AtomicInteger POOL = new AtomicInteger();
+
+    private final RowHandler handler;
+
+    private final CellDecoder decoder;
+
+    private final int maxInFlight;
+
+    private final ExecutorService executor;
+
+    private final ArrayDeque<Batch> inFlight = new ArrayDeque<>();
+
+    private List<RawSheetHandler.RawRow> rows = new ArrayList<>(BATCH_SIZE);
+
+    private boolean first = true;
+
+    private boolean stopped;
+
+    public ParallelRowDecoder(RowHandler handler, CellDecoder decoder, int parallelism) {
+        this.handler = handler;
+        this.decoder = decoder;
+        this.maxInFlight = parallelism * 2;
+        int pool = POOL.incrementAndGet();
+        AtomicInteger thread = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread worker = new Thread(runnable, "xlsx-decoder-" + pool + "-" + thread.incrementAndGet());
+            worker.setDaemon(true);
+            return worker;
+        });
+    }
+
+    /**
+     * The first row is handed out on its own, so the handler has seen the heading before it is
+     * asked which cells of the following rows it wants.
+     */
+    @Override
+    public boolean row(RawSheetHandler.RawRow row) throws SAXException {
+        this.rows.add(row);
+        if (this.first) {
+            this.first = false;
+            submit();
+            return drain(0);
+        }
+        if (this.rows.size() == BATCH_SIZE) {
+            submit();
+            return drain(this.maxInFlight);
+        }
+        return true;
+    }
+
+    /**
+     * Hands out the rows still being formatted once the sheet has been parsed.
+     */
+    public void finish() throws SAXException {
+        if (!this.stopped) {
+            submit();
+            drain(0);
+        }
+    }
+
+    private void submit() {
+        if (this.rows.isEmpty()) {
+            return;
+        }
+        List<RawSheetHandler.RawRow> batch = this.rows;
+        this.rows = new ArrayList<>(BATCH_SIZE);
+        RowFilter filter = this.handler.rowFilter();
+        this.inFlight.add(new Batch(batch, this.executor.submit(() -> {
+            String[][] cells = new String[batch.size()][];
+            for (int i = 0; i < cells.length; i++) {
+                RawSheetHandler.RawRow row = batch.get(i);
+                if (filter == null || !filter.rejects(col -> this.decoder.decode(row, col))) {
+                    cells[i] = this.decoder.decode(row);
+                }
+            }
+            return cells;
+        })));
+    }
+
+    /**
+     * Hands out every finished batch at the head of the queue, waiting for batches until no more
+     * than the given number is left in flight.
+     *
+     * @return false once the handler asked to stop
+     */
+    private boolean drain(int keep) throws SAXException {
+        while (!this.inFlight.isEmpty() && (this.inFlight.size() > keep || this.inFlight.peek().cells.isDone())) {
+            Batch batch = this.inFlight.poll();
+            String[][] cells;
+            try {
+                cells = batch.cells.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SAXException(new InterruptedIOException("Interrupted while formatting rows"));
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw new SAXException((Exception) e.getCause());
+            }
+            for (int i = 0; i < cells.length; i++) {
+                if (cells[i] != null && !this.handler.handle(batch.rows.get(i).rowNum, cells[i])) {
+                    this.stopped = true;
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        this.inFlight.forEach(batch -> batch.cells.cancel(true));
+        this.inFlight.clear();
+        this.executor.shutdownNow();
+    }
+
+    private static class Batch {
+
+        final List<RawSheetHandler.RawRow> rows;
+
+        final Future<String[][]> cells;
+
+        Batch(List<RawSheetHandler.RawRow> rows, Future<String[][]> cells) {
+            this.rows = rows;
+            this.cells = cells;
+        }
+    }
+}
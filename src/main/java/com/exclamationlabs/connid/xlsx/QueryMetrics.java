@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+
+/**
+ * Counts and times of one read, collected without synchronization on the thread handling the
+ * rows and added to the {@link ConnectorMetrics} once the read is done.
+ */
+public class QueryMetrics {
+
+    long openNanos;
+    long readNanos;
+    long rowNanos;
+    long finishNanos;
+    long emitNanos;
+    long handlerNanos;
+    long rowsRead;
+    long rowsIgnored;
+    long rowsMerged;
+    long accountsEmitted;
+    long accountsHeld;
+    long sortedFallbacks;
+
+    /**
+     * @return the handler, timing every row it handles
+     */
+    RowHandler timed(RowHandler handler) {
+        return new RowHandler() {
+            @Override
+            public boolean handle(int rowNum, String[] cells) {
+                long start = System.nanoTime();
+                try {
+                    return handler.handle(rowNum, cells);
+                } finally {
+                    rowNanos += System.nanoTime() - start;
+                }
+            }
+
+            @Override
+            public boolean wantsRow(int rowNum) {
+                return handler.wantsRow(rowNum);
+            }
+
+            @Override
+            public boolean wantsColumn(int column) {
+                return handler.wantsColumn(column);
+            }
+
+            @Override
+            public RowFilter rowFilter() {
+                return handler.rowFilter();
+            }
+        };
+    }
+
+    /**
+     * Hands the object to the handler, timing how long it blocks.
+     */
+    boolean handle(ResultsHandler handler, ConnectorObject connectorObject) {
+        long start = System.nanoTime();
+        try {
+            return handler.handle(connectorObject);
+        } finally {
+            handlerNanos += System.nanoTime() - start;
+        }
+    }
+
+    void emitted(long nanos) {
+        accountsEmitted++;
+        emitNanos += nanos;
+    }
+
+    void accountsHeld(int accounts) {
+        accountsHeld = Math.max(accountsHeld, accounts);
+    }
+
+    void publish() {
+        ConnectorMetrics.getInstance().record(this);
+    }
+}
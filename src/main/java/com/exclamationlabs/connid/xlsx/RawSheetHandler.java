@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.util.Arrays;
+
+/**
+ * Collects the unformatted value, type and style of every wanted cell of the sheet XML, so the
+ * cells can be formatted by a {@link CellDecoder} off the parsing thread. Cells are recorded at
+ * the same points {@link org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler} reports them.
+ */
+public class RawSheetHandler extends DefaultHandler {
+
+    /**
+     * Receives each completed row, returning false stops the parse.
+     */
+    public interface RowSink {
+        boolean row(RawRow row) throws SAXException;
+    }
+
+    private final RowHandler handler;
+
+    private final RowSink sink;
+
+    private final StringBuilder text = new StringBuilder();
+
+    private RawRow row;
+
+    private int nextRowNum;
+
+    private int nextColumn;
+
+    private int column;
+
+    private String type;
+
+    private String style;
+
+    private boolean formula;
+
+    private boolean inlineOpen;
+
+    private boolean textOpen;
+
+    private int skipDepth;
+
+    private String dimension;
+
+    public RawSheetHandler(RowHandler handler, RowSink sink) {
+        this.handler = handler;
+        this.sink = sink;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+        if (this.skipDepth > 0) {
+            this.skipDepth++;
+            return;
+        }
+        switch (localName) {
+            case "dimension":
+                this.dimension = attributes.getValue("ref");
+                break;
+            case "row":
+                String rowNum = attributes.getValue("r");
+                int num = rowNum != null ? Integer.parseInt(rowNum) - 1 : this.nextRowNum;
+                this.nextColumn = 0;
+                if (!this.handler.wantsRow(num)) {
+                    this.row = null;
+                    this.nextRowNum = num + 1;
+                    this.skipDepth = 1;
+                } else {
+                    this.row = new RawRow(num);
+                }
+                break;
+            case "c":
+                String ref = attributes.getValue("r");
+                this.column = ref != null ? XlsxStreamReader.columnIndex(ref) : this.nextColumn;
+                this.nextColumn = this.column + 1;
+                if (this.row == null || !this.handler.wantsColumn(this.column)) {
+                    this.skipDepth = 1;
+                    return;
+                }
+                this.type = attributes.getValue("t");
+                this.style = attributes.getValue("s");
+                this.formula = false;
+                break;
+            case "f":
+                this.formula = true;
+                break;
+            case "is":
+                this.inlineOpen = true;
+                break;
+            case "v":
+            case "inlineStr":
+                startText();
+                break;
+            case "t":
+                if (this.inlineOpen) {
+                    startText();
+                }
+                break;
+            default:
+        }
+    }
+
+    /**
+     * @return the range of the {@code <dimension>} element preceding the rows, null until it is
+     *         parsed or when the sheet has none
+     */
+    public String getDimension() {
+        return this.dimension;
+    }
+
+    private void startText() {
+        this.text.setLength(0);
+        this.textOpen = true;
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        if (this.textOpen && this.skipDepth == 0) {
+            this.text.append(ch, start, length);
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        if (this.skipDepth > 0) {
+            this.skipDepth--;
+            return;
+        }
+        switch (localName) {
+            case "v":
+            case "inlineStr":
+            case "t":
+                if (this.textOpen) {
+                    this.textOpen = false;
+                    this.row.set(this.column, this.formula && CellDecoder.isNumber(this.type) ? RawRow.FORMULA : this.type,
+                        this.style, this.text.toString());
+                }
+                break;
+            case "is":
+                this.inlineOpen = false;
+                break;
+            case "row":
+                this.nextRowNum = this.row.rowNum + 1;
+                RawRow completed = this.row;
+                this.row = null;
+                if (!this.sink.row(completed)) {
+                    throw new XlsxStreamReader.StopReadingException();
+                }
+                break;
+            default:
+        }
+    }
+
+    /**
+     * Unformatted cells of one row, indexed by column. A null value means the cell is missing.
+     */
+    public static class RawRow {
+
+        /** Type of a formula cell with a numeric result, the result is formatted when it parses as a number. */
+        static final String FORMULA = "f";
+
+        final int rowNum;
+
+        String[] types = new String[16];
+
+        String[] styles = new String[16];
+
+        String[] values = new String[16];
+
+        int width;
+
+        RawRow(int rowNum) {
+            this.rowNum = rowNum;
+        }
+
+        void set(int column, String type, String style, String value) {
+            if (column >= this.values.length) {
+                int length = Math.max(column + 1, this.values.length * 2);
+                this.types = Arrays.copyOf(this.types, length);
+                this.styles = Arrays.copyOf(this.styles, length);
+                this.values = Arrays.copyOf(this.values, length);
+            }
+            this.types[column] = type;
+            this.styles[column] = style;
+            this.values[column] = value;
+            this.width = Math.max(this.width, column + 1);
+        }
+    }
+}
@@ -1,169 +1,770 @@
 package com.exclamationlabs.connid.xlsx;
 
 import org.identityconnectors.common.logging.Log;
-import org.apache.poi.ss.usermodel.*;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
 import org.identityconnectors.framework.common.objects.ConnectorObject;
 import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.ObjectClass;
 import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.common.objects.SearchResult;
+import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.spi.SearchResultsHandler;
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
 
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
 
 
 public class ReadHandler {
 
     private static final Log LOG = Log.getLog(ReadHandler.class);
 
-    private Workbook wb;
+    private SheetReader reader;
 
     private String filePath;
 
-    public ReadHandler(String filePath) throws IOException {
-        this.filePath = filePath;
-        LOG.info("Loading XLSX: {0}", this.filePath);
+    private List<String> filePaths;
+
+    private String sheetName;
+
+    private ObjectClass objectClass;
+
+    private UidIndex uidIndex;
+
+    /**
+     * Nothing is read here, the file is opened by the first call that needs it so pooled
+     * instances and schema discovery never pay for a full parse.
+     */
+    public ReadHandler(String filePath) {
+        this(filePath, null, ObjectClass.ACCOUNT);
+    }
+
+    /**
+     * @param sheetName sheet holding the objects, null for the first sheet
+     * @param objectClass class of the objects handed out
+     */
+    public ReadHandler(String filePath, String sheetName, ObjectClass objectClass) {
+        this(Collections.singletonList(filePath), sheetName, objectClass, true);
+    }
+
+    /**
+     * Several files are read as one source in the given order, each by a reader of its own.
+     * The set of files is fixed here, files added later are only seen by a new instance.
+     *
+     * @param includesHeader whether every file starts with the header row
+     */
+    public ReadHandler(List<String> filePaths, String sheetName, ObjectClass objectClass, boolean includesHeader) {
+        this(filePaths, sheetName, objectClass, includesHeader, null);
+    }
+
+    /**
+     * @param fileFormat xlsx, xls, csv or tsv, null or blank takes the format of every file from
+     *                   its extension
+     */
+    public ReadHandler(List<String> filePaths, String sheetName, ObjectClass objectClass, boolean includesHeader,
+                       String fileFormat) {
+        this.filePaths = new ArrayList<>(filePaths);
+        this.filePath = filePaths.size() == 1 ? filePaths.get(0) : logicalPath(filePaths);
+        this.sheetName = sheetName;
+        this.objectClass = objectClass;
+        if (filePaths.size() == 1) {
+            this.reader = createReader(filePaths.get(0), sheetName, fileFormat);
+        } else {
+            List<SheetReader> readers = new ArrayList<>();
+            for (String path : filePaths) {
+                readers.add(createReader(path, sheetName, fileFormat));
+            }
+            this.reader = new MultiFileReader(readers, includesHeader);
+        }
+    }
+
+    /**
+     * Names a set of files by their directory and common name prefix followed by a plus, which
+     * stays usable in the names of snapshot and index files.
+     */
+    private static String logicalPath(List<String> filePaths) {
+        String prefix = new File(filePaths.get(0)).getName();
+        for (String path : filePaths) {
+            String name = new File(path).getName();
+            int length = 0;
+            while (length < prefix.length() && length < name.length() && prefix.charAt(length) == name.charAt(length)) {
+                length++;
+            }
+            prefix = prefix.substring(0, length);
+        }
+        return new File(new File(filePaths.get(0)).getParentFile(), prefix + "+").getPath();
+    }
+
+    /**
+     * XLSX, CSV and TSV files are streamed, the object model is only built for the legacy .xls
+     * format.
+     */
+    static SheetReader createReader(String filePath, String sheetName, String fileFormat) {
+        switch (fileFormat(filePath, fileFormat)) {
+            case "xls":
+                return new WorkbookReader(filePath, sheetName);
+            case "csv":
+                return new DelimitedReader(filePath, sheetName, ',');
+            case "tsv":
+                return new DelimitedReader(filePath, sheetName, '\t');
+            default:
+                return new XlsxStreamReader(filePath, sheetName);
+        }
+    }
 
-        FileInputStream inp = new FileInputStream(this.filePath);
-        this.wb = WorkbookFactory.create(inp);
+    /**
+     * @param fileFormat the configured format, null or blank takes it from the extension of the
+     *                   file, ignoring a trailing .gz
+     * @return xlsx, xls, csv or tsv
+     */
+    static String fileFormat(String filePath, String fileFormat) {
+        if (fileFormat != null && !fileFormat.trim().isEmpty()) {
+            return fileFormat.trim().toLowerCase(Locale.ROOT);
+        }
+        String name = filePath.toLowerCase(Locale.ROOT);
+        if (name.endsWith(".gz")) {
+            name = name.substring(0, name.length() - 3);
+        }
+        if (name.endsWith(".xls")) {
+            return "xls";
+        } else if (name.endsWith(".csv")) {
+            return "csv";
+        } else if (name.endsWith(".tsv") || name.endsWith(".tab")) {
+            return "tsv";
+        }
+        return "xlsx";
     }
 
     public void closeReader() throws IOException {
-        this.wb.close();
+        this.reader.close();
     }
 
     public void openReader() throws IOException {
-        FileInputStream inp = new FileInputStream(this.filePath);
-        this.wb = WorkbookFactory.create(inp);
+        LOG.info("Loading XLSX: {0}", this.filePath);
+        this.reader.open();
     }
 
     public void getAccounts(Configuration configuration, ResultsHandler handler) {
-        DataFormatter dataFormatter = new DataFormatter();
-        Sheet sheet = this.wb.getSheetAt(0);
-        Cell cell;
-        String cellValue;
-        HashMap<String, Account> accounts = new HashMap<>();
-        Account account = new Account();
-        String[] heading = getHeading(configuration.getIncludesHeaderProperty());
-        int identifierColumn = -1;
-        int ignoreColumn = -1;
-        List<Integer> mergeColumns = new ArrayList<>();
-        Iterator<Row> rowIterator = sheet.rowIterator();
-
-        LOG.info("Begin Parsing");
-
-        if (!configuration.getIncludesHeaderProperty()) {
-            identifierColumn = Integer.parseInt(configuration.getIdentifierProperty().substring(3));
-            ignoreColumn = Integer.parseInt(configuration.getIgnoreProperty().substring(3));
-            mergeColumns = getMergeColumnIndex(configuration);
-            LOG.info("{0}",identifierColumn);
-            LOG.info("{0}",mergeColumns);
-        }
-        LOG.info(String.valueOf(rowIterator.hasNext()));
-        while(rowIterator.hasNext()){
-            Row row = rowIterator.next();
-            Iterator<Cell> cellIterator = row.cellIterator();
-
-            // Find Identifier, first iteration
-            if(row.getRowNum() == 0 && configuration.getIncludesHeaderProperty()) {
-                while(cellIterator.hasNext()) {
-                    cell = cellIterator.next();
-                    cellValue = dataFormatter.formatCellValue(cell);
-                    if (cellValue.equals(configuration.getIdentifierProperty())) {
-                        identifierColumn = cell.getColumnIndex();
-                    } else if (configuration.getMergeProperty() != null && configuration.getMergeProperty().contains(cellValue)) {
-                        mergeColumns.add(cell.getColumnIndex());
-                    } else if (configuration.getIgnoreProperty() != null && configuration.getIgnoreProperty().contains(cellValue)) {
-                        ignoreColumn = cell.getColumnIndex();
+        getAccounts(configuration, null, null, handler);
+    }
+
+    /**
+     * @param filter accounts not matching are skipped, rows of identifiers that cannot match are
+     *               rejected before they are merged, may be null
+     * @param options only the cells of the requested attributes, the identifier and the ignore and
+     *                merge columns are decoded when attributes to get are set. With a page size only
+     *                one page is handed out and a {@link SearchResult} with the cookie of the next
+     *                page is sent to a {@link SearchResultsHandler}, may be null
+     */
+    public void getAccounts(Configuration configuration, Filter filter, OperationOptions options,
+                            ResultsHandler handler) {
+        Set<String> attributesToGet = options != null && options.getAttributesToGet() != null
+            ? new HashSet<>(Arrays.asList(options.getAttributesToGet()))
+            : null;
+        int pageSize = options != null && options.getPageSize() != null ? options.getPageSize() : 0;
+        int offset = options != null && options.getPagedResultsOffset() != null
+            ? Math.max(options.getPagedResultsOffset() - 1, 0)
+            : 0;
+        FileFingerprint fingerprint = pageSize > 0 ? fingerprint() : null;
+        PagedResultsCookie cookie = null;
+        if (pageSize > 0 && options.getPagedResultsCookie() != null) {
+            cookie = PagedResultsCookie.decode(options.getPagedResultsCookie());
+            if (!cookie.getFingerprint().equals(fingerprint.toString())) {
+                throw new ConnectorException("Export file changed since the paged results cookie was issued");
+            }
+        }
+
+        if (configuration.getSnapshotCacheProperty()) {
+            getCachedAccounts(configuration, filter, attributesToGet, pageSize, cookie, offset, fingerprint, handler);
+            return;
+        }
+        if (configuration.getColumnarSnapshotProperty()) {
+            getColumnarAccounts(configuration, filter, attributesToGet, pageSize, cookie, offset, fingerprint, handler);
+            return;
+        }
+        QueryMetrics metrics = new QueryMetrics();
+        AccountRowHandler rowHandler = newRowHandler(configuration, metrics,
+                account -> metrics.handle(handler, getAccountConnectorObjectFromAccount(account, attributesToGet)))
+            .filter(filter)
+            .attributesToGet(attributesToGet)
+            .page(pageSize, cookie, offset);
+        Set<String> identifiers = filter != null ? filter.getIdentifiers() : null;
+
+        if (configuration.getUidIndexProperty() && identifiers != null) {
+            int[] rows = getUidIndex(configuration).getRows(identifiers);
+            if (rows.length > 0) {
+                parseAccounts(rowHandler, rows);
+            }
+        } else {
+            UidIndex.Builder indexBuilder = null;
+            if (configuration.getUidIndexProperty() && filter == null && pageSize <= 0
+                    && !isUidIndexCurrent(configuration)) {
+                indexBuilder = new UidIndex.Builder();
+            }
+            parseAccounts(rowHandler.indexBuilder(indexBuilder), null);
+            if (indexBuilder != null && !rowHandler.isStopped()) {
+                storeUidIndex(configuration, indexBuilder);
+            }
+        }
+
+        if (pageSize > 0) {
+            PagedResultsCookie nextCookie = rowHandler.getPagedResultsCookie(fingerprint);
+            handleResult(handler, new SearchResult(nextCookie != null ? nextCookie.encode() : null,
+                rowHandler.getRemainingPagedResults()));
+        }
+    }
+
+    /**
+     * @param hidden receives the identifiers of ignored and skipped rows, may be null
+     * @return the identifiers of the accounts, read without decoding any attribute besides the
+     *         identifier, ignore and merge columns
+     */
+    public Set<String> getIdentifiers(Configuration configuration, Set<String> hidden) {
+        Set<String> identifiers = new HashSet<>();
+        parseAccounts(newRowHandler(configuration, account -> {
+            identifiers.add(account.getIdentifier());
+            return true;
+        }).attributesToGet(Collections.emptySet()).hiddenIdentifiers(hidden), null);
+        return identifiers;
+    }
+
+    /**
+     * Hands out one group per distinct name in the membership column of the accounts, in a single
+     * pass that only decodes that column. Values are split on the multivalue delimiter.
+     *
+     * @param filter groups not matching are skipped, may be null
+     */
+    public void getGroups(Configuration configuration, Filter filter, ResultsHandler handler) {
+        String membership = configuration.getGroupMembershipProperty();
+        Set<String> groupNames = new HashSet<>();
+        parseAccounts(newRowHandler(configuration, account -> {
+            List<Object> values = account.getValues(membership);
+            if (values == null) {
+                return true;
+            }
+            for (Object value : values) {
+                for (String groupName : value.toString().split(configuration.getMultivalueDelimiter())) {
+                    groupName = groupName.trim();
+                    if (groupName.isEmpty() || !groupNames.add(groupName)) {
+                        continue;
+                    }
+                    Account group = new Account();
+                    group.setIdentifier(groupName);
+                    if ((filter == null || filter.matches(group))
+                            && !handler.handle(getGroupConnectorObjectFromAccount(groupName))) {
+                        return false;
                     }
                 }
-            }else {
-                String identifier = dataFormatter.formatCellValue(row.getCell(identifierColumn));
-                String ignore = (ignoreColumn != -1)?dataFormatter.formatCellValue(row.getCell(ignoreColumn)):"";
-                if (identifier.isEmpty() || ignore.equals(configuration.getIgnoreValueProperty())){
-                    //continue on null input and ignored row value
+            }
+            return true;
+        }).attributesToGet(Collections.singleton(membership)), null);
+    }
+
+    private ConnectorObject getGroupConnectorObjectFromAccount(String groupName) {
+        ConnectorObjectBuilder cob = new ConnectorObjectBuilder();
+        cob.setName(groupName);
+        cob.setUid(groupName);
+        cob.setObjectClass(ObjectClass.GROUP);
+
+        return cob.build();
+    }
+
+    /**
+     * @return the fingerprint of the current file, after making sure the sync snapshot of this
+     *         version exists so a later {@link #sync} can diff against it
+     */
+    public SyncToken getLatestSyncToken(Configuration configuration) {
+        FileFingerprint fingerprint = fingerprint();
+        String token = fingerprint.toString();
+        File file = SyncSnapshot.file(workDirectory(configuration), sourceName(), token);
+        if (SyncSnapshot.load(file, token, parseSettings(configuration)) == null) {
+            Map<String, Long> hashes = new HashMap<>();
+            parseAccounts(newRowHandler(configuration, account -> {
+                hashes.put(account.getIdentifier(), SyncSnapshot.hash(account));
+                return true;
+            }), null);
+            storeSyncSnapshot(file, null, new SyncSnapshot(token, parseSettings(configuration), hashes));
+        }
+        return new SyncToken(token);
+    }
+
+    /**
+     * Hands out the accounts created, updated or deleted since the version of the file the token
+     * was issued for. Without a token every account is created, with a token whose snapshot is
+     * gone every account is sent as created or updated and deletions cannot be detected.
+     */
+    public void sync(Configuration configuration, SyncToken token, OperationOptions options,
+                     SyncResultsHandler handler) {
+        FileFingerprint fingerprint = fingerprint();
+        String current = fingerprint.toString();
+        if (token != null && current.equals(token.getValue())) {
+            return;
+        }
+        String settings = parseSettings(configuration);
+        File directory = workDirectory(configuration);
+        File previousFile = null;
+        SyncSnapshot previous = null;
+        if (token != null) {
+            previousFile = SyncSnapshot.file(directory, sourceName(), token.getValue().toString());
+            previous = SyncSnapshot.load(previousFile, token.getValue().toString(), settings);
+            if (previous == null) {
+                LOG.warn("No sync snapshot for token {0} of {1}, sending all accounts", token.getValue(), this.filePath);
+            }
+        }
+        Set<String> attributesToGet = options != null && options.getAttributesToGet() != null
+            ? new HashSet<>(Arrays.asList(options.getAttributesToGet()))
+            : null;
+        SyncToken latest = new SyncToken(current);
+        SyncDeltaType unknown = token == null ? SyncDeltaType.CREATE : SyncDeltaType.CREATE_OR_UPDATE;
+        boolean known = previous != null;
+        Map<String, Long> deleted = known ? new HashMap<>(previous.getHashes()) : new HashMap<>();
+        Map<String, Long> hashes = new HashMap<>();
+
+        AccountRowHandler rowHandler = newRowHandler(configuration, account -> {
+            long hash = SyncSnapshot.hash(account);
+            hashes.put(account.getIdentifier(), hash);
+            Long old = deleted.remove(account.getIdentifier());
+            SyncDeltaType type;
+            if (!known) {
+                type = unknown;
+            } else if (old == null) {
+                type = SyncDeltaType.CREATE;
+            } else if (old != hash) {
+                type = SyncDeltaType.UPDATE;
+            } else {
+                return true;
+            }
+            ConnectorObject object = getAccountConnectorObjectFromAccount(account, attributesToGet);
+            return handler.handle(new SyncDeltaBuilder()
+                .setToken(latest)
+                .setDeltaType(type)
+                .setObjectClass(this.objectClass)
+                .setUid(object.getUid())
+                .setObject(object)
+                .build());
+        });
+        parseAccounts(rowHandler, null);
+        if (rowHandler.isStopped()) {
+            // unread accounts are neither deleted nor known, the next sync starts from the same token
+            return;
+        }
+
+        for (String identifier : deleted.keySet()) {
+            if (!handler.handle(new SyncDeltaBuilder()
+                    .setToken(latest)
+                    .setDeltaType(SyncDeltaType.DELETE)
+                    .setObjectClass(this.objectClass)
+                    .setUid(new Uid(identifier))
+                    .build())) {
+                return;
+            }
+        }
+        storeSyncSnapshot(SyncSnapshot.file(directory, sourceName(), current), previousFile,
+            new SyncSnapshot(current, settings, hashes));
+    }
+
+    private void storeSyncSnapshot(File file, File keep, SyncSnapshot snapshot) {
+        try {
+            snapshot.save(file, keep);
+        } catch (IOException e) {
+            LOG.warn(e, "Unable to store sync snapshot of {0}", this.filePath);
+        }
+    }
+
+    private static void handleResult(ResultsHandler handler, SearchResult result) {
+        if (handler instanceof SearchResultsHandler) {
+            ((SearchResultsHandler) handler).handleResult(result);
+        }
+    }
+
+    private AccountRowHandler newRowHandler(Configuration configuration, AccountHandler accountHandler) {
+        return newRowHandler(configuration, new QueryMetrics(), accountHandler);
+    }
+
+    private AccountRowHandler newRowHandler(Configuration configuration, QueryMetrics metrics,
+                                            AccountHandler accountHandler) {
+        this.reader.setParallelism(configuration.getParallelismProperty() != null
+            ? configuration.getParallelismProperty() : 1);
+        long start = System.nanoTime();
+        String[] heading = getSheetHeading(configuration.getIncludesHeaderProperty()).getColumns();
+        metrics.openNanos += System.nanoTime() - start;
+        return new AccountRowHandler(configuration, heading, accountHandler).metrics(metrics);
+    }
+
+    /**
+     * Reads the rows and completes the accounts, then publishes the metrics of the row handler.
+     *
+     * @param rows sorted row numbers to decode, null decodes every row
+     */
+    private void parseAccounts(AccountRowHandler rowHandler, int[] rows) {
+        QueryMetrics metrics = rowHandler.getMetrics();
+        try {
+            LOG.info("Begin Parsing");
+            long start = System.nanoTime();
+            RowHandler timed = metrics.timed(rowHandler);
+            readRows(rows == null ? timed : new SelectedRowHandler(timed, rows));
+            if (rowHandler.fallBack()) {
+                readRows(rows == null ? timed : new SelectedRowHandler(timed, rows));
+            }
+            long read = System.nanoTime();
+            metrics.readNanos = read - start;
+            LOG.info("End Parsing, {0} rows in {1} ms", metrics.rowsRead, TimeUnit.NANOSECONDS.toMillis(read - start));
+
+            rowHandler.finish();
+            metrics.finishNanos = System.nanoTime() - read;
+        } catch (IOException e) {
+            throw new ConnectorIOException(e);
+        } finally {
+            rowHandler.close();
+            rowHandler.countRejectedRows();
+            metrics.publish();
+        }
+    }
+
+    private FileFingerprint currentFingerprint() throws IOException {
+        return this.filePaths.size() == 1
+            ? FileFingerprint.of(this.filePath)
+            : FileFingerprint.of(this.filePath, this.filePaths);
+    }
+
+    private FileFingerprint fingerprint() {
+        try {
+            return currentFingerprint();
+        } catch (IOException e) {
+            throw new ConnectorIOException(e);
+        }
+    }
+
+    /**
+     * Serves the accounts from the process wide {@link SnapshotCache}, parsing the file only when
+     * no instance has loaded this version of it with the same settings yet.
+     */
+    private void getCachedAccounts(Configuration configuration, Filter filter, Set<String> attributesToGet,
+                                   int pageSize, PagedResultsCookie cookie, int offset, FileFingerprint fingerprint,
+                                   ResultsHandler handler) {
+        SnapshotCache cache = SnapshotCache.getInstance();
+        SnapshotCache.Snapshot snapshot = acquireSnapshot(configuration);
+        try {
+            handOut(snapshot.getAccounts(), filter, attributesToGet, pageSize, cookie, offset, fingerprint, handler);
+        } finally {
+            cache.release(snapshot);
+        }
+    }
+
+    /**
+     * Serves the accounts from the {@link ColumnarSnapshot} of the current file, building it with
+     * one parse when it is missing or stale. Identifier filters are looked up in the snapshot and
+     * only the requested attributes are decoded.
+     */
+    private void getColumnarAccounts(Configuration configuration, Filter filter, Set<String> attributesToGet,
+                                     int pageSize, PagedResultsCookie cookie, int offset, FileFingerprint fingerprint,
+                                     ResultsHandler handler) {
+        FileFingerprint current;
+        try {
+            current = currentFingerprint();
+        } catch (IOException e) {
+            throw new ConnectorIOException(e);
+        }
+        String settings = parseSettings(configuration);
+        File file = ColumnarSnapshot.file(workDirectory(configuration), current, this.sheetName);
+        ColumnarSnapshot snapshot = ColumnarSnapshot.open(file, current, settings);
+        if (snapshot != null) {
+            ConnectorMetrics.getInstance().columnarSnapshotHit();
+        } else {
+            ConnectorMetrics.getInstance().columnarSnapshotMiss();
+            LOG.info("Building columnar snapshot of {0}", sourceName());
+            List<Account> accounts = new ArrayList<>();
+            parseAccounts(newRowHandler(configuration, accounts::add), null);
+            try {
+                ColumnarSnapshot.write(file, current, settings, accounts);
+                snapshot = ColumnarSnapshot.open(file, current, settings);
+            } catch (IOException e) {
+                LOG.warn(e, "Unable to store columnar snapshot of {0}", sourceName());
+            }
+            if (snapshot == null) {
+                accounts.sort(Comparator.comparing(Account::getIdentifier, AccountRowHandler.IDENTIFIER_ORDER));
+                handOut(accounts, filter, attributesToGet, pageSize, cookie, offset, fingerprint, handler);
+                return;
+            }
+        }
+
+        ColumnarSnapshot columnar = snapshot;
+        boolean[] columns = null;
+        if (attributesToGet != null) {
+            Set<String> names = new HashSet<>(attributesToGet);
+            if (filter != null) {
+                names.addAll(filter.getAttributeNames());
+            }
+            String[] attributes = columnar.getAttributes();
+            columns = new boolean[attributes.length];
+            for (int attribute = 0; attribute < attributes.length; attribute++) {
+                columns[attribute] = names.contains(attributes[attribute]);
+            }
+        }
+        Set<String> identifiers = filter != null ? filter.getIdentifiers() : null;
+        int[] positions = identifiers != null
+            ? identifiers.stream().mapToInt(columnar::find).filter(position -> position >= 0).sorted().toArray()
+            : null;
+        AccountLayout layout = new AccountLayout();
+        boolean[] decoded = columns;
+        int size = positions != null ? positions.length : columnar.size();
+        handOut(() -> new Iterator<Account>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public Account next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int position = positions != null ? positions[next] : next;
+                next++;
+                return columnar.getAccount(position, layout, decoded);
+            }
+        }, filter, attributesToGet, pageSize, cookie, offset, fingerprint, handler);
+    }
+
+    /**
+     * Hands out the accounts matching the filter, skipping the offset or cookie position and
+     * stopping after a page.
+     */
+    private void handOut(Iterable<Account> accounts, Filter filter, Set<String> attributesToGet, int pageSize,
+                         PagedResultsCookie cookie, int offset, FileFingerprint fingerprint, ResultsHandler handler) {
+        QueryMetrics metrics = new QueryMetrics();
+        int skip = cookie != null ? cookie.getOffset() : offset;
+        int returned = 0;
+        int remaining = 0;
+        try {
+            for (Account account : accounts) {
+                if (filter != null && !filter.matches(account)) {
                     continue;
                 }
-                //account already exists, get the merge and move on
-                if (accounts.containsKey(identifier)) {
-                    account = accounts.get(identifier);
-                    for(int col : mergeColumns){
-                        account.addAttribute(heading[col], dataFormatter.formatCellValue(row.getCell(col)));
-                    }
+                if (skip > 0) {
+                    skip--;
+                } else if (pageSize > 0 && returned == pageSize) {
+                    remaining++;
                 } else {
-
-                    if(account.getIdentifier() != null && configuration.isUidSortedProperty()){
-                        handler.handle(
-                            getAccountConnectorObjectFromAccount(account)
-                        );
-                    }
-                    //new account
-                    account = new Account();
-                    while (cellIterator.hasNext()) {
-                        cell = cellIterator.next();
-                        cellValue = dataFormatter.formatCellValue(cell);
-                        if (cell.getColumnIndex() == identifierColumn) {
-                            account.setIdentifier(cellValue);
-                        } else if(!cellValue.isEmpty()) {
-                            account.addAttribute(heading[cell.getColumnIndex()], cellValue);
-                        }
+                    long start = System.nanoTime();
+                    boolean more = metrics.handle(handler, getAccountConnectorObjectFromAccount(account, attributesToGet));
+                    metrics.emitted(System.nanoTime() - start);
+                    returned++;
+                    if (!more) {
+                        return;
                     }
                 }
-                accounts.put(account.getIdentifier(), account);
             }
+        } finally {
+            metrics.publish();
         }
-        LOG.info("End Parsing");
-        if(configuration.isUidSortedProperty()) {
-            handler.handle(
-                getAccountConnectorObjectFromAccount(account)
-            );
-        }else {
-            for (Account acc : accounts.values()) {
-                handler.handle(
-                    getAccountConnectorObjectFromAccount(acc)
-                );
-            }
+
+        if (pageSize > 0) {
+            int nextOffset = (cookie != null ? cookie.getOffset() : offset) + returned;
+            handleResult(handler, new SearchResult(remaining > 0
+                ? new PagedResultsCookie(fingerprint.toString(), nextOffset, -1, null).encode()
+                : null, remaining));
+        }
+    }
+
+    /**
+     * Loads the current version of the file into the {@link SnapshotCache}, where it stays until
+     * it is idle for the snapshot timeout, so the next query does not parse.
+     */
+    public void preload(Configuration configuration) {
+        SnapshotCache.getInstance().release(acquireSnapshot(configuration));
+    }
+
+    private SnapshotCache.Snapshot acquireSnapshot(Configuration configuration) {
+        try {
+            return SnapshotCache.getInstance().acquire(currentFingerprint(), parseSettings(configuration),
+                configuration.getSnapshotIdleTimeoutProperty() * 1000L,
+                () -> {
+                    List<Account> accounts = new ArrayList<>();
+                    parseAccounts(newRowHandler(configuration, accounts::add), null);
+                    return accounts;
+                });
+        } catch (IOException e) {
+            throw new ConnectorIOException(e);
+        }
+    }
+
+    static String parseSettings(Configuration configuration) {
+        return String.join("|",
+            String.valueOf(configuration.getSheetProperty()),
+            String.valueOf(configuration.getFileFormatProperty()),
+            String.valueOf(configuration.getIncludesHeaderProperty()),
+            String.valueOf(configuration.getIdentifierProperty()),
+            String.valueOf(configuration.getMergeProperty()),
+            String.valueOf(configuration.getIgnoreProperty()),
+            String.valueOf(configuration.getIgnoreValueProperty()),
+            String.valueOf(configuration.getMultivalueDelimiter()),
+            String.valueOf(configuration.isUidSortedProperty()),
+            configuration.getUidSortedCheckProperty(),
+            skipSettings(configuration));
+    }
+
+    /**
+     * Returns the Uid index of the current file, loading the sidecar or, when it is missing or
+     * stale, building it with a scan that only reads identifiers.
+     */
+    private UidIndex getUidIndex(Configuration configuration) {
+        if (isUidIndexCurrent(configuration)) {
+            return this.uidIndex;
+        }
+        try {
+            FileFingerprint fingerprint = currentFingerprint();
+            this.uidIndex = UidIndex.load(UidIndex.sidecarFile(workDirectory(configuration), fingerprint, this.sheetName),
+                fingerprint, uidIndexSettings(configuration));
+        } catch (IOException e) {
+            throw new ConnectorIOException(e);
+        }
+        if (this.uidIndex == null) {
+            LOG.info("Building Uid index of {0}", this.filePath);
+            UidIndex.Builder indexBuilder = new UidIndex.Builder();
+            // no identifier matches and no attribute is decoded, rows are only indexed
+            parseAccounts(newRowHandler(configuration, account -> true)
+                .filter(Filter.in(Uid.NAME, Collections.emptySet()))
+                .attributesToGet(Collections.emptySet())
+                .indexBuilder(indexBuilder), null);
+            storeUidIndex(configuration, indexBuilder);
+        }
+        return this.uidIndex;
+    }
+
+    private boolean isUidIndexCurrent(Configuration configuration) {
+        try {
+            return this.uidIndex != null
+                && this.uidIndex.isCurrent(currentFingerprint(), uidIndexSettings(configuration));
+        } catch (IOException e) {
+            throw new ConnectorIOException(e);
+        }
+    }
+
+    private void storeUidIndex(Configuration configuration, UidIndex.Builder indexBuilder) {
+        try {
+            FileFingerprint fingerprint = currentFingerprint();
+            this.uidIndex = indexBuilder.build(fingerprint, uidIndexSettings(configuration));
+            this.uidIndex.save(UidIndex.sidecarFile(workDirectory(configuration), fingerprint, this.sheetName));
+        } catch (IOException e) {
+            LOG.warn(e, "Unable to store Uid index of {0}", this.filePath);
+        }
+    }
+
+    /**
+     * Rows skipped by the rules are never indexed.
+     */
+    private static String uidIndexSettings(Configuration configuration) {
+        return configuration.getSheetProperty() + "|" + configuration.getIncludesHeaderProperty() + "|"
+            + configuration.getIdentifierProperty() + "|" + skipSettings(configuration);
+    }
+
+    private static String skipSettings(Configuration configuration) {
+        String[] rules = configuration.getSkipRulesProperty();
+        return (rules != null ? String.join("\n", rules) : "") + "|" + configuration.getSkipDateFormatProperty();
+    }
+
+    /**
+     * @return the file, followed by the sheet when one is configured, naming the work files
+     */
+    private String sourceName() {
+        return this.sheetName == null ? this.filePath : this.filePath + "#" + this.sheetName;
+    }
+
+    static File workDirectory(Configuration configuration) {
+        String directory = configuration.getWorkDirectoryProperty();
+        return new File(directory == null || directory.isEmpty() ? System.getProperty("java.io.tmpdir") : directory);
+    }
+
+    private void readRows(RowHandler rowHandler) {
+        try {
+            this.reader.readRows(rowHandler);
+        } catch (IOException e) {
+            throw new ConnectorIOException(e);
         }
     }
 
-    private List<Integer> getMergeColumnIndex(Configuration configuration) {
-        return Arrays.asList(configuration.getMergeProperty()
-                .split(configuration.getMultivalueDelimiter())).stream()
-                .map(c -> Integer.parseInt(c.substring(3)))
-                .collect(Collectors.toList());
+    /**
+     * Forwards only the heading row and the selected rows, and stops after the last selected row.
+     */
+    private static class SelectedRowHandler implements RowHandler {
+
+        private final RowHandler delegate;
+        private final int[] rows;
+
+        SelectedRowHandler(RowHandler delegate, int[] rows) {
+            this.delegate = delegate;
+            this.rows = rows;
+        }
+
+        @Override
+        public boolean wantsRow(int rowNum) {
+            return (rowNum == 0 || Arrays.binarySearch(rows, rowNum) >= 0) && delegate.wantsRow(rowNum);
+        }
+
+        @Override
+        public boolean wantsColumn(int column) {
+            return delegate.wantsColumn(column);
+        }
+
+        @Override
+        public RowFilter rowFilter() {
+            return delegate.rowFilter();
+        }
+
+        @Override
+        public boolean handle(int rowNum, String[] cells) {
+            if (!wantsRow(rowNum)) {
+                return true;
+            }
+            return delegate.handle(rowNum, cells) && rowNum < rows[rows.length - 1];
+        }
     }
 
-    private ConnectorObject getAccountConnectorObjectFromAccount(Account account) {
+    private ConnectorObject getAccountConnectorObjectFromAccount(Account account, Set<String> attributesToGet) {
         ConnectorObjectBuilder cob = new ConnectorObjectBuilder();
+        cob.setObjectClass(this.objectClass);
         cob.setName(account.getIdentifier());
         cob.setUid(account.getIdentifier());
-        account.getAttributes().forEach(cob::addAttribute);
+        account.forEachAttribute((name, values) -> {
+            if (attributesToGet == null || attributesToGet.contains(name)) {
+                cob.addAttribute(name, values);
+            }
+        });
 
         return cob.build();
     }
 
+    /**
+     * @return the names of the columns that have one, in column order
+     */
     public String[] getHeading(Boolean includesHeader) {
-        Sheet sheet = this.wb.getSheetAt(0);
-        Iterator<Cell> cellIterator = sheet.getRow(0).cellIterator();
-        String[] header = new String[sheet.getRow(0).getPhysicalNumberOfCells()];
+        return getSheetHeading(includesHeader).getNames();
+    }
 
-        if(includesHeader) {
-            for (int i = 0; cellIterator.hasNext(); i++) {
-                header[i] = cellIterator.next().getRichStringCellValue().toString();
-            }
-        } else {
-            for (int i = 0; cellIterator.hasNext(); i++) {
-                header[i] = new StringBuilder("col").append(cellIterator.next().getColumnIndex()).toString();
-            }
+    /**
+     * @return the heading of the current version of the files, read once and shared by the schema
+     *         and every later query
+     */
+    private SheetHeading getSheetHeading(boolean includesHeader) {
+        try {
+            return SheetHeading.of(this.filePaths, this.sheetName, includesHeader, this.reader);
+        } catch (IOException e) {
+            throw new ConnectorIOException(e);
         }
-
-        return header;
     }
 
     public int colCount() {
-        return this.wb.getSheetAt(0)
-                .getRow(0)
-                .getPhysicalNumberOfCells();
+        return getHeading(false).length;
     }
 }
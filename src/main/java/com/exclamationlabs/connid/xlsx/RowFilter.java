@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import java.util.function.IntFunction;
+
+/**
+ * Rejects rows from a few of their cells before the rest of the row is formatted. Readers may
+ * call it from several threads.
+ */
+public interface RowFilter {
+
+    /**
+     * @param cells formats the cell of a column on demand, null for a missing cell
+     * @return true to skip the row
+     */
+    boolean rejects(IntFunction<String> cells);
+}
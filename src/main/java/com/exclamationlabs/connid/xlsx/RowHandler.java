@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+/**
+ * Callback receiving the rows of a sheet one at a time.
+ */
+public interface RowHandler {
+
+    /**
+     * @param rowNum zero based row number
+     * @param cells formatted cell values indexed by column, missing cells are null
+     * @return false to stop reading the sheet
+     */
+    boolean handle(int rowNum, String[] cells);
+
+    /**
+     * Readers skip collecting the cells of rows this returns false for.
+     */
+    default boolean wantsRow(int rowNum) {
+        return true;
+    }
+
+    /**
+     * Readers skip decoding the cells of columns this returns false for, the answer may change once
+     * the heading row has been handled.
+     */
+    default boolean wantsColumn(int column) {
+        return true;
+    }
+
+    /**
+     * Readers skip the rows the filter rejects, asking for it again before every row since it may
+     * only be known once the heading row has been handled.
+     *
+     * @return the filter of the rows, null to handle every row
+     */
+    default RowFilter rowFilter() {
+        return null;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The column names of a sheet indexed by column, read from its first row and the range its
+ * {@code <dimension>} declares. Headings are read once per version of a file and sheet and shared
+ * by every reader of it, so schema discovery and later queries never read the heading again.
+ * Versions are told apart by modification time and size alone, the content is never hashed.
+ */
+public final class SheetHeading {
+
+    private static final int CACHED = 256;
+
+    private static final ConcurrentHashMap<String, SheetHeading> CACHE = new ConcurrentHashMap<>();
+
+    private final String[] columns;
+
+    private SheetHeading(String[] columns) {
+        this.columns = columns;
+    }
+
+    /**
+     * @param filePaths files the reader reads, the heading is taken from the first
+     * @param sheetName sheet the reader reads, null for the first sheet
+     */
+    static SheetHeading of(List<String> filePaths, String sheetName, boolean includesHeader, SheetReader reader)
+            throws IOException {
+        StringBuilder key = new StringBuilder();
+        for (String filePath : filePaths) {
+            File file = new File(filePath).getCanonicalFile();
+            key.append(file.getPath()).append('|').append(file.lastModified()).append('|').append(file.length()).append('\n');
+        }
+        key.append(sheetName).append('|').append(includesHeader);
+        SheetHeading heading = CACHE.get(key.toString());
+        if (heading == null) {
+            heading = read(reader, includesHeader);
+            if (CACHE.size() >= CACHED) {
+                CACHE.clear();
+            }
+            CACHE.put(key.toString(), heading);
+        }
+        return heading;
+    }
+
+    /**
+     * Without a header the columns are named colN for every column of the declared range, or of
+     * the first row when the sheet declares none.
+     */
+    static SheetHeading read(SheetReader reader, boolean includesHeader) throws IOException {
+        String[] cells = reader.readHeader();
+        if (includesHeader) {
+            return new SheetHeading(cells.clone());
+        }
+        String[] columns = new String[Math.max(cells.length, dimensionWidth(reader.readDimension()))];
+        for (int col = 0; col < columns.length; col++) {
+            columns[col] = "col" + col;
+        }
+        return new SheetHeading(columns);
+    }
+
+    /**
+     * @param dimension a range like A1:F200 or a single cell, may be null
+     * @return the number of columns up to the last one of the range, 0 when unknown
+     */
+    static int dimensionWidth(String dimension) {
+        if (dimension == null || dimension.isEmpty()) {
+            return 0;
+        }
+        int separator = dimension.indexOf(':');
+        return XlsxStreamReader.columnIndex(separator >= 0 ? dimension.substring(separator + 1) : dimension) + 1;
+    }
+
+    /**
+     * @return the names indexed by column, null for columns without one
+     */
+    public String[] getColumns() {
+        return columns.clone();
+    }
+
+    /**
+     * @return the names of the columns that have one, in column order
+     */
+    public String[] getNames() {
+        List<String> names = new ArrayList<>();
+        for (String column : columns) {
+            if (column != null) {
+                names.add(column);
+            }
+        }
+        return names.toArray(new String[0]);
+    }
+}
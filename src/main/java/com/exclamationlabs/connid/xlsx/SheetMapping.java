@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+
+/**
+ * An object class read from its own sheet of the export, configured as
+ * {@code objectClass:sheet:identifier[:merge columns]}.
+ */
+public class SheetMapping {
+
+    private final ObjectClass objectClass;
+
+    private final String sheet;
+
+    private final String identifier;
+
+    private final String merge;
+
+    public SheetMapping(ObjectClass objectClass, String sheet, String identifier, String merge) {
+        this.objectClass = objectClass;
+        this.sheet = sheet;
+        this.identifier = identifier;
+        this.merge = merge;
+    }
+
+    public static SheetMapping parse(String entry) {
+        String[] parts = entry.split(":", 4);
+        if (parts.length < 3 || parts[0].trim().isEmpty() || parts[1].trim().isEmpty() || parts[2].trim().isEmpty()) {
+            throw new ConfigurationException("Object class sheet must be objectClass:sheet:identifier[:merge], was " + entry);
+        }
+        return new SheetMapping(new ObjectClass(parts[0].trim()), parts[1].trim(), parts[2].trim(),
+            parts.length > 3 ? parts[3].trim() : "");
+    }
+
+    public ObjectClass getObjectClass() {
+        return objectClass;
+    }
+
+    public String getSheet() {
+        return sheet;
+    }
+
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    public String getMerge() {
+        return merge;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import java.io.IOException;
+
+/**
+ * Reads the rows of the first sheet of an export file.
+ */
+public interface SheetReader {
+
+    void open() throws IOException;
+
+    void readRows(RowHandler handler) throws IOException;
+
+    /**
+     * @return the cells of the first row, indexed by column
+     */
+    String[] readHeader() throws IOException;
+
+    /**
+     * @return the range of cells the sheet declares, like A1:F200, null when it declares none
+     */
+    default String readDimension() throws IOException {
+        return null;
+    }
+
+    void close() throws IOException;
+
+    /**
+     * @param parallelism threads decoding cells, readers that cannot decode in parallel ignore it
+     */
+    default void setParallelism(int parallelism) {
+    }
+}
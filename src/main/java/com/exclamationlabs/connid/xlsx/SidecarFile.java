@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Local file derived from one version of an export, such as a {@link UidIndex}, a
+ * {@link SyncSnapshot} or a {@link ColumnarSnapshot}. Every such file starts with the format, the
+ * version of the export it was built from and the settings it was built with, a file matching none
+ * of them is stale and ignored. Files are written to a temporary file first and moved into place,
+ * so readers never see a partially written one.
+ */
+final class SidecarFile {
+
+    private static final Log LOG = Log.getLog(SidecarFile.class);
+
+    interface Reader<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private SidecarFile() {
+    }
+
+    /**
+     * @return what the reader read after the header, or null when the file is missing or stale
+     */
+    static <T> T load(File file, String format, String version, String settings, Reader<T> reader)
+            throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (!format.equals(in.readUTF()) || !version.equals(in.readUTF()) || !settings.equals(in.readUTF())) {
+                LOG.info("{0} is stale", file);
+                return null;
+            }
+            return reader.read(in);
+        }
+    }
+
+    static void save(File file, String format, String version, String settings, Writer writer)
+            throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        directory.mkdirs();
+        File temp = File.createTempFile(file.getName(), ".tmp", directory);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            writeHeader(out, format, version, settings);
+            writer.write(out);
+        } catch (IOException | RuntimeException e) {
+            temp.delete();
+            throw e;
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the number of bytes the header takes, for formats that address the file by position
+     */
+    static int headerLength(String format, String version, String settings) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeHeader(out, format, version, settings);
+        }
+        return bytes.size();
+    }
+
+    private static void writeHeader(DataOutputStream out, String format, String version, String settings)
+            throws IOException {
+        out.writeUTF(format);
+        out.writeUTF(version);
+        out.writeUTF(settings);
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.TemporalAccessor;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Rules skipping rows by their cells. A row is skipped when any rule matches it, a rule matches
+ * when all of its conditions joined by {@code &&} hold, for example
+ * {@code status = disabled && "Last Login" < 2020-01-01}. A condition names a column, an operator
+ * and a value:
+ * <ul>
+ *     <li>{@code =} and {@code !=} compare the text of the cell</li>
+ *     <li>{@code ~} and {@code !~} match the whole cell against a regular expression</li>
+ *     <li>{@code <}, {@code <=}, {@code >} and {@code >=} compare numbers when the value is a
+ *     number, dates in the date format when it is a date, and text otherwise. Cells that are no
+ *     number or date never match such a value</li>
+ * </ul>
+ * Columns and values are quoted when they hold spaces, operators or {@code &&}, a missing cell is
+ * the empty text. Rules are parsed once and bound to the columns of a sheet per read, they only
+ * apply to the account sheet.
+ */
+public final class SkipRules {
+
+    private static final List<String> OPERATORS = Arrays.asList("!=", "!~", "<=", ">=", "=", "~", "<", ">");
+
+    private final List<List<Condition>> rules;
+
+    private SkipRules(List<List<Condition>> rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * @param dateFormat pattern of the dates in the rules and cells, see {@link DateTimeFormatter}
+     * @throws ConfigurationException when a rule or the date format does not parse
+     */
+    public static SkipRules compile(String[] rules, String dateFormat) {
+        DateTimeFormatter dates;
+        try {
+            dates = DateTimeFormatter.ofPattern(dateFormat, Locale.ROOT);
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException("Invalid skip date format " + dateFormat, e);
+        }
+        List<List<Condition>> compiled = new ArrayList<>();
+        if (rules != null) {
+            for (String rule : rules) {
+                if (rule != null && !rule.trim().isEmpty()) {
+                    compiled.add(new Parser(rule, dates).rule());
+                }
+            }
+        }
+        return new SkipRules(compiled);
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    /**
+     * @param columns the column of a name, -1 when the sheet has none
+     * @param ignoreColumn column of the ignore property, -1 without one
+     * @param ignoreValue rows with this value in the ignore column are rejected as well, may be null
+     * @return a filter over the columns of the sheet, null when nothing is ever rejected
+     * @throws ConfigurationException when a rule names a column the sheet does not have
+     */
+    public Bound bind(Function<String, Integer> columns, int ignoreColumn, String ignoreValue) {
+        List<int[]> ruleColumns = new ArrayList<>();
+        List<List<Predicate<String>>> rulePredicates = new ArrayList<>();
+        for (List<Condition> rule : rules) {
+            int[] bound = new int[rule.size()];
+            List<Predicate<String>> predicates = new ArrayList<>(rule.size());
+            for (int condition = 0; condition < rule.size(); condition++) {
+                String column = rule.get(condition).column;
+                bound[condition] = columns.apply(column);
+                if (bound[condition] < 0) {
+                    throw new ConfigurationException("Skip rule column " + column + " is not in the sheet");
+                }
+                predicates.add(rule.get(condition).predicate);
+            }
+            ruleColumns.add(bound);
+            rulePredicates.add(predicates);
+        }
+        if (ignoreColumn >= 0 && ignoreValue != null) {
+            ruleColumns.add(new int[]{ignoreColumn});
+            rulePredicates.add(Collections.singletonList(ignoreValue::equals));
+        }
+        if (ruleColumns.isEmpty()) {
+            return null;
+        }
+        return new Bound(ruleColumns.toArray(new int[0][]), rulePredicates);
+    }
+
+    /**
+     * The rules over column indices, counting the rows they reject.
+     */
+    public static final class Bound implements RowFilter {
+
+        private final int[][] columns;
+
+        private final List<List<Predicate<String>>> predicates;
+
+        private final LongAdder rejected = new LongAdder();
+
+        private Bound(int[][] columns, List<List<Predicate<String>>> predicates) {
+            this.columns = columns;
+            this.predicates = predicates;
+        }
+
+        @Override
+        public boolean rejects(IntFunction<String> cells) {
+            for (int rule = 0; rule < columns.length; rule++) {
+                if (matches(rule, cells)) {
+                    rejected.increment();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean matches(int rule, IntFunction<String> cells) {
+            List<Predicate<String>> conditions = predicates.get(rule);
+            for (int condition = 0; condition < columns[rule].length; condition++) {
+                String cell = cells.apply(columns[rule][condition]);
+                if (!conditions.get(condition).test(cell != null ? cell : "")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return the columns the rules read
+         */
+        public Set<Integer> getColumns() {
+            Set<Integer> read = new HashSet<>();
+            for (int[] rule : columns) {
+                for (int column : rule) {
+                    read.add(column);
+                }
+            }
+            return read;
+        }
+
+        public long getRejected() {
+            return rejected.sum();
+        }
+    }
+
+    private static final class Condition {
+
+        final String column;
+
+        final Predicate<String> predicate;
+
+        Condition(String column, Predicate<String> predicate) {
+            this.column = column;
+            this.predicate = predicate;
+        }
+    }
+
+    private static final class Parser {
+
+        private final String rule;
+
+        private final DateTimeFormatter dates;
+
+        private int position;
+
+        Parser(String rule, DateTimeFormatter dates) {
+            this.rule = rule;
+            this.dates = dates;
+        }
+
+        List<Condition> rule() {
+            List<Condition> conditions = new ArrayList<>();
+            do {
+                conditions.add(condition());
+                skipSpaces();
+            } while (consume("&&"));
+            if (position < rule.length()) {
+                throw error("Unexpected " + rule.substring(position));
+            }
+            return conditions;
+        }
+
+        private Condition condition() {
+            skipSpaces();
+            String column = token(true);
+            skipSpaces();
+            String operator = OPERATORS.stream().filter(this::consume).findFirst()
+                .orElseThrow(() -> error("Missing operator after " + column));
+            skipSpaces();
+            String value = token(false);
+            return new Condition(column, predicate(operator, value));
+        }
+
+        /**
+         * @param column a bare column ends before spaces and operators, a bare value before {@code &&}
+         */
+        private String token(boolean column) {
+            if (position < rule.length() && rule.charAt(position) == '"') {
+                StringBuilder token = new StringBuilder();
+                for (position++; position < rule.length(); position++) {
+                    char c = rule.charAt(position);
+                    if (c == '"') {
+                        position++;
+                        return token.toString();
+                    }
+                    if (c == '\\' && position + 1 < rule.length()
+                            && (rule.charAt(position + 1) == '"' || rule.charAt(position + 1) == '\\')) {
+                        c = rule.charAt(++position);
+                    }
+                    token.append(c);
+                }
+                throw error("Unterminated quote");
+            }
+            int start = position;
+            if (column) {
+                while (position < rule.length() && !Character.isWhitespace(rule.charAt(position))
+                        && "=!<>~".indexOf(rule.charAt(position)) < 0) {
+                    position++;
+                }
+            } else {
+                int end = rule.indexOf("&&", position);
+                position = end >= 0 ? end : rule.length();
+            }
+            String token = rule.substring(start, position).trim();
+            if (column && token.isEmpty()) {
+                throw error("Missing column");
+            }
+            return token;
+        }
+
+        private Predicate<String> predicate(String operator, String value) {
+            switch (operator) {
+                case "=":
+                    return value::equals;
+                case "!=":
+                    return cell -> !value.equals(cell);
+                case "~":
+                case "!~":
+                    Pattern pattern;
+                    try {
+                        pattern = Pattern.compile(value);
+                    } catch (PatternSyntaxException e) {
+                        throw error("Invalid pattern " + value);
+                    }
+                    return "~".equals(operator)
+                        ? cell -> pattern.matcher(cell).matches()
+                        : cell -> !pattern.matcher(cell).matches();
+                default:
+                    Predicate<Integer> order = order(operator);
+                    BigDecimal number = number(value);
+                    if (number != null) {
+                        return cell -> {
+                            BigDecimal cellNumber = number(cell);
+                            return cellNumber != null && order.test(cellNumber.compareTo(number));
+                        };
+                    }
+                    LocalDateTime date = date(value);
+                    if (date != null) {
+                        return cell -> {
+                            LocalDateTime cellDate = date(cell);
+                            return cellDate != null && order.test(cellDate.compareTo(date));
+                        };
+                    }
+                    return cell -> order.test(cell.compareTo(value));
+            }
+        }
+
+        private static Predicate<Integer> order(String operator) {
+            switch (operator) {
+                case "<":
+                    return compared -> compared < 0;
+                case "<=":
+                    return compared -> compared <= 0;
+                case ">":
+                    return compared -> compared > 0;
+                default:
+                    return compared -> compared >= 0;
+            }
+        }
+
+        private static BigDecimal number(String value) {
+            try {
+                return value.isEmpty() ? null : new BigDecimal(value);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private LocalDateTime date(String value) {
+            try {
+                TemporalAccessor parsed = dates.parseBest(value, LocalDateTime::from, LocalDate::from);
+                return parsed instanceof LocalDate ? ((LocalDate) parsed).atStartOfDay() : (LocalDateTime) parsed;
+            } catch (DateTimeParseException e) {
+                return null;
+            }
+        }
+
+        private void skipSpaces() {
+            while (position < rule.length() && Character.isWhitespace(rule.charAt(position))) {
+                position++;
+            }
+        }
+
+        private boolean consume(String expected) {
+            if (rule.startsWith(expected, position)) {
+                position += expected.length();
+                return true;
+            }
+            return false;
+        }
+
+        private ConfigurationException error(String message) {
+            return new ConfigurationException(message + " in skip rule: " + rule);
+        }
+    }
+}
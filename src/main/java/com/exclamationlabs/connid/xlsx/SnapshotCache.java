@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process wide cache of merged accounts shared by every connector instance. A snapshot is keyed
+ * by the file fingerprint and the parse settings, it is loaded once no matter how many queries
+ * ask for it concurrently. Snapshots without references are evicted once they are idle for longer
+ * than their timeout or once a newer version of the same file has been loaded. Idle snapshots are
+ * swept on a daemon thread, so they are dropped even when no query follows.
+ */
+public class SnapshotCache {
+
+    private static final Log LOG = Log.getLog(SnapshotCache.class);
+
+    private static final SnapshotCache INSTANCE = new SnapshotCache();
+
+    private static final ScheduledExecutorService SWEEPER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread sweeper = new Thread(runnable, "xlsx-snapshot-sweep");
+        sweeper.setDaemon(true);
+        return sweeper;
+    });
+
+    private final Map<String, Snapshot> snapshots = new HashMap<>();
+
+    private long sweepAt = Long.MAX_VALUE;
+
+    public static SnapshotCache getInstance() {
+        return INSTANCE;
+    }
+
+    public interface Loader {
+        List<Account> load() throws IOException;
+    }
+
+    public Snapshot acquire(FileFingerprint fingerprint, String settings, long idleTimeoutMillis, Loader loader)
+            throws IOException {
+        String key = fingerprint + "|" + fingerprint.getPath() + "|" + settings;
+        Snapshot snapshot;
+
+        synchronized (this) {
+            snapshot = snapshots.get(key);
+            if (snapshot == null) {
+                snapshot = new Snapshot(fingerprint, idleTimeoutMillis);
+                snapshots.put(key, snapshot);
+            }
+            snapshot.references++;
+            evict(fingerprint);
+        }
+
+        try {
+            snapshot.load(loader);
+        } catch (IOException | RuntimeException e) {
+            release(snapshot);
+            throw e;
+        }
+        return snapshot;
+    }
+
+    public synchronized void release(Snapshot snapshot) {
+        snapshot.references--;
+        snapshot.lastUsed = System.currentTimeMillis();
+        evict(snapshot.fingerprint);
+    }
+
+    public synchronized int size() {
+        return snapshots.size();
+    }
+
+    /**
+     * @return whether a snapshot of this version of a file has been loaded
+     */
+    public synchronized boolean isLoaded(FileFingerprint fingerprint) {
+        return snapshots.values().stream()
+            .anyMatch(snapshot -> snapshot.fingerprint.equals(fingerprint) && snapshot.accounts != null);
+    }
+
+    /**
+     * Drops every snapshot without references, regardless of its timeout.
+     */
+    synchronized void clear() {
+        snapshots.values().removeIf(snapshot -> snapshot.references == 0);
+    }
+
+    private synchronized void sweep() {
+        sweepAt = Long.MAX_VALUE;
+        evict(null);
+    }
+
+    /**
+     * @param current the version just used, older versions of its file are dropped, may be null
+     */
+    private void evict(FileFingerprint current) {
+        long now = System.currentTimeMillis();
+        Iterator<Snapshot> iterator = snapshots.values().iterator();
+
+        while (iterator.hasNext()) {
+            Snapshot snapshot = iterator.next();
+            if (snapshot.references > 0) {
+                continue;
+            }
+            boolean superseded = current != null && snapshot.fingerprint.getPath().equals(current.getPath())
+                    && !snapshot.fingerprint.equals(current);
+            if (superseded || now - snapshot.lastUsed > snapshot.idleTimeoutMillis) {
+                LOG.info("Evicting snapshot of {0}", snapshot.fingerprint.getPath());
+                iterator.remove();
+            }
+        }
+        scheduleSweep();
+    }
+
+    /**
+     * Arms the sweeper for the earliest time an unreferenced snapshot times out, unless an earlier
+     * sweep is already pending.
+     */
+    private void scheduleSweep() {
+        long next = Long.MAX_VALUE;
+        for (Snapshot snapshot : snapshots.values()) {
+            if (snapshot.references == 0) {
+                next = Math.min(next, snapshot.lastUsed + snapshot.idleTimeoutMillis + 1);
+            }
+        }
+        if (next < sweepAt) {
+            sweepAt = next;
+            SWEEPER.schedule(this::sweep, Math.max(0, next - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static class Snapshot {
+
+        private final FileFingerprint fingerprint;
+
+        private final long idleTimeoutMillis;
+
+        private volatile List<Account> accounts;
+
+        private int references;
+
+        private long lastUsed = System.currentTimeMillis();
+
+        Snapshot(FileFingerprint fingerprint, long idleTimeoutMillis) {
+            this.fingerprint = fingerprint;
+            this.idleTimeoutMillis = idleTimeoutMillis;
+        }
+
+        private synchronized void load(Loader loader) throws IOException {
+            if (accounts == null) {
+                LOG.info("Loading snapshot of {0}", fingerprint.getPath());
+                ConnectorMetrics.getInstance().snapshotCacheMiss();
+                accounts = Collections.unmodifiableList(loader.load());
+            } else {
+                ConnectorMetrics.getInstance().snapshotCacheHit();
+            }
+        }
+
+        public FileFingerprint getFingerprint() {
+            return fingerprint;
+        }
+
+        public List<Account> getAccounts() {
+            return accounts;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * External sort of rows by identifier. Rows are buffered until the estimated size of the buffer
+ * exceeds the memory budget, the buffer is then sorted and written to a run file in the work
+ * directory, deleted again by {@link #close()}.
+ * {@link #merge(RowHandler)} k-way merges the runs and hands the rows out ordered by identifier,
+ * in the {@link AccountRowHandler#IDENTIFIER_ORDER} paging cookies rely on, and row number, so all
+ * rows of an account arrive contiguously and in file order.
+ */
+public class SpillingMerger implements Closeable {
+
+    private static final Log LOG = Log.getLog(SpillingMerger.class);
+
+    private static final int ROW_OVERHEAD = 48;
+
+    private static final int CELL_OVERHEAD = 40;
+
+    private static final Comparator<BufferedRow> ORDER =
+        Comparator.comparing((BufferedRow row) -> row.identifier, AccountRowHandler.IDENTIFIER_ORDER)
+            .thenComparingInt(row -> row.rowNum);
+
+    private final long memoryBudget;
+
+    private final File directory;
+
+    private final List<Run> runs = new ArrayList<>();
+
+    private List<BufferedRow> buffer = new ArrayList<>();
+
+    private long bufferSize;
+
+    /**
+     * @param directory where runs are spilled, created on the first spill
+     */
+    public SpillingMerger(long memoryBudget, File directory) {
+        this.memoryBudget = memoryBudget;
+        this.directory = directory;
+    }
+
+    public void add(String identifier, int rowNum, String[] cells) throws IOException {
+        BufferedRow row = new BufferedRow(identifier, rowNum, cells);
+        buffer.add(row);
+        bufferSize += row.estimatedSize();
+        if (bufferSize > memoryBudget) {
+            spill();
+        }
+    }
+
+    public void merge(RowHandler handler) throws IOException {
+        buffer.sort(ORDER);
+        if (runs.isEmpty()) {
+            for (BufferedRow row : buffer) {
+                if (!handler.handle(row.rowNum, row.cells)) {
+                    return;
+                }
+            }
+            return;
+        }
+
+        LOG.info("Merging {0} spilled runs", runs.size());
+        PriorityQueue<RunCursor> queue = new PriorityQueue<>(Comparator.comparing(cursor -> cursor.current, ORDER));
+        List<RunCursor> cursors = new ArrayList<>();
+        try {
+            for (Run run : runs) {
+                cursors.add(new RunCursor(run));
+            }
+            cursors.add(new RunCursor(buffer.iterator()));
+            for (RunCursor cursor : cursors) {
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+            }
+            buffer = new ArrayList<>();
+
+            while (!queue.isEmpty()) {
+                RunCursor cursor = queue.poll();
+                if (!handler.handle(cursor.current.rowNum, cursor.current.cells)) {
+                    return;
+                }
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+            }
+        } finally {
+            for (RunCursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Run run : runs) {
+            if (run.file.exists() && !run.file.delete()) {
+                LOG.warn("Unable to delete spilled run {0}", run.file);
+            }
+        }
+        runs.clear();
+        buffer = new ArrayList<>();
+        bufferSize = 0;
+    }
+
+    private void spill() throws IOException {
+        buffer.sort(ORDER);
+        directory.mkdirs();
+        File file = File.createTempFile("connector-xlsx-", ".run", directory);
+        runs.add(new Run(file, buffer.size()));
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            for (BufferedRow row : buffer) {
+                writeString(out, row.identifier);
+                out.writeInt(row.rowNum);
+                out.writeInt(row.cells.length);
+                for (String cell : row.cells) {
+                    writeString(out, cell);
+                }
+            }
+        }
+        LOG.ok("Spilled {0} rows to {1}", buffer.size(), file);
+        ConnectorMetrics.getInstance().runSpilled();
+        buffer = new ArrayList<>();
+        bufferSize = 0;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class BufferedRow {
+
+        private final String identifier;
+
+        private final int rowNum;
+
+        private final String[] cells;
+
+        BufferedRow(String identifier, int rowNum, String[] cells) {
+            this.identifier = identifier;
+            this.rowNum = rowNum;
+            this.cells = cells;
+        }
+
+        long estimatedSize() {
+            long size = ROW_OVERHEAD + 2L * identifier.length();
+            for (String cell : cells) {
+                size += cell == null ? 8 : CELL_OVERHEAD + 2L * cell.length();
+            }
+            return size;
+        }
+    }
+
+    private static class Run {
+
+        private final File file;
+
+        private final int count;
+
+        Run(File file, int count) {
+            this.file = file;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Current row of either a spilled run or the rows still held in memory.
+     */
+    private static class RunCursor implements Closeable {
+
+        private final DataInputStream in;
+
+        private final Iterator<BufferedRow> iterator;
+
+        private int remaining;
+
+        private BufferedRow current;
+
+        RunCursor(Run run) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file)));
+            this.iterator = null;
+            this.remaining = run.count;
+        }
+
+        RunCursor(Iterator<BufferedRow> iterator) {
+            this.in = null;
+            this.iterator = iterator;
+        }
+
+        boolean advance() throws IOException {
+            if (iterator != null) {
+                current = iterator.hasNext() ? iterator.next() : null;
+                return current != null;
+            }
+            if (remaining == 0) {
+                current = null;
+                return false;
+            }
+            remaining--;
+            String identifier = readString(in);
+            int rowNum = in.readInt();
+            String[] cells = new String[in.readInt()];
+            for (int i = 0; i < cells.length; i++) {
+                cells[i] = readString(in);
+            }
+            current = new BufferedRow(identifier, rowNum, cells);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+}
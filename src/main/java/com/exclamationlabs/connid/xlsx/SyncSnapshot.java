@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Identifier to content hash of every merged account of one version of an export file, stored in
+ * the work directory as a {@link SidecarFile} under the sync token of that version. Two snapshots
+ * are enough to tell which accounts were created, updated or deleted between two exports.
+ */
+public class SyncSnapshot {
+
+    private static final Log LOG = Log.getLog(SyncSnapshot.class);
+
+    private static final String MAGIC = "XLSXSYNC1";
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final String token;
+
+    private final String settings;
+
+    private final Map<String, Long> hashes;
+
+    public SyncSnapshot(String token, String settings, Map<String, Long> hashes) {
+        this.token = token;
+        this.settings = settings;
+        this.hashes = hashes;
+    }
+
+    public static File file(File directory, String filePath, String token) {
+        String name = new File(filePath).getName();
+        return new File(directory, String.format("%s.%08x.%08x.sync", name, filePath.hashCode(), token.hashCode()));
+    }
+
+    /**
+     * @return the snapshot stored for the token, or null when it is missing, unreadable or was built
+     *         with other settings
+     */
+    public static SyncSnapshot load(File file, String token, String settings) {
+        try {
+            return SidecarFile.load(file, MAGIC, token, settings, in -> {
+                int size = in.readInt();
+                Map<String, Long> hashes = new HashMap<>(size * 4 / 3 + 1);
+                for (int i = 0; i < size; i++) {
+                    byte[] identifier = new byte[in.readInt()];
+                    in.readFully(identifier);
+                    hashes.put(new String(identifier, StandardCharsets.UTF_8), in.readLong());
+                }
+                return new SyncSnapshot(token, settings, hashes);
+            });
+        } catch (IOException e) {
+            LOG.warn(e, "Unable to read sync snapshot {0}", file);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the snapshot next to the others of the same export and removes all of them but this one
+     * and the one the last sync started from.
+     */
+    public void save(File file, File keep) throws IOException {
+        SidecarFile.save(file, MAGIC, token, settings, out -> {
+            out.writeInt(hashes.size());
+            for (Map.Entry<String, Long> entry : hashes.entrySet()) {
+                byte[] identifier = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(identifier.length);
+                out.write(identifier);
+                out.writeLong(entry.getValue());
+            }
+        });
+
+        File directory = file.getAbsoluteFile().getParentFile();
+        String prefix = file.getName().substring(0, file.getName().lastIndexOf('.', file.getName().length() - 6) + 1);
+        File[] older = directory.listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(".sync"));
+        if (older != null) {
+            for (File old : older) {
+                if (!old.getName().equals(file.getName()) && (keep == null || !old.getName().equals(keep.getName()))) {
+                    old.delete();
+                }
+            }
+        }
+    }
+
+    public Map<String, Long> getHashes() {
+        return hashes;
+    }
+
+    /**
+     * 64 bit FNV-1a over the identifier and the attributes in name order.
+     */
+    public static long hash(Account account) {
+        long hash = hash(FNV_OFFSET, account.getIdentifier());
+        for (Map.Entry<String, List<Object>> attribute : new TreeMap<>(account.getAttributes()).entrySet()) {
+            hash = hash(hash, attribute.getKey());
+            for (Object value : attribute.getValue()) {
+                hash = hash(hash, String.valueOf(value));
+            }
+        }
+        return hash;
+    }
+
+    private static long hash(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        // separator so that adjacent values cannot run together
+        hash ^= 0xff;
+        hash *= FNV_PRIME;
+        return hash;
+    }
+}
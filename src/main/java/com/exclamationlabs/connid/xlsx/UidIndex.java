@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Identifier to row number index of one version of an export file, persisted as a
+ * {@link SidecarFile} under the fingerprint of the file.
+ */
+public class UidIndex {
+
+    private static final Log LOG = Log.getLog(UidIndex.class);
+
+    private static final String MAGIC = "XLSXUIDX1";
+
+    private static final int[] NO_ROWS = new int[0];
+
+    private final String fingerprint;
+
+    private final String settings;
+
+    private final Map<String, int[]> rows;
+
+    private UidIndex(String fingerprint, String settings, Map<String, int[]> rows) {
+        this.fingerprint = fingerprint;
+        this.settings = settings;
+        this.rows = rows;
+    }
+
+    /**
+     * @param sheetName sheet the index covers, null for the first sheet
+     */
+    public static File sidecarFile(File directory, FileFingerprint fingerprint, String sheetName) {
+        String name = new File(fingerprint.getPath()).getName();
+        String path = sheetName == null ? fingerprint.getPath() : fingerprint.getPath() + "#" + sheetName;
+        return new File(directory, name + "." + Integer.toHexString(path.hashCode()) + ".uidx");
+    }
+
+    /**
+     * @return the index stored in the sidecar, or null when it is missing, unreadable or stale
+     */
+    public static UidIndex load(File file, FileFingerprint fingerprint, String settings) {
+        try {
+            return SidecarFile.load(file, MAGIC, fingerprint.toString(), settings, in -> {
+                int size = in.readInt();
+                Map<String, int[]> rows = new HashMap<>(size * 4 / 3 + 1);
+                for (int i = 0; i < size; i++) {
+                    byte[] identifier = new byte[in.readInt()];
+                    in.readFully(identifier);
+                    int[] rowNums = new int[in.readInt()];
+                    for (int j = 0; j < rowNums.length; j++) {
+                        rowNums[j] = in.readInt();
+                    }
+                    rows.put(new String(identifier, StandardCharsets.UTF_8), rowNums);
+                }
+                return new UidIndex(fingerprint.toString(), settings, rows);
+            });
+        } catch (IOException e) {
+            LOG.warn(e, "Unable to read Uid index {0}", file);
+            return null;
+        }
+    }
+
+    public void save(File file) throws IOException {
+        SidecarFile.save(file, MAGIC, fingerprint, settings, out -> {
+            out.writeInt(rows.size());
+            for (Map.Entry<String, int[]> entry : rows.entrySet()) {
+                byte[] identifier = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(identifier.length);
+                out.write(identifier);
+                out.writeInt(entry.getValue().length);
+                for (int rowNum : entry.getValue()) {
+                    out.writeInt(rowNum);
+                }
+            }
+        });
+    }
+
+    public boolean isCurrent(FileFingerprint current, String currentSettings) {
+        return fingerprint.equals(current.toString()) && settings.equals(currentSettings);
+    }
+
+    public int[] getRows(String identifier) {
+        int[] rowNums = rows.get(identifier);
+        return rowNums != null ? rowNums : NO_ROWS;
+    }
+
+    /**
+     * @return the sorted row numbers of all the given identifiers
+     */
+    public int[] getRows(Collection<String> identifiers) {
+        return identifiers.stream()
+            .flatMapToInt(identifier -> Arrays.stream(getRows(identifier)))
+            .sorted()
+            .distinct()
+            .toArray();
+    }
+
+    public int size() {
+        return rows.size();
+    }
+
+    public static class Builder {
+
+        private final Map<String, int[]> rows = new HashMap<>();
+
+        public void add(String identifier, int rowNum) {
+            int[] existing = rows.get(identifier);
+            if (existing == null) {
+                rows.put(identifier, new int[]{rowNum});
+            } else {
+                int[] grown = Arrays.copyOf(existing, existing.length + 1);
+                grown[existing.length] = rowNum;
+                rows.put(identifier, grown);
+            }
+        }
+
+        public UidIndex build(FileFingerprint fingerprint, String settings) {
+            return new UidIndex(fingerprint.toString(), settings, rows);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import org.apache.poi.ss.usermodel.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Loads the whole workbook through {@link WorkbookFactory}, used for the legacy .xls format
+ * which has no streaming reader.
+ */
+public class WorkbookReader implements SheetReader {
+
+    private final String filePath;
+
+    private final String sheetName;
+
+    private Workbook wb;
+
+    public WorkbookReader(String filePath) {
+        this(filePath, null);
+    }
+
+    /**
+     * @param sheetName sheet to read, null reads the first sheet
+     */
+    public WorkbookReader(String filePath, String sheetName) {
+        this.filePath = filePath;
+        this.sheetName = sheetName;
+    }
+
+    @Override
+    public void open() throws IOException {
+        this.wb = WorkbookFactory.create(new File(this.filePath), null, true);
+    }
+
+    @Override
+    public void readRows(RowHandler handler) throws IOException {
+        if (this.wb == null) {
+            open();
+        }
+        DataFormatter dataFormatter = new DataFormatter();
+        Sheet sheet = this.sheetName != null ? this.wb.getSheet(this.sheetName) : this.wb.getSheetAt(0);
+        if (sheet == null) {
+            throw new IOException("No sheet " + this.sheetName + " in " + this.filePath);
+        }
+        Iterator<Row> rowIterator = sheet.rowIterator();
+
+        while (rowIterator.hasNext()) {
+            Row row = rowIterator.next();
+            if (!handler.wantsRow(row.getRowNum())) {
+                continue;
+            }
+            String[] cells = new String[Math.max(row.getLastCellNum(), 0)];
+            Iterator<Cell> cellIterator = row.cellIterator();
+            while (cellIterator.hasNext()) {
+                Cell cell = cellIterator.next();
+                if (handler.wantsColumn(cell.getColumnIndex())) {
+                    cells[cell.getColumnIndex()] = dataFormatter.formatCellValue(cell);
+                }
+            }
+            RowFilter filter = handler.rowFilter();
+            if (filter != null && filter.rejects(col -> col < cells.length ? cells[col] : null)) {
+                continue;
+            }
+            if (!handler.handle(row.getRowNum(), cells)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public String[] readHeader() throws IOException {
+        String[][] header = {new String[0]};
+        readRows((rowNum, cells) -> {
+            header[0] = cells;
+            return false;
+        });
+        return header[0];
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.wb != null) {
+            this.wb.close();
+        }
+        this.wb = null;
+    }
+}
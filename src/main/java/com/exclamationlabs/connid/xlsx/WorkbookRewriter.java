@@ -0,0 +1,790 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes the pending changes of a {@link WriteJournal} into an XLSX file in two sequential passes
+ * over every changed sheet. The first reads the rows through an {@link XlsxStreamReader} to find
+ * the rows to drop and where the changed accounts go, the second streams the XML of the sheet and
+ * copies every other row as it is, only renumbered. The other parts of the package, styles, shared
+ * strings and the other sheets, are copied byte for byte. The result is written next to the file
+ * and moved over it, readers see either version whole.
+ * <p>
+ * Cells of written accounts take the styles of the rows they replace, or of the data row before
+ * them. Whole numbers and booleans are written typed, everything else as inline text. Workbooks
+ * that renumbering rows would break are refused before any change is journaled, see
+ * {@link #unsupported}.
+ */
+public class WorkbookRewriter {
+
+    private static final Pattern WHOLE_NUMBER = Pattern.compile("-?(0|[1-9][0-9]{0,14})");
+
+    /**
+     * Elements of a worksheet that refer to its cells by row number.
+     */
+    private static final Set<String> ROW_ANCHORED = new HashSet<>(Arrays.asList("mergeCells", "hyperlinks",
+        "conditionalFormatting", "dataValidations", "tableParts", "drawing", "legacyDrawing"));
+
+    private WorkbookRewriter() {
+    }
+
+    /**
+     * @param changes pending changes by sheet key, see {@link WriteJournal#sheetKey}
+     * @param configurations configuration of every changed sheet by sheet key
+     */
+    public static void rewrite(String filePath, Map<String, Map<String, WriteJournal.Change>> changes,
+                               Map<String, Configuration> configurations) throws IOException {
+        File file = new File(filePath).getAbsoluteFile();
+        File temp = new File(file.getParentFile(), "." + file.getName() + ".writing");
+        Set<String> unwritten = new HashSet<>(changes.keySet());
+        Map<String, SheetEditor> editors = new HashMap<>();
+        boolean first = true;
+        for (Map.Entry<String, String> part : XlsxStreamReader.sheetParts(filePath).entrySet()) {
+            String sheetName = part.getKey();
+            String key = changes.containsKey(sheetName) || !first ? sheetName : WriteJournal.sheetKey(null);
+            first = false;
+            if (!changes.containsKey(key)) {
+                continue;
+            }
+            if (configurations.get(key) == null) {
+                throw new IOException("No configuration for sheet " + sheetName + " of " + filePath);
+            }
+            unwritten.remove(key);
+            SheetEditor editor = new SheetEditor(configurations.get(key), changes.get(key));
+            XlsxStreamReader reader = new XlsxStreamReader(filePath, sheetName);
+            try {
+                reader.readRows(editor);
+            } finally {
+                reader.close();
+            }
+            editor.finish();
+            editors.put(part.getValue(), editor);
+        }
+        if (!unwritten.isEmpty()) {
+            throw new IOException("No sheet " + unwritten + " in " + filePath);
+        }
+        try (ZipFile zip = new ZipFile(file);
+             ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                out.putNextEntry(new ZipEntry(entry.getName()));
+                try (InputStream in = zip.getInputStream(entry)) {
+                    SheetEditor editor = editors.remove(entry.getName());
+                    if (editor != null) {
+                        editor.write(in, out, file.getParentFile());
+                    } else {
+                        copy(in, out);
+                    }
+                }
+                out.closeEntry();
+            }
+            if (!editors.isEmpty()) {
+                throw new IOException("No part " + editors.keySet() + " in " + filePath);
+            }
+        } catch (IOException | RuntimeException e) {
+            temp.delete();
+            throw e;
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Looks for what renumbering the rows of the sheet would break: formulas anywhere in the
+     * workbook, merged cells, hyperlinks, conditional formats, validations, tables, drawings or
+     * comments on the sheet, and defined names referring to it.
+     *
+     * @param sheetName sheet the changes go to, null for the first sheet
+     * @return why changes can not be written to the file, null when they can
+     */
+    public static String unsupported(String filePath, String sheetName) throws IOException {
+        Map<String, String> parts = XlsxStreamReader.sheetParts(filePath);
+        String name = sheetName != null ? sheetName : parts.keySet().stream().findFirst().orElse(null);
+        String sheetPart = parts.get(name);
+        if (sheetPart == null) {
+            return null;
+        }
+        String workbookPart = XlsxStreamReader.workbookPart(filePath);
+        try (ZipFile zip = new ZipFile(filePath)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                String entry = entries.nextElement().getName();
+                if (!entry.endsWith(".xml") || entry.endsWith("sharedStrings.xml")) {
+                    continue;
+                }
+                String found = scan(zip, entry, name, entry.equals(sheetPart), entry.equals(workbookPart));
+                if (found != null) {
+                    return "Changes to sheet " + name + " of " + filePath + " would break the " + found + " of " + entry;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the first element of the part that renumbering the rows of the sheet would break
+     */
+    private static String scan(ZipFile zip, String entry, String sheetName, boolean changed, boolean workbook)
+            throws IOException {
+        try (InputStream in = zip.getInputStream(zip.getEntry(entry))) {
+            XMLStreamReader reader = inputs().createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+                    String element = reader.getLocalName();
+                    if (element.equals("f") || (changed && ROW_ANCHORED.contains(element))) {
+                        return element;
+                    }
+                    if (workbook && element.equals("definedName")) {
+                        String reference = reader.getElementText();
+                        if (reference.contains(sheetName + "!")
+                                || reference.contains("'" + sheetName.replace("'", "''") + "'!")) {
+                            return element;
+                        }
+                    }
+                }
+                return null;
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Unable to read " + entry + " of " + zip.getName(), e);
+        }
+    }
+
+    private static XMLInputFactory inputs() {
+        XMLInputFactory inputs = XMLInputFactory.newInstance();
+        inputs.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputs.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        inputs.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return inputs;
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        for (int read; (read = in.read(buffer)) >= 0; ) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    /**
+     * An account to write, with the rows it replaces and the attributes replaced in them.
+     */
+    private static class Written {
+
+        private final String identifier;
+
+        private final Map<String, List<String>> account;
+
+        private final List<Integer> rows;
+
+        private final Set<String> replaced;
+
+        Written(String identifier, Map<String, List<String>> account, List<Integer> rows, Set<String> replaced) {
+            this.identifier = identifier;
+            this.account = account;
+            this.rows = rows;
+            this.replaced = replaced;
+        }
+    }
+
+    /**
+     * Plans the changes of a sheet from its rows, finding the identifier, merge and ignore columns
+     * the way the {@link AccountRowHandler} does, then writes them into the XML of the sheet.
+     * Ignored and skipped rows are kept as they are, rows of deleted and created identifiers are
+     * dropped. Rows of updated identifiers are held until the identifier changes when the rows are
+     * sorted, or until the end otherwise, and written again as one account with the attributes
+     * replaced, keeping the cells of the other attributes. Created accounts go before the first
+     * greater identifier of a sorted sheet, at the end of others.
+     */
+    private static class SheetEditor implements RowHandler {
+
+        private final Configuration configuration;
+
+        private final Map<String, WriteJournal.Change> changes;
+
+        private final NavigableMap<String, Map<String, List<String>>> sortedCreates;
+
+        private final Map<String, Map<String, List<String>>> creates = new LinkedHashMap<>();
+
+        private final Map<String, List<String[]>> held = new LinkedHashMap<>();
+
+        private final Map<String, List<Integer>> heldRows = new HashMap<>();
+
+        private final Set<Integer> dropped = new HashSet<>();
+
+        private final Set<Integer> captured = new HashSet<>();
+
+        private final Map<Integer, List<Written>> before = new HashMap<>();
+
+        private final List<Written> after = new ArrayList<>();
+
+        private String[] names = new String[0];
+
+        private int identifierColumn = -1;
+
+        private int ignoreColumn = -1;
+
+        private Set<Integer> mergeColumns = new HashSet<>();
+
+        private RowFilter skipFilter;
+
+        private String heldIdentifier;
+
+        private List<Written> planned;
+
+        private String prefix;
+
+        private Map<Integer, Map<Integer, List<XMLEvent>>> heldCells = new HashMap<>();
+
+        private Map<Integer, String> lastStyles = new HashMap<>();
+
+        private int lastRow = -1;
+
+        private int lastColumn = -1;
+
+        SheetEditor(Configuration configuration, Map<String, WriteJournal.Change> changes) {
+            this.configuration = configuration;
+            this.changes = changes;
+            this.sortedCreates = configuration.isUidSortedProperty()
+                ? new TreeMap<>(AccountRowHandler.IDENTIFIER_ORDER)
+                : null;
+            changes.forEach((identifier, change) -> {
+                if (change.getAccount() != null) {
+                    (sortedCreates != null ? sortedCreates : creates).put(identifier, change.getAccount());
+                }
+            });
+            if (!configuration.getIncludesHeaderProperty()) {
+                identifierColumn = Integer.parseInt(configuration.getIdentifierProperty().substring(3));
+                ignoreColumn = Integer.parseInt(configuration.getIgnoreProperty().substring(3));
+                for (String merge : configuration.getMergeProperty().split(configuration.getMultivalueDelimiter())) {
+                    mergeColumns.add(Integer.parseInt(merge.substring(3)));
+                }
+                skipFilter = skipRules().bind(this::column, -1, null);
+            }
+        }
+
+        @Override
+        public boolean handle(int rowNum, String[] cells) {
+            if (rowNum == 0 && configuration.getIncludesHeaderProperty()) {
+                names = cells;
+                for (int col = 0; col < cells.length; col++) {
+                    String cellValue = cells[col];
+                    if (cellValue == null) {
+                        continue;
+                    }
+                    if (cellValue.equals(configuration.getIdentifierProperty())) {
+                        identifierColumn = col;
+                    } else if (configuration.getMergeProperty() != null && configuration.getMergeProperty().contains(cellValue)) {
+                        mergeColumns.add(col);
+                    } else if (configuration.getIgnoreProperty() != null && configuration.getIgnoreProperty().contains(cellValue)) {
+                        ignoreColumn = col;
+                    }
+                }
+                skipFilter = skipRules().bind(this::column, -1, null);
+                return true;
+            }
+            String identifier = AccountRowHandler.cellValue(cells, identifierColumn);
+            if (identifier.isEmpty()
+                    || AccountRowHandler.cellValue(cells, ignoreColumn).equals(configuration.getIgnoreValueProperty())
+                    || (skipFilter != null && skipFilter.rejects(col -> AccountRowHandler.cellValue(cells, col)))) {
+                return true;
+            }
+            planned = before.computeIfAbsent(rowNum, key -> new ArrayList<>());
+            if (heldIdentifier != null && !heldIdentifier.equals(identifier)) {
+                planHeld(heldIdentifier);
+                heldIdentifier = null;
+            }
+            while (sortedCreates != null && !sortedCreates.isEmpty()
+                    && sortedCreates.comparator().compare(sortedCreates.firstKey(), identifier) < 0) {
+                Map.Entry<String, Map<String, List<String>>> create = sortedCreates.pollFirstEntry();
+                planned.add(new Written(create.getKey(), create.getValue(), Collections.emptyList(), null));
+            }
+            if (planned.isEmpty()) {
+                before.remove(rowNum);
+            }
+            WriteJournal.Change change = changes.get(identifier);
+            if (change != null) {
+                dropped.add(rowNum);
+            }
+            if (change != null && !change.removesExisting()) {
+                held.computeIfAbsent(identifier, key -> new ArrayList<>()).add(cells);
+                heldRows.computeIfAbsent(identifier, key -> new ArrayList<>()).add(rowNum);
+                captured.add(rowNum);
+                if (configuration.isUidSortedProperty()) {
+                    heldIdentifier = identifier;
+                }
+            }
+            return true;
+        }
+
+        void finish() {
+            planned = after;
+            for (String identifier : new ArrayList<>(held.keySet())) {
+                planHeld(identifier);
+            }
+            if (sortedCreates != null) {
+                creates.putAll(sortedCreates);
+            }
+            creates.forEach((identifier, account) ->
+                after.add(new Written(identifier, account, Collections.emptyList(), null)));
+        }
+
+        /**
+         * Merges the held rows of the identifier into its attributes like a read would and replaces
+         * the changed attributes.
+         */
+        private void planHeld(String identifier) {
+            List<String[]> rows = held.remove(identifier);
+            Map<String, List<String>> account = new LinkedHashMap<>();
+            String[] first = rows.get(0);
+            for (int col = 0; col < first.length; col++) {
+                if (col != identifierColumn && first[col] != null && !first[col].isEmpty()) {
+                    account.computeIfAbsent(name(col), key -> new ArrayList<>()).add(first[col]);
+                }
+            }
+            for (String[] row : rows.subList(1, rows.size())) {
+                for (int col : mergeColumns) {
+                    account.computeIfAbsent(name(col), key -> new ArrayList<>())
+                        .add(AccountRowHandler.cellValue(row, col).trim());
+                }
+            }
+            Map<String, List<String>> replacements = changes.get(identifier).getReplacements();
+            WriteJournal.replace(account, replacements);
+            planned.add(new Written(identifier, account, heldRows.remove(identifier), replacements.keySet()));
+        }
+
+        /**
+         * Streams the XML of the sheet from in to out with the planned changes. The rows are
+         * written to a temporary file in the directory first, the dimension before them is only
+         * known once they are.
+         */
+        void write(InputStream in, OutputStream out, File directory) throws IOException {
+            File rows = File.createTempFile(".rows", ".xml", directory);
+            try {
+                XMLEventReader events = inputs().createXMLEventReader(in);
+                List<XMLEvent> head = new ArrayList<>();
+                StartElement sheetData = null;
+                while (sheetData == null && events.hasNext()) {
+                    XMLEvent event = events.nextEvent();
+                    if (event.isStartElement() && local(event).equals("sheetData")) {
+                        sheetData = event.asStartElement();
+                    } else {
+                        head.add(event);
+                    }
+                }
+                if (sheetData == null) {
+                    throw new IOException("No sheetData in sheet");
+                }
+                prefix = sheetData.getName().getPrefix();
+                try (Writer rowsOut = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(rows),
+                        StandardCharsets.UTF_8))) {
+                    writeRows(events, rowsOut);
+                }
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\r\n");
+                for (XMLEvent event : head) {
+                    if (event.isStartElement() && local(event).equals("dimension")) {
+                        writeStart(writer, event.asStartElement(), "ref", dimension(attribute(event.asStartElement(), "ref")));
+                    } else {
+                        writeEvent(writer, event);
+                    }
+                }
+                writeEvent(writer, sheetData);
+                try (Reader reader = new InputStreamReader(new FileInputStream(rows), StandardCharsets.UTF_8)) {
+                    char[] buffer = new char[8192];
+                    for (int read; (read = reader.read(buffer)) >= 0; ) {
+                        writer.write(buffer, 0, read);
+                    }
+                }
+                writer.write("</" + qualified(sheetData.getName()) + ">");
+                while (events.hasNext()) {
+                    XMLEvent event = events.nextEvent();
+                    if (event.isStartElement() && ROW_ANCHORED.contains(local(event))) {
+                        throw new IOException("Unable to renumber the rows of a sheet with " + local(event));
+                    }
+                    writeEvent(writer, event);
+                }
+                writer.flush();
+            } catch (XMLStreamException e) {
+                throw new IOException("Unable to read sheet", e);
+            } finally {
+                rows.delete();
+            }
+        }
+
+        /**
+         * Copies the rows up to the end of the sheet data, dropping the planned rows and writing
+         * the planned accounts, every row numbered after the rows written before it.
+         */
+        private void writeRows(XMLEventReader events, Writer out) throws XMLStreamException, IOException {
+            int nextRowNum = 0;
+            int shift = 0;
+            while (events.hasNext()) {
+                XMLEvent event = events.nextEvent();
+                if (event.isEndElement()) {
+                    break;
+                }
+                if (!event.isStartElement()) {
+                    continue;
+                }
+                StartElement start = event.asStartElement();
+                List<XMLEvent> row = readElement(events, start);
+                if (!local(start).equals("row")) {
+                    for (XMLEvent child : row) {
+                        writeEvent(out, child);
+                    }
+                    continue;
+                }
+                String reference = attribute(start, "r");
+                int rowNum = reference != null ? Integer.parseInt(reference) - 1 : nextRowNum;
+                nextRowNum = rowNum + 1;
+                for (Written written : before.getOrDefault(rowNum, Collections.emptyList())) {
+                    shift += writeAccount(out, written, rowNum + shift);
+                }
+                Map<Integer, List<XMLEvent>> cells = cells(row);
+                if (captured.contains(rowNum)) {
+                    heldCells.put(rowNum, cells);
+                }
+                if (dropped.contains(rowNum)) {
+                    shift--;
+                    continue;
+                }
+                writeStart(out, start, "r", String.valueOf(rowNum + shift + 1));
+                for (Map.Entry<Integer, List<XMLEvent>> cell : cells.entrySet()) {
+                    writeCell(out, cell.getKey(), rowNum + shift, cell.getValue());
+                }
+                out.write("</" + qualified(start.getName()) + ">");
+                lastRow = rowNum + shift;
+                if (rowNum > 0 || !configuration.getIncludesHeaderProperty()) {
+                    lastStyles = styles(cells);
+                }
+            }
+            for (Written written : after) {
+                writeAccount(out, written, lastRow + 1);
+            }
+        }
+
+        /**
+         * Writes one row per value of the merge columns, at least one per replaced row unless a merge
+         * attribute was replaced. Replaced rows keep the cells of the attributes not replaced,
+         * other rows repeat the single valued attributes.
+         *
+         * @return the number of rows written
+         */
+        private int writeAccount(Writer out, Written written, int firstRow) throws IOException {
+            int rows = 1;
+            boolean mergeReplaced = false;
+            for (int col : mergeColumns) {
+                List<String> values = written.account.get(name(col));
+                rows = Math.max(rows, values != null ? values.size() : 0);
+                mergeReplaced |= written.replaced != null && written.replaced.contains(name(col));
+            }
+            if (!mergeReplaced) {
+                rows = Math.max(rows, written.rows.size());
+            }
+            for (int index = 0; index < rows; index++) {
+                Map<Integer, List<XMLEvent>> source = index < written.rows.size()
+                    ? heldCells.get(written.rows.get(index)) : null;
+                Map<Integer, String> styles = written.rows.isEmpty() ? lastStyles
+                    : styles(heldCells.get(written.rows.get(Math.min(index, written.rows.size() - 1))));
+                SortedMap<Integer, Object> cells = new TreeMap<>();
+                if (source != null) {
+                    source.forEach((col, events) -> {
+                        if (!written.replaced.contains(name(col))) {
+                            cells.put(col, events);
+                        }
+                    });
+                } else {
+                    cells.put(identifierColumn, written.identifier);
+                }
+                for (Map.Entry<String, List<String>> attribute : written.account.entrySet()) {
+                    int col = column(attribute.getKey());
+                    List<String> values = attribute.getValue();
+                    if (col < 0 || col == identifierColumn || values.isEmpty()
+                            || (source != null && !written.replaced.contains(attribute.getKey()))) {
+                        continue;
+                    }
+                    String value = !mergeColumns.contains(col) ? values.get(0)
+                        : index < values.size() ? values.get(index) : null;
+                    if (value != null && !value.isEmpty()) {
+                        cells.put(col, value);
+                    }
+                }
+                int rowNum = firstRow + index;
+                out.write("<" + tag("row") + " r=\"" + (rowNum + 1) + "\">");
+                for (Map.Entry<Integer, Object> cell : cells.entrySet()) {
+                    if (cell.getValue() instanceof String) {
+                        writeValue(out, cell.getKey(), rowNum, (String) cell.getValue(), styles.get(cell.getKey()));
+                    } else {
+                        @SuppressWarnings("unchecked")
+                        List<XMLEvent> events = (List<XMLEvent>) cell.getValue();
+                        writeCell(out, cell.getKey(), rowNum, events);
+                    }
+                }
+                out.write("</" + tag("row") + ">");
+                lastRow = rowNum;
+            }
+            return rows;
+        }
+
+        private void writeCell(Writer out, int col, int rowNum, List<XMLEvent> events) throws IOException {
+            writeStart(out, events.get(0).asStartElement(), "r", reference(col, rowNum));
+            for (XMLEvent event : events.subList(1, events.size())) {
+                writeEvent(out, event);
+            }
+            lastColumn = Math.max(lastColumn, col);
+        }
+
+        private void writeValue(Writer out, int col, int rowNum, String value, String style) throws IOException {
+            out.write("<" + tag("c") + " r=\"" + reference(col, rowNum) + "\"");
+            if (style != null) {
+                out.write(" s=\"" + escape(style, true) + "\"");
+            }
+            if (WHOLE_NUMBER.matcher(value).matches()) {
+                out.write("><" + tag("v") + ">" + value);
+            } else if ("TRUE".equals(value) || "FALSE".equals(value)) {
+                out.write(" t=\"b\"><" + tag("v") + ">" + ("TRUE".equals(value) ? "1" : "0"));
+            } else {
+                out.write(" t=\"inlineStr\"><" + tag("is") + "><" + tag("t") + " xml:space=\"preserve\">"
+                    + escape(value, false) + "</" + tag("t") + "></" + tag("is"));
+                out.write("></" + tag("c") + ">");
+                lastColumn = Math.max(lastColumn, col);
+                return;
+            }
+            out.write("</" + tag("v") + "></" + tag("c") + ">");
+            lastColumn = Math.max(lastColumn, col);
+        }
+
+        /**
+         * @return the cells of the row by column
+         */
+        private Map<Integer, List<XMLEvent>> cells(List<XMLEvent> row) throws IOException {
+            Map<Integer, List<XMLEvent>> cells = new TreeMap<>();
+            List<XMLEvent> cell = null;
+            int depth = 0;
+            int nextColumn = 0;
+            for (XMLEvent event : row.subList(1, row.size() - 1)) {
+                if (event.isStartElement()) {
+                    if (local(event).equals("f")) {
+                        throw new IOException("Unable to renumber the rows of a sheet with formulas");
+                    }
+                    if (depth++ == 0 && local(event).equals("c")) {
+                        String reference = attribute(event.asStartElement(), "r");
+                        int col = reference != null ? XlsxStreamReader.columnIndex(reference) : nextColumn;
+                        nextColumn = col + 1;
+                        cell = new ArrayList<>();
+                        cells.put(col, cell);
+                    }
+                } else if (event.isEndElement() && --depth == 0) {
+                    if (cell != null) {
+                        cell.add(event);
+                    }
+                    cell = null;
+                    continue;
+                }
+                if (cell != null) {
+                    cell.add(event);
+                }
+            }
+            return cells;
+        }
+
+        private static Map<Integer, String> styles(Map<Integer, List<XMLEvent>> cells) {
+            Map<Integer, String> styles = new HashMap<>();
+            cells.forEach((col, events) -> {
+                String style = attribute(events.get(0).asStartElement(), "s");
+                if (style != null) {
+                    styles.put(col, style);
+                }
+            });
+            return styles;
+        }
+
+        /**
+         * @return the reference with the end moved to the last row and column written
+         */
+        private String dimension(String reference) {
+            if (reference == null || lastRow < 0) {
+                return reference;
+            }
+            String[] corners = reference.split(":");
+            int col = Math.max(lastColumn, XlsxStreamReader.columnIndex(corners[corners.length - 1]));
+            return (corners.length > 1 ? corners[0] : "A1") + ":" + reference(Math.max(col, 0), lastRow);
+        }
+
+        private String tag(String local) {
+            return prefix.isEmpty() ? local : prefix + ":" + local;
+        }
+
+        private SkipRules skipRules() {
+            return SkipRules.compile(configuration.getSkipRulesProperty(), configuration.getSkipDateFormatProperty());
+        }
+
+        private String name(int col) {
+            if (!configuration.getIncludesHeaderProperty()) {
+                return "col" + col;
+            }
+            return col < names.length && names[col] != null ? names[col] : "";
+        }
+
+        /**
+         * @return the column of the attribute, -1 when the sheet has none
+         */
+        private int column(String name) {
+            if (!configuration.getIncludesHeaderProperty()) {
+                return name.startsWith("col") ? Integer.parseInt(name.substring(3)) : -1;
+            }
+            return Arrays.asList(names).indexOf(name);
+        }
+    }
+
+    /**
+     * @return the events of the element from its start to its end
+     */
+    private static List<XMLEvent> readElement(XMLEventReader events, StartElement start) throws XMLStreamException {
+        List<XMLEvent> element = new ArrayList<>();
+        element.add(start);
+        for (int depth = 1; depth > 0; ) {
+            XMLEvent event = events.nextEvent();
+            if (event.isStartElement()) {
+                depth++;
+            } else if (event.isEndElement()) {
+                depth--;
+            }
+            element.add(event);
+        }
+        return element;
+    }
+
+    private static String reference(int col, int rowNum) {
+        StringBuilder letters = new StringBuilder();
+        for (int rest = col + 1; rest > 0; rest = (rest - 1) / 26) {
+            letters.insert(0, (char) ('A' + (rest - 1) % 26));
+        }
+        return letters.toString() + (rowNum + 1);
+    }
+
+    private static String local(XMLEvent event) {
+        return event.isStartElement() ? event.asStartElement().getName().getLocalPart()
+            : event.asEndElement().getName().getLocalPart();
+    }
+
+    private static String attribute(StartElement start, String name) {
+        Attribute attribute = start.getAttributeByName(new QName(name));
+        return attribute != null ? attribute.getValue() : null;
+    }
+
+    private static String qualified(QName name) {
+        return name.getPrefix().isEmpty() ? name.getLocalPart() : name.getPrefix() + ":" + name.getLocalPart();
+    }
+
+    private static void writeEvent(Writer out, XMLEvent event) throws IOException {
+        if (event.isStartElement()) {
+            writeStart(out, event.asStartElement(), null, null);
+        } else if (event.isEndElement()) {
+            out.write("</" + qualified(event.asEndElement().getName()) + ">");
+        } else if (event.isCharacters()) {
+            out.write(escape(event.asCharacters().getData(), false));
+        }
+    }
+
+    /**
+     * Writes the start tag with the unprefixed attribute set to the value, when one is given.
+     */
+    private static void writeStart(Writer out, StartElement start, String attribute, String value) throws IOException {
+        out.write("<" + qualified(start.getName()));
+        for (Iterator<?> namespaces = start.getNamespaces(); namespaces.hasNext(); ) {
+            Namespace namespace = (Namespace) namespaces.next();
+            out.write(namespace.getPrefix().isEmpty() ? " xmlns" : " xmlns:" + namespace.getPrefix());
+            out.write("=\"" + escape(namespace.getNamespaceURI(), true) + "\"");
+        }
+        boolean set = false;
+        for (Iterator<?> attributes = start.getAttributes(); attributes.hasNext(); ) {
+            Attribute next = (Attribute) attributes.next();
+            String nextValue = next.getValue();
+            if (attribute != null && next.getName().getPrefix().isEmpty()
+                    && next.getName().getLocalPart().equals(attribute)) {
+                nextValue = value;
+                set = true;
+            }
+            out.write(" " + qualified(next.getName()) + "=\"" + escape(nextValue, true) + "\"");
+        }
+        if (attribute != null && !set && value != null) {
+            out.write(" " + attribute + "=\"" + escape(value, true) + "\"");
+        }
+        out.write(">");
+    }
+
+    /**
+     * Escapes the markup characters and drops the characters XML 1.0 can not hold.
+     */
+    private static String escape(String text, boolean attribute) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    escaped.append("&amp;");
+                    break;
+                case '<':
+                    escaped.append("&lt;");
+                    break;
+                case '>':
+                    escaped.append("&gt;");
+                    break;
+                case '"':
+                    escaped.append(attribute ? "&quot;" : "\"");
+                    break;
+                case '\r':
+                    escaped.append("&#13;");
+                    break;
+                case '\n':
+                case '\t':
+                    escaped.append(attribute ? "&#" + (int) c + ";" : String.valueOf(c));
+                    break;
+                default:
+                    if (c >= 0x20 && c != 0xFFFE && c != 0xFFFF) {
+                        escaped.append(c);
+                    }
+            }
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import org.identityconnectors.common.StringUtil;
+import org.identityconnectors.framework.common.exceptions.AlreadyExistsException;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.identityconnectors.framework.common.exceptions.UnknownUidException;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeUtil;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.Uid;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Checks the creates, updates and deletes of one object class and appends them to the
+ * {@link WriteJournal} of the file, which the {@link WorkbookRewriter} writes in batches. Callers
+ * hold the lock of the journal. Identifiers are checked against the identifiers of the current
+ * version of the file, read once per version, with the pending changes applied. Files the
+ * rewriter can not change without breaking them are refused before anything is journaled.
+ */
+public class WriteHandler {
+
+    private final WriteJournal journal;
+
+    private final Configuration configuration;
+
+    private final ReadHandler readHandler;
+
+    private final ObjectClass objectClass;
+
+    private final String sheetKey;
+
+    /**
+     * @param readHandler reads the heading and identifiers of the sheet
+     */
+    public WriteHandler(WriteJournal journal, Configuration configuration, ReadHandler readHandler,
+                        ObjectClass objectClass) {
+        this.journal = journal;
+        this.configuration = configuration;
+        this.readHandler = readHandler;
+        this.objectClass = objectClass;
+        this.sheetKey = WriteJournal.sheetKey(configuration.getSheetProperty());
+    }
+
+    /**
+     * @param attributes the identifier is taken from the name, or the Uid when there is no name, it
+     *                   must not be in any row, ignored and skipped rows included
+     */
+    public Uid create(Set<Attribute> attributes) {
+        WriteJournal.Sheet sheet = sheet();
+        String identifier = identifier(attributes);
+        if (StringUtil.isBlank(identifier)) {
+            throw new InvalidAttributeValueException("Missing " + Name.NAME);
+        }
+        if (sheet.exists(identifier)) {
+            throw new AlreadyExistsException("Object " + identifier + " already exists");
+        }
+        if (sheet.isHidden(identifier)) {
+            throw new AlreadyExistsException("Object " + identifier + " already exists in an ignored or skipped row");
+        }
+        Map<String, List<String>> values = values(sheet, attributes);
+        values.values().removeIf(List::isEmpty);
+        try {
+            journal.create(sheetKey, identifier, values);
+        } catch (IOException e) {
+            throw new ConnectorIOException(e);
+        }
+        return new Uid(identifier);
+    }
+
+    /**
+     * @param attributes replace the values of the attributes, no values remove them, the
+     *                   identifier can not be changed
+     */
+    public Uid update(Uid uid, Set<Attribute> attributes) {
+        WriteJournal.Sheet sheet = existing(uid);
+        String identifier = identifier(attributes);
+        if (identifier != null && !identifier.equals(uid.getUidValue())) {
+            throw new InvalidAttributeValueException("The identifier of " + uid.getUidValue() + " can not be changed");
+        }
+        try {
+            journal.update(sheetKey, uid.getUidValue(), values(sheet, attributes));
+        } catch (IOException e) {
+            throw new ConnectorIOException(e);
+        }
+        return uid;
+    }
+
+    public void delete(Uid uid) {
+        existing(uid);
+        try {
+            journal.delete(sheetKey, uid.getUidValue());
+        } catch (IOException e) {
+            throw new ConnectorIOException(e);
+        }
+    }
+
+    private WriteJournal.Sheet existing(Uid uid) {
+        WriteJournal.Sheet sheet = sheet();
+        if (!sheet.exists(uid.getUidValue())) {
+            throw new UnknownUidException(uid, objectClass);
+        }
+        return sheet;
+    }
+
+    private WriteJournal.Sheet sheet() {
+        WriteJournal.Sheet sheet = journal.sheet(sheetKey);
+        try {
+            FileFingerprint fingerprint = FileFingerprint.of(journal.getFilePath());
+            if (!sheet.isCurrent(fingerprint)) {
+                String unsupported = WorkbookRewriter.unsupported(journal.getFilePath(), configuration.getSheetProperty());
+                if (unsupported != null) {
+                    throw new ConnectorException(unsupported);
+                }
+                Set<String> hidden = ConcurrentHashMap.newKeySet();
+                sheet.load(fingerprint, readHandler.getHeading(configuration.getIncludesHeaderProperty()),
+                    readHandler.getIdentifiers(configuration, hidden), hidden);
+            }
+        } catch (IOException e) {
+            throw new ConnectorIOException(e);
+        }
+        return sheet;
+    }
+
+    private static String identifier(Set<Attribute> attributes) {
+        Name name = AttributeUtil.getNameFromAttributes(attributes);
+        if (name != null) {
+            return name.getNameValue();
+        }
+        Uid uid = AttributeUtil.getUidAttribute(attributes);
+        return uid != null ? uid.getUidValue() : null;
+    }
+
+    /**
+     * @return the values of the attributes as the cells hold them, only the merge columns take
+     *         several values
+     */
+    private Map<String, List<String>> values(WriteJournal.Sheet sheet, Set<Attribute> attributes) {
+        List<String> heading = Arrays.asList(sheet.getHeading());
+        List<String> mergeProperty = Arrays.asList(configuration.getMergeProperty()
+            .split(configuration.getMultivalueDelimiter()));
+        Map<String, List<String>> values = new LinkedHashMap<>();
+        for (Attribute attribute : attributes) {
+            if (attribute.is(Name.NAME) || attribute.is(Uid.NAME)) {
+                continue;
+            }
+            String name = attribute.getName();
+            if (name.equals(configuration.getIdentifierProperty()) || !heading.contains(name)) {
+                throw new InvalidAttributeValueException("Unknown attribute " + name);
+            }
+            List<String> cells = new ArrayList<>();
+            if (attribute.getValue() != null) {
+                for (Object value : attribute.getValue()) {
+                    if (value != null) {
+                        cells.add(value.toString());
+                    }
+                }
+            }
+            if (cells.size() > 1 && !mergeProperty.contains(name)) {
+                throw new InvalidAttributeValueException("Attribute " + name + " takes a single value");
+            }
+            values.put(name, cells);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Creates, updates and deletes of one export file that are not written to it yet. Every change is
+ * appended to a journal file in the work directory before it is acknowledged, so pending changes
+ * survive a restart and are committed by the next write or read of the file. Changes of the same
+ * identifier are combined, a batch is committed with a single rewrite of the file by the
+ * {@link WorkbookRewriter}.
+ * <p>
+ * Connector instances only live for one operation, the journal of a file is shared by all of them
+ * in the process. Callers synchronize on it around checking, journaling and committing changes.
+ */
+public class WriteJournal {
+
+    private static final Log LOG = Log.getLog(WriteJournal.class);
+
+    private static final String MAGIC = "XLSXJRN1";
+
+    private static final Map<String, WriteJournal> JOURNALS = new HashMap<>();
+
+    private final String filePath;
+
+    private final File file;
+
+    private final Map<String, Sheet> sheets = new LinkedHashMap<>();
+
+    private int size;
+
+    private long pendingSince;
+
+    private WriteJournal(String filePath, File file) {
+        this.filePath = filePath;
+        this.file = file;
+    }
+
+    /**
+     * @return the journal of the export file, holding the changes a previous process left in the
+     *         work directory
+     */
+    public static synchronized WriteJournal of(String filePath, File workDirectory) throws IOException {
+        String path = new File(filePath).getCanonicalPath();
+        WriteJournal journal = JOURNALS.get(path);
+        if (journal == null) {
+            journal = new WriteJournal(path, file(workDirectory, path));
+            journal.replay();
+            JOURNALS.put(path, journal);
+        }
+        return journal;
+    }
+
+    /**
+     * @return the journal of the export file when it holds changes, null otherwise
+     */
+    public static synchronized WriteJournal pending(String filePath, File workDirectory) throws IOException {
+        String path = new File(filePath).getCanonicalPath();
+        if (!JOURNALS.containsKey(path) && !file(workDirectory, path).isFile()) {
+            return null;
+        }
+        WriteJournal journal = of(path, workDirectory);
+        return journal.size() > 0 ? journal : null;
+    }
+
+    private static File file(File directory, String path) {
+        return new File(directory, new File(path).getName() + "." + Integer.toHexString(path.hashCode()) + ".journal");
+    }
+
+    /**
+     * @param sheetName configured sheet, null for the first sheet
+     * @return the key of the sheet in the journal
+     */
+    public static String sheetKey(String sheetName) {
+        return sheetName == null ? "" : sheetName;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    /**
+     * @return the number of identifiers with pending changes
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return when the oldest pending change was journaled, in milliseconds, 0 for changes
+     *         recovered from a previous process
+     */
+    public synchronized long getPendingSince() {
+        return pendingSince;
+    }
+
+    public synchronized Sheet sheet(String sheetKey) {
+        return sheets.computeIfAbsent(sheetKey, key -> new Sheet());
+    }
+
+    /**
+     * @return the pending changes of every sheet by identifier, sheets without changes left out
+     */
+    public synchronized Map<String, Map<String, Change>> getChanges() {
+        Map<String, Map<String, Change>> changes = new LinkedHashMap<>();
+        sheets.forEach((key, sheet) -> {
+            if (!sheet.changes.isEmpty()) {
+                changes.put(key, sheet.changes);
+            }
+        });
+        return changes;
+    }
+
+    public synchronized void create(String sheetKey, String identifier, Map<String, List<String>> attributes)
+            throws IOException {
+        append('C', sheetKey, identifier, attributes);
+        apply('C', sheetKey, identifier, attributes);
+    }
+
+    /**
+     * @param attributes replace the values of the attributes, an empty list removes the attribute
+     */
+    public synchronized void update(String sheetKey, String identifier, Map<String, List<String>> attributes)
+            throws IOException {
+        append('U', sheetKey, identifier, attributes);
+        apply('U', sheetKey, identifier, attributes);
+    }
+
+    public synchronized void delete(String sheetKey, String identifier) throws IOException {
+        append('D', sheetKey, identifier, Collections.emptyMap());
+        apply('D', sheetKey, identifier, Collections.emptyMap());
+    }
+
+    /**
+     * Forgets the changes once the file holds them. Replaying them after a crash before this is
+     * harmless, every change leaves the same file when it is applied twice.
+     *
+     * @param fingerprint version of the file written with the changes
+     */
+    public synchronized void committed(FileFingerprint fingerprint) {
+        for (Sheet sheet : sheets.values()) {
+            sheet.committed(fingerprint);
+            sheet.changes.clear();
+        }
+        size = 0;
+        if (file.exists() && !file.delete()) {
+            LOG.warn("Unable to delete write journal {0}", file);
+        }
+    }
+
+    private void apply(char operation, String sheetKey, String identifier, Map<String, List<String>> attributes) {
+        Map<String, Change> changes = sheet(sheetKey).changes;
+        Change change = changes.get(identifier);
+        if (change == null) {
+            if (size++ == 0) {
+                pendingSince = System.currentTimeMillis();
+            }
+        }
+        if (operation == 'C') {
+            changes.put(identifier, new Change(true, new LinkedHashMap<>(attributes), null));
+        } else if (operation == 'D') {
+            changes.put(identifier, new Change(true, null, null));
+        } else if (change == null) {
+            changes.put(identifier, new Change(false, null, new LinkedHashMap<>(attributes)));
+        } else if (change.account != null) {
+            replace(change.account, attributes);
+        } else if (change.replacements != null) {
+            change.replacements.putAll(attributes);
+        }
+    }
+
+    static void replace(Map<String, List<String>> account, Map<String, List<String>> replacements) {
+        replacements.forEach((name, values) -> {
+            if (values.isEmpty()) {
+                account.remove(name);
+            } else {
+                account.put(name, values);
+            }
+        });
+    }
+
+    private void append(char operation, String sheetKey, String identifier, Map<String, List<String>> attributes)
+            throws IOException {
+        boolean created = !file.exists();
+        if (created) {
+            file.getAbsoluteFile().getParentFile().mkdirs();
+        }
+        try (FileOutputStream stream = new FileOutputStream(file, true);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+            if (created) {
+                out.writeUTF(MAGIC);
+                out.writeUTF(filePath);
+            }
+            out.writeByte(operation);
+            out.writeUTF(sheetKey);
+            out.writeUTF(identifier);
+            out.writeInt(attributes.size());
+            for (Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+                out.writeUTF(attribute.getKey());
+                out.writeInt(attribute.getValue().size());
+                for (String value : attribute.getValue()) {
+                    out.writeUTF(value);
+                }
+            }
+            out.flush();
+            // the change is only acknowledged once it is on disk
+            stream.getFD().sync();
+        }
+    }
+
+    /**
+     * Applies the changes of the journal file, a record cut short by a crash is dropped.
+     */
+    private void replay() throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        int complete = 0;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (!MAGIC.equals(in.readUTF()) || !filePath.equals(in.readUTF())) {
+                throw new IOException("Write journal " + file + " does not belong to " + filePath);
+            }
+            complete = bytes.length - in.available();
+            while (in.available() > 0) {
+                char operation = (char) in.readByte();
+                String sheetKey = in.readUTF();
+                String identifier = in.readUTF();
+                Map<String, List<String>> attributes = new LinkedHashMap<>();
+                for (int attribute = in.readInt(); attribute > 0; attribute--) {
+                    String name = in.readUTF();
+                    List<String> values = new ArrayList<>();
+                    for (int value = in.readInt(); value > 0; value--) {
+                        values.add(in.readUTF());
+                    }
+                    attributes.put(name, values);
+                }
+                apply(operation, sheetKey, identifier, attributes);
+                complete = bytes.length - in.available();
+            }
+        } catch (EOFException e) {
+            LOG.warn("Dropping incomplete change at the end of write journal {0}", file);
+            try (RandomAccessFile truncated = new RandomAccessFile(file, "rw")) {
+                truncated.setLength(complete);
+            }
+        }
+        pendingSince = 0;
+        if (size > 0) {
+            LOG.info("Recovered {0} pending changes of {1}", size, filePath);
+        }
+    }
+
+    /**
+     * The pending changes of one sheet, and its identifiers and heading as of the version of the
+     * file they were read from. Identifiers of ignored and skipped rows are kept apart, no change
+     * touches their rows.
+     */
+    public static class Sheet {
+
+        private final Map<String, Change> changes = new LinkedHashMap<>();
+
+        private String fingerprint;
+
+        private String[] heading;
+
+        private Set<String> identifiers;
+
+        private Set<String> hiddenIdentifiers;
+
+        public Change getChange(String identifier) {
+            return changes.get(identifier);
+        }
+
+        /**
+         * @return whether an account with the identifier exists once the pending changes are applied
+         */
+        public boolean exists(String identifier) {
+            Change change = changes.get(identifier);
+            if (change != null && change.removesExisting) {
+                return change.account != null;
+            }
+            return identifiers.contains(identifier);
+        }
+
+        /**
+         * @return whether a row of an ignored or skipped account has the identifier
+         */
+        public boolean isHidden(String identifier) {
+            return hiddenIdentifiers.contains(identifier);
+        }
+
+        public boolean isCurrent(FileFingerprint fingerprint) {
+            return fingerprint.toString().equals(this.fingerprint);
+        }
+
+        public void load(FileFingerprint fingerprint, String[] heading, Set<String> identifiers,
+                         Set<String> hiddenIdentifiers) {
+            this.fingerprint = fingerprint.toString();
+            this.heading = heading;
+            this.identifiers = identifiers;
+            this.hiddenIdentifiers = hiddenIdentifiers;
+        }
+
+        public String[] getHeading() {
+            return heading;
+        }
+
+        /**
+         * Moves the identifiers to the version of the file the pending changes were committed to.
+         */
+        void committed(FileFingerprint fingerprint) {
+            if (identifiers != null) {
+                changes.forEach((identifier, change) -> {
+                    if (change.account != null) {
+                        identifiers.add(identifier);
+                    } else if (change.removesExisting) {
+                        identifiers.remove(identifier);
+                    }
+                });
+                this.fingerprint = fingerprint.toString();
+            }
+        }
+    }
+
+    /**
+     * The pending change of one identifier: its rows are removed and, for a created account,
+     * replaced by the rows of the account, or the rows are kept with some attributes replaced.
+     */
+    public static class Change {
+
+        private final boolean removesExisting;
+
+        private final Map<String, List<String>> account;
+
+        private final Map<String, List<String>> replacements;
+
+        Change(boolean removesExisting, Map<String, List<String>> account, Map<String, List<String>> replacements) {
+            this.removesExisting = removesExisting;
+            this.account = account;
+            this.replacements = replacements;
+        }
+
+        public boolean removesExisting() {
+            return removesExisting;
+        }
+
+        /**
+         * @return the attributes of the account written instead of the existing rows, null unless
+         *         the account was created
+         */
+        public Map<String, List<String>> getAccount() {
+            return account;
+        }
+
+        /**
+         * @return the attributes replaced in the existing rows, null unless the account was only updated
+         */
+        public Map<String, List<String>> getReplacements() {
+            return replacements;
+        }
+    }
+}
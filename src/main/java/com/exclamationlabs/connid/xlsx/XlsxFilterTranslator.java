@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.filter.AbstractFilterTranslator;
+import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
+import org.identityconnectors.framework.common.objects.filter.StartsWithFilter;
+
+import java.util.List;
+
+/**
+ * Translates equality and prefix filters, and their conjunctions and disjunctions, into a
+ * {@link Filter} evaluated while the sheet is read. Negations are left to the framework.
+ */
+public class XlsxFilterTranslator extends AbstractFilterTranslator<Filter> {
+
+    @Override
+    protected Filter createEqualsExpression(EqualsFilter filter, boolean not) {
+        Attribute attribute = filter.getAttribute();
+        List<Object> values = attribute.getValue();
+        if (not || values == null || values.size() != 1 || values.get(0) == null) {
+            return null;
+        }
+        return Filter.equalTo(attribute.getName(), values.get(0).toString());
+    }
+
+    @Override
+    protected Filter createStartsWithExpression(StartsWithFilter filter, boolean not) {
+        if (not || filter.getValue() == null) {
+            return null;
+        }
+        return Filter.startsWith(filter.getName(), filter.getValue());
+    }
+
+    @Override
+    protected Filter createAndExpression(Filter leftExpression, Filter rightExpression) {
+        return Filter.and(leftExpression, rightExpression);
+    }
+
+    @Override
+    protected Filter createOrExpression(Filter leftExpression, Filter rightExpression) {
+        return Filter.or(leftExpression, rightExpression);
+    }
+}
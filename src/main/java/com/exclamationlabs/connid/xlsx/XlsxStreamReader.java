@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import org.apache.poi.ooxml.POIXMLException;
+import org.apache.poi.ooxml.util.SAXHelper;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.openxml4j.opc.PackageRelationshipCollection;
+import org.apache.poi.openxml4j.opc.PackageRelationshipTypes;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.SharedStrings;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFRelation;
+import org.identityconnectors.common.logging.Log;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Streams one sheet of an XLSX file through SAX, the first unless a sheet name is given, only the shared strings
+ * table and the current row are held in memory. Opening only reads the package
+ * directory and the styles, the shared strings are loaded on the first full read.
+ * Cells are collected by a {@link RawSheetHandler} and formatted by a {@link CellDecoder},
+ * with a parallelism above one on the threads of a {@link ParallelRowDecoder}.
+ */
+public class XlsxStreamReader implements SheetReader {
+
+    private static final Log LOG = Log.getLog(XlsxStreamReader.class);
+
+    private final String filePath;
+
+    private final String sheetName;
+
+    private OPCPackage pkg;
+
+    private XSSFReader reader;
+
+    private SharedStrings strings;
+
+    private StylesTable styles;
+
+    private CellDecoder decoder;
+
+    private int parallelism = 1;
+
+    private String dimension;
+
+    private boolean headerRead;
+
+    public XlsxStreamReader(String filePath) {
+        this(filePath, null);
+    }
+
+    /**
+     * @param sheetName sheet to read, null reads the first sheet
+     */
+    public XlsxStreamReader(String filePath, String sheetName) {
+        this.filePath = filePath;
+        this.sheetName = sheetName;
+    }
+
+    @Override
+    public void open() throws IOException {
+        try {
+            this.pkg = OPCPackage.open(new File(this.filePath), PackageAccess.READ);
+            this.reader = new XSSFReader(this.pkg);
+            this.styles = this.reader.getStylesTable();
+        } catch (OpenXML4JException e) {
+            close();
+            throw new IOException("Unable to open XLSX " + this.filePath, e);
+        }
+    }
+
+    @Override
+    public void readRows(RowHandler handler) throws IOException {
+        if (this.reader == null) {
+            open();
+        }
+        if (this.strings == null) {
+            try {
+                this.strings = new InterningSharedStrings(new ReadOnlySharedStringsTable(this.pkg, false));
+                this.decoder = new CellDecoder(this.styles, this.strings);
+            } catch (SAXException e) {
+                throw new IOException("Unable to read shared strings of " + this.filePath, e);
+            }
+        }
+        if (this.parallelism > 1) {
+            try (ParallelRowDecoder parallelDecoder = new ParallelRowDecoder(handler, this.decoder, this.parallelism)) {
+                parseSheet(new RawSheetHandler(handler, parallelDecoder), parallelDecoder);
+            }
+        } else {
+            parseSheet(this.decoder, handler);
+        }
+    }
+
+    @Override
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Parses only the first row of the sheet and the {@code <dimension>} before it, resolving the
+     * shared strings of the row without loading the rest of the shared strings table.
+     */
+    @Override
+    public String[] readHeader() throws IOException {
+        if (this.reader == null) {
+            open();
+        }
+        String[][] header = {new String[0]};
+        CellDecoder headerDecoder = this.decoder != null ? this.decoder : new CellDecoder(this.styles,
+            new LazySharedStrings(this.pkg.getPartsByContentType(XSSFRelation.SHARED_STRINGS.getContentType())
+                .stream().findFirst().orElse(null)));
+        RowHandler handler = (rowNum, cells) -> {
+            header[0] = cells;
+            return false;
+        };
+        RawSheetHandler sheetHandler = new RawSheetHandler(handler,
+            row -> handler.handle(row.rowNum, headerDecoder.decode(row)));
+        parseSheet(sheetHandler, null);
+        this.dimension = sheetHandler.getDimension();
+        this.headerRead = true;
+        return header[0];
+    }
+
+    @Override
+    public String readDimension() throws IOException {
+        if (!this.headerRead) {
+            readHeader();
+        }
+        return this.dimension;
+    }
+
+    /**
+     * Rows the filter of the handler rejects are dropped with only the cells it reads formatted.
+     */
+    private void parseSheet(CellDecoder cellDecoder, RowHandler handler) throws IOException {
+        parseSheet(new RawSheetHandler(handler, row -> {
+            RowFilter filter = handler.rowFilter();
+            if (filter != null && filter.rejects(col -> cellDecoder.decode(row, col))) {
+                return true;
+            }
+            return handler.handle(row.rowNum, cellDecoder.decode(row));
+        }), null);
+    }
+
+    /**
+     * @param parallelDecoder formats the rows collected by the {@link RawSheetHandler}, finished
+     *                        after the sheet is parsed, may be null
+     */
+    private void parseSheet(ContentHandler contentHandler, ParallelRowDecoder parallelDecoder) throws IOException {
+        try {
+            InputStream selected = openSheet();
+            if (selected == null) {
+                LOG.warn("No sheet found in {0}", this.filePath);
+                return;
+            }
+            try (InputStream sheet = selected) {
+                XMLReader parser = SAXHelper.newXMLReader();
+                parser.setContentHandler(contentHandler);
+                parser.parse(new InputSource(sheet));
+                if (parallelDecoder != null) {
+                    parallelDecoder.finish();
+                }
+            }
+        } catch (StopReadingException e) {
+            LOG.ok("Reading of {0} stopped by handler", this.filePath);
+        } catch (POIXMLException e) {
+            throw new IOException("Unable to read XLSX " + this.filePath, e);
+        } catch (OpenXML4JException | SAXException | ParserConfigurationException e) {
+            throw new IOException("Unable to read XLSX " + this.filePath, e);
+        }
+    }
+
+    /**
+     * @return the data of the configured sheet, the sheets before it are never parsed, null when
+     *         the file has no sheet at all
+     */
+    private InputStream openSheet() throws IOException, OpenXML4JException {
+        XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) this.reader.getSheetsData();
+        while (sheets.hasNext()) {
+            InputStream sheet = sheets.next();
+            if (this.sheetName == null || this.sheetName.equals(sheets.getSheetName())) {
+                return sheet;
+            }
+            sheet.close();
+        }
+        if (this.sheetName != null) {
+            throw new IOException("No sheet " + this.sheetName + " in " + this.filePath);
+        }
+        return null;
+    }
+
+    /**
+     * @return the zip entry of every sheet by sheet name, in workbook order
+     */
+    static Map<String, String> sheetParts(String filePath) throws IOException {
+        XlsxStreamReader reader = new XlsxStreamReader(filePath);
+        try {
+            reader.open();
+            Map<String, String> parts = new LinkedHashMap<>();
+            XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) reader.reader.getSheetsData();
+            while (sheets.hasNext()) {
+                sheets.next().close();
+                parts.put(sheets.getSheetName(), entryName(sheets.getSheetPart()));
+            }
+            return parts;
+        } catch (OpenXML4JException e) {
+            throw new IOException("Unable to read XLSX " + filePath, e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return the zip entry of the workbook part, null when the package has none
+     */
+    static String workbookPart(String filePath) throws IOException {
+        XlsxStreamReader reader = new XlsxStreamReader(filePath);
+        try {
+            reader.open();
+            PackageRelationshipCollection documents = reader.pkg.getRelationshipsByType(PackageRelationshipTypes.CORE_DOCUMENT);
+            return documents.size() > 0 ? entryName(reader.pkg.getPart(documents.getRelationship(0))) : null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String entryName(PackagePart part) {
+        return part.getPartName().getName().substring(1);
+    }
+
+    @Override
+    public void close() {
+        if (this.pkg != null) {
+            this.pkg.revert();
+        }
+        this.pkg = null;
+        this.reader = null;
+        this.strings = null;
+        this.styles = null;
+        this.decoder = null;
+        this.headerRead = false;
+    }
+
+    /**
+     * @return the zero based column of an A1 style cell reference
+     */
+    static int columnIndex(String cellReference) {
+        int column = 0;
+        for (int i = 0; i < cellReference.length(); i++) {
+            char c = cellReference.charAt(i);
+            if (c < 'A' || c > 'Z') {
+                break;
+            }
+            column = column * 26 + (c - 'A' + 1);
+        }
+        return column - 1;
+    }
+
+    /**
+     * Thrown from the SAX callbacks to abort parsing once the handler asks to stop.
+     */
+    static class StopReadingException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        StopReadingException() {
+            super("Reading stopped", null, false, false);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.poi.xssf.model.SharedStringsTable;
+import org.apache.poi.xssf.usermodel.XSSFRichTextString;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AccountTests {
+
+    @Test
+    public void mergeValues() {
+        AccountLayout layout = new AccountLayout();
+        int role = layout.slot("role");
+        Account first = new Account(layout);
+        first.setIdentifier("1");
+        first.addValue(role, "admin");
+        first.addAttribute("email", "a@example.com");
+        Account second = new Account(layout);
+        second.addValue(role, "user");
+        second.addValue(role, " auditor ");
+
+        Assert.assertEquals(Collections.singletonList("admin"), first.getValues("role"));
+        Assert.assertEquals(Collections.singletonList("a@example.com"), first.getValues("email"));
+        Assert.assertEquals(Arrays.asList("user", "auditor"), second.getValues("role"));
+        Assert.assertNull(second.getValues("email"));
+        Assert.assertEquals(2, first.getAttributes().size());
+    }
+
+    @Test
+    public void internSharedStrings() {
+        SharedStringsTable table = new SharedStringsTable();
+        table.addSharedStringItem(new XSSFRichTextString("Engineering"));
+        InterningSharedStrings strings = new InterningSharedStrings(table);
+
+        Assert.assertEquals("Engineering", strings.getItemAt(0).toString());
+        Assert.assertSame(strings.getItemAt(0).toString(), strings.getItemAt(0).toString());
+    }
+
+    @Test
+    public void compareIdentifiers() {
+        Assert.assertTrue(AccountRowHandler.compareIdentifiers("5", "32") < 0);
+        Assert.assertTrue(AccountRowHandler.compareIdentifiers("0032", "5") > 0);
+        Assert.assertTrue(AccountRowHandler.compareIdentifiers("007", "7") < 0);
+        Assert.assertTrue(AccountRowHandler.compareIdentifiers("b5", "a32") > 0);
+        Assert.assertTrue(AccountRowHandler.compareIdentifiers("5", "a") < 0);
+    }
+
+    @Test
+    public void skipRules() {
+        List<String> heading = Arrays.asList("id", "status", "Last Login", "logins");
+        RowFilter filter = SkipRules.compile(new String[]{
+            "status = disabled",
+            "status ~ \"lock.*\" && \"Last Login\" < 2020-01-01",
+            "logins >= 100"}, "yyyy-MM-dd").bind(heading::indexOf, -1, null);
+
+        Assert.assertTrue(rejects(filter, "1", "disabled", "2021-05-01", "3"));
+        Assert.assertTrue(rejects(filter, "2", "locked", "2019-12-31", "3"));
+        Assert.assertFalse(rejects(filter, "3", "locked", "2020-01-01", "3"));
+        Assert.assertFalse(rejects(filter, "4", "locked", "never", "3"));
+        Assert.assertTrue(rejects(filter, "5", "active", "", "250"));
+        Assert.assertFalse(rejects(filter, "6", "active", "", "99"));
+        Assert.assertFalse(rejects(filter, "7", null, null, null));
+        Assert.assertNull(SkipRules.compile(new String[0], "yyyy-MM-dd").bind(heading::indexOf, -1, null));
+    }
+
+    @Test(expected = ConfigurationException.class)
+    public void skipRuleWithoutOperator() {
+        SkipRules.compile(new String[]{"status disabled"}, "yyyy-MM-dd");
+    }
+
+    private static boolean rejects(RowFilter filter, String... cells) {
+        return filter.rejects(col -> cells[col]);
+    }
+}
@@ -16,19 +16,59 @@
 
 package com.exclamationlabs.connid.xlsx;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.api.APIConfiguration;
 import org.identityconnectors.framework.api.ConnectorFacade;
 import org.identityconnectors.framework.api.ConnectorFacadeFactory;
+import org.identityconnectors.framework.common.exceptions.AlreadyExistsException;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.exceptions.UnknownUidException;
 import org.identityconnectors.framework.common.objects.*;
+import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
+import org.identityconnectors.framework.spi.ConfigurationProperty;
 import org.identityconnectors.framework.spi.SearchResultsHandler;
 import org.identityconnectors.test.common.TestHelpers;
 import org.junit.Assert;
 import org.junit.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 public class ConnectorTests {
 
     private static final Log LOG = Log.getLog(ConnectorTests.class);
@@ -96,6 +136,53 @@ public class ConnectorTests {
         factory.newInstance(apiConfig()).search( ObjectClass.ACCOUNT, null, handler, null);
         Assert.assertEquals(10, results.size());
     }
+    @Test
+    public void forSheetCopiesEveryProperty() throws Exception {
+        Configuration configuration = new Configuration();
+        List<Method> getters = new ArrayList<>();
+        for (Method getter : Configuration.class.getMethods()) {
+            if (!getter.isAnnotationPresent(ConfigurationProperty.class)) {
+                continue;
+            }
+            getters.add(getter);
+            String property = getter.getName().substring(getter.getName().startsWith("is") ? 2 : 3);
+            Class<?> type = getter.getReturnType();
+            Object current = getter.invoke(configuration);
+            Object value;
+            if (type == String.class) {
+                value = "value-" + property;
+            } else if (type == String[].class) {
+                value = new String[]{"value-" + property};
+            } else if (type == Integer.class) {
+                value = current != null ? (Integer) current + 7 : 7;
+            } else {
+                value = !Boolean.TRUE.equals(current);
+            }
+            Configuration.class.getMethod("set" + property, type).invoke(configuration, value);
+        }
+
+        Configuration sheet = configuration.forSheet(new SheetMapping(new ObjectClass("role"), "Roles", "name", "members"));
+        Assert.assertEquals("Roles", sheet.getSheetProperty());
+        Assert.assertEquals("name", sheet.getIdentifierProperty());
+        Assert.assertEquals("members", sheet.getMergeProperty());
+        Assert.assertEquals(0, sheet.getSkipRulesProperty().length);
+        Assert.assertArrayEquals(configuration.getSkipRulesProperty(),
+            configuration.forSheet(new SheetMapping(ObjectClass.ACCOUNT, "Users", "name", "")).getSkipRulesProperty());
+        for (Method getter : getters) {
+            if (Arrays.asList("getSheetProperty", "getIdentifierProperty", "getMergeProperty", "getSkipRulesProperty")
+                    .contains(getter.getName())) {
+                continue;
+            }
+            Object expected = getter.invoke(configuration);
+            Object actual = getter.invoke(sheet);
+            if (expected instanceof String[]) {
+                Assert.assertArrayEquals(getter.getName(), (String[]) expected, (String[]) actual);
+            } else {
+                Assert.assertEquals(getter.getName(), expected, actual);
+            }
+        }
+    }
+
     @Test
     public void searchIgnore() {
         results = new ArrayList<>();
@@ -110,6 +197,984 @@ public class ConnectorTests {
         Assert.assertEquals(5, results.size());
     }
 
+    @Test
+    public void searchFilter() {
+        ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(apiConfig());
+
+        ConnectorObject account = facade.getObject(ObjectClass.ACCOUNT, new Uid("90"), null);
+        Assert.assertNotNull(account);
+        Assert.assertEquals("Beaton", AttributeUtil.getStringValue(account.getAttributeByName("last_name")));
+
+        results = new ArrayList<>();
+        facade.search(ObjectClass.ACCOUNT, FilterBuilder.or(
+            FilterBuilder.equalTo(new Uid("43")), FilterBuilder.equalTo(new Uid("5"))), handler, null);
+        Assert.assertEquals(2, results.size());
+
+        results = new ArrayList<>();
+        facade.search(ObjectClass.ACCOUNT,
+            FilterBuilder.startsWith(AttributeBuilder.build("email", "a")), handler, null);
+        Assert.assertEquals(4, results.size());
+    }
+
+    @Test
+    public void searchAttributesToGet() {
+        results = new ArrayList<>();
+
+        ConnectorFacadeFactory factory = ConnectorFacadeFactory.getInstance();
+        OperationOptions options = new OperationOptionsBuilder().setAttributesToGet("email").build();
+
+        factory.newInstance(apiConfig()).search( ObjectClass.ACCOUNT, null, handler, options);
+        Assert.assertEquals(10, results.size());
+        for (ConnectorObject account : results) {
+            Assert.assertNotNull(account.getAttributeByName("email"));
+            Assert.assertNull(account.getAttributeByName("last_name"));
+            Assert.assertNull(account.getAttributeByName("role"));
+        }
+    }
+
+    @Test
+    public void searchPaged() {
+        APIConfiguration unsortedConfig = apiConfig();
+        unsortedConfig.getConfigurationProperties().setPropertyValue("uidSortedProperty",false );
+        // the example fits the budget and is merged without spilling, searchSpilling pages over spilled runs
+        APIConfiguration spillConfig = apiConfig();
+        spillConfig.getConfigurationProperties().setPropertyValue("uidSortedProperty",false );
+        spillConfig.getConfigurationProperties().setPropertyValue("mergeMemoryBudgetProperty",1 );
+        APIConfiguration cacheConfig = apiConfig();
+        cacheConfig.getConfigurationProperties().setPropertyValue("snapshotCacheProperty",true );
+
+        for (APIConfiguration config : Arrays.asList(apiConfig(), unsortedConfig, spillConfig, cacheConfig)) {
+            ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(config);
+            Set<String> uids = new HashSet<>();
+            String cookie = null;
+            int pages = 0;
+            do {
+                results = new ArrayList<>();
+                OperationOptionsBuilder options = new OperationOptionsBuilder().setPageSize(3);
+                if (cookie != null) {
+                    options.setPagedResultsCookie(cookie);
+                }
+                SearchResult result = facade.search(ObjectClass.ACCOUNT, null, handler, options.build());
+                Assert.assertTrue(results.size() <= 3);
+                results.forEach(account -> uids.add(account.getUid().getUidValue()));
+                cookie = result.getPagedResultsCookie();
+                pages++;
+            } while (cookie != null);
+            Assert.assertEquals(4, pages);
+            Assert.assertEquals(10, uids.size());
+        }
+    }
+
+    @Test
+    public void searchUidIndex() throws Exception {
+        File workDirectory = workDirectory("index");
+        APIConfiguration indexConfig = apiConfig();
+        indexConfig.getConfigurationProperties().setPropertyValue("uidSortedProperty",false );
+        indexConfig.getConfigurationProperties().setPropertyValue("uidIndexProperty",true );
+        indexConfig.getConfigurationProperties().setPropertyValue("workDirectoryProperty",workDirectory.getPath() );
+        ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(indexConfig);
+
+        Assert.assertNotNull(facade.getObject(ObjectClass.ACCOUNT, new Uid("38"), null));
+        Assert.assertEquals(1, workDirectory.listFiles((dir, name) -> name.endsWith(".uidx")).length);
+        Assert.assertNotNull(facade.getObject(ObjectClass.ACCOUNT, new Uid("43"), null));
+        Assert.assertNull(facade.getObject(ObjectClass.ACCOUNT, new Uid("404"), null));
+
+        // a search stopped by its handler leaves no index of the rows read so far
+        File stoppedDirectory = workDirectory("index-stopped");
+        Configuration configuration = new Configuration();
+        configuration.setDirectoryPathProperty("target/test-classes");
+        configuration.setFileNameProperty("example");
+        configuration.setIncludesHeaderProperty(true);
+        configuration.setUidSortedProperty(true);
+        configuration.setMergeProperty("role");
+        configuration.setIdentifierProperty("id");
+        configuration.setUidIndexProperty(true);
+        configuration.setWorkDirectoryProperty(stoppedDirectory.getPath());
+        ReadHandler readHandler = new ReadHandler(configuration.getFilePath());
+        try {
+            readHandler.getAccounts(configuration, connectorObject -> false);
+        } finally {
+            readHandler.closeReader();
+        }
+        File[] indexes = stoppedDirectory.listFiles((dir, name) -> name.endsWith(".uidx"));
+        Assert.assertTrue(indexes == null || indexes.length == 0);
+        indexConfig.getConfigurationProperties().setPropertyValue("uidSortedProperty",true );
+        indexConfig.getConfigurationProperties().setPropertyValue("workDirectoryProperty",stoppedDirectory.getPath() );
+        facade = ConnectorFacadeFactory.getInstance().newInstance(indexConfig);
+        Assert.assertNotNull(facade.getObject(ObjectClass.ACCOUNT, new Uid("38"), null));
+    }
+
+    @Test
+    public void searchSkipRules() {
+        APIConfiguration skipConfig = apiConfig();
+        skipConfig.getConfigurationProperties().setPropertyValue("skipRulesProperty",
+            new String[]{"active = FALSE", "email ~ \".*@usgs\\.gov\""} );
+
+        for (int parallelism : new int[]{1, 2}) {
+            skipConfig.getConfigurationProperties().setPropertyValue("parallelismProperty",parallelism );
+            results = new ArrayList<>();
+            ConnectorFacadeFactory.getInstance().newInstance(skipConfig).search( ObjectClass.ACCOUNT, null, handler,
+                new OperationOptionsBuilder().setAttributesToGet("first_name").build());
+            Set<String> uids = new HashSet<>();
+            results.forEach(result -> uids.add(result.getUid().getUidValue()));
+            Assert.assertEquals(new HashSet<>(Arrays.asList("93", "90", "70", "5")), uids);
+        }
+
+        skipConfig.getConfigurationProperties().setPropertyValue("skipRulesProperty", new String[]{"status = disabled"} );
+        try {
+            ConnectorFacadeFactory.getInstance().newInstance(skipConfig).test();
+            Assert.fail();
+        } catch (ConfigurationException e) {
+            Assert.assertTrue(e.getMessage().contains("status"));
+        }
+    }
+
+    @Test
+    public void searchSpilling() throws Exception {
+        // 6000 unsorted rows of 3000 accounts take about 2 MB, more than the budget of 1 MB
+        File file = new File("target/test-classes/spill/example.xlsx");
+        file.getParentFile().mkdirs();
+        try (Workbook workbook = new XSSFWorkbook(); FileOutputStream out = new FileOutputStream(file)) {
+            org.apache.poi.ss.usermodel.Sheet sheet = workbook.createSheet();
+            String[] heading = {"id", "first_name", "role", "notes"};
+            Row row = sheet.createRow(0);
+            for (int col = 0; col < heading.length; col++) {
+                row.createCell(col).setCellValue(heading[col]);
+            }
+            char[] notes = new char[60];
+            Arrays.fill(notes, 'x');
+            for (int i = 0; i < 6000; i++) {
+                row = sheet.createRow(i + 1);
+                row.createCell(0).setCellValue(String.valueOf(i * 7919 % 3000));
+                row.createCell(1).setCellValue("Name " + i % 3000);
+                row.createCell(2).setCellValue(i < 3000 ? "Engineer" : "Manager");
+                row.createCell(3).setCellValue(new String(notes));
+            }
+            workbook.write(out);
+        }
+        File workDirectory = workDirectory("spill");
+        APIConfiguration spillConfig = apiConfig();
+        spillConfig.getConfigurationProperties().setPropertyValue("directoryPathProperty","target/test-classes/spill" );
+        spillConfig.getConfigurationProperties().setPropertyValue("uidSortedProperty",false );
+        spillConfig.getConfigurationProperties().setPropertyValue("mergeMemoryBudgetProperty",1 );
+        spillConfig.getConfigurationProperties().setPropertyValue("workDirectoryProperty",workDirectory.getPath() );
+        ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(spillConfig);
+
+        long spilledRuns = ConnectorMetrics.getInstance().getSpilledRuns();
+        results = new ArrayList<>();
+        facade.search( ObjectClass.ACCOUNT, null, handler, null);
+        Assert.assertEquals(3000, results.size());
+        for (ConnectorObject account : results) {
+            Assert.assertEquals(Arrays.asList("Engineer", "Manager"), account.getAttributeByName("role").getValue());
+        }
+        Assert.assertTrue(ConnectorMetrics.getInstance().getSpilledRuns() >= spilledRuns + 2);
+        Assert.assertEquals(0, workDirectory.listFiles((dir, name) -> name.endsWith(".run")).length);
+
+        // every page merges the spilled runs again and resumes after the identifier of the cookie
+        Set<String> uids = new HashSet<>();
+        String cookie = null;
+        int pages = 0;
+        do {
+            results = new ArrayList<>();
+            OperationOptionsBuilder options = new OperationOptionsBuilder().setPageSize(1000);
+            if (cookie != null) {
+                options.setPagedResultsCookie(cookie);
+            }
+            cookie = facade.search(ObjectClass.ACCOUNT, null, handler, options.build()).getPagedResultsCookie();
+            results.forEach(account -> uids.add(account.getUid().getUidValue()));
+            pages++;
+        } while (cookie != null);
+        Assert.assertEquals(3, pages);
+        Assert.assertEquals(3000, uids.size());
+        Assert.assertEquals(0, workDirectory.listFiles((dir, name) -> name.endsWith(".run")).length);
+    }
+
+    @Test
+    public void searchStopped() throws Exception {
+        // the facade drops results after a handler returned false, the read handler is called directly
+        List<Configuration> modes = new ArrayList<>();
+        for (int mode = 0; mode < 5; mode++) {
+            Configuration configuration = new Configuration();
+            configuration.setDirectoryPathProperty("target/test-classes");
+            configuration.setFileNameProperty("example");
+            configuration.setIncludesHeaderProperty(true);
+            configuration.setUidSortedProperty(mode != 1 && mode != 2);
+            configuration.setMergeProperty("role");
+            configuration.setIdentifierProperty("id");
+            configuration.setMergeMemoryBudgetProperty(mode == 2 ? 1 : 0);
+            configuration.setParallelismProperty(mode == 3 ? 4 : 1);
+            configuration.setSnapshotCacheProperty(mode == 4);
+            modes.add(configuration);
+        }
+
+        try {
+            for (Configuration configuration : modes) {
+                int[] handled = {0};
+                ReadHandler readHandler = new ReadHandler(configuration.getFilePath());
+                try {
+                    readHandler.getAccounts(configuration, connectorObject -> ++handled[0] < 3);
+                } finally {
+                    readHandler.closeReader();
+                }
+                Assert.assertEquals(3, handled[0]);
+            }
+        } finally {
+            SnapshotCache.getInstance().clear();
+        }
+    }
+
+    @Test
+    public void searchSortedCheck() {
+        // the identifiers of example.xlsx are grouped but 90 follows 93
+        APIConfiguration failConfig = apiConfig();
+        failConfig.getConfigurationProperties().setPropertyValue("uidSortedCheckProperty","fail" );
+        try {
+            ConnectorFacadeFactory.getInstance().newInstance(failConfig).search( ObjectClass.ACCOUNT, null, handler, null);
+            Assert.fail("Identifiers out of order were not detected");
+        } catch (ConnectorException e) {
+            Assert.assertTrue(e.getMessage().contains("90"));
+        }
+
+        results = new ArrayList<>();
+        APIConfiguration unsortedConfig = apiConfig();
+        unsortedConfig.getConfigurationProperties().setPropertyValue("uidSortedProperty",false );
+        ConnectorFacadeFactory.getInstance().newInstance(unsortedConfig).search( ObjectClass.ACCOUNT, null, handler, null);
+        Set<ConnectorObject> unsorted = new HashSet<>(results);
+
+        long fallbacks = ConnectorMetrics.getInstance().getSortedFallbacks();
+        results = new ArrayList<>();
+        APIConfiguration fallbackConfig = apiConfig();
+        fallbackConfig.getConfigurationProperties().setPropertyValue("uidSortedCheckProperty","fallback" );
+        ConnectorFacadeFactory.getInstance().newInstance(fallbackConfig).search( ObjectClass.ACCOUNT, null, handler, null);
+        Assert.assertEquals(10, results.size());
+        Assert.assertEquals(unsorted, new HashSet<>(results));
+        Assert.assertEquals(fallbacks + 1, ConnectorMetrics.getInstance().getSortedFallbacks());
+    }
+
+    @Test
+    public void searchParallel() throws Exception {
+        copyExample(new XSSFWorkbook(), new File("target/test-classes/parallel/example.xlsx"));
+
+        for (String directory : Arrays.asList("target/test-classes", "target/test-classes/parallel")) {
+            APIConfiguration serialConfig = apiConfig();
+            serialConfig.getConfigurationProperties().setPropertyValue("directoryPathProperty",directory );
+            APIConfiguration parallelConfig = apiConfig();
+            parallelConfig.getConfigurationProperties().setPropertyValue("directoryPathProperty",directory );
+            parallelConfig.getConfigurationProperties().setPropertyValue("parallelismProperty",4 );
+
+            results = new ArrayList<>();
+            ConnectorFacadeFactory.getInstance().newInstance(serialConfig).search( ObjectClass.ACCOUNT, null, handler, null);
+            List<ConnectorObject> serial = results;
+            results = new ArrayList<>();
+            ConnectorFacadeFactory.getInstance().newInstance(parallelConfig).search( ObjectClass.ACCOUNT, null, handler, null);
+            Assert.assertEquals(10, results.size());
+            Assert.assertEquals(serial, results);
+        }
+    }
+
+    @Test
+    public void searchMultiFile() throws Exception {
+        // the first five accounts go to the first file and the rest to the second
+        File first = new File("target/test-classes/multi/example-1.xlsx");
+        File second = new File("target/test-classes/multi/example-2.xlsx");
+        for (File file : Arrays.asList(first, second)) {
+            copyExample(new XSSFWorkbook(), file);
+            try (Workbook workbook = new XSSFWorkbook(new FileInputStream(file))) {
+                org.apache.poi.ss.usermodel.Sheet sheet = workbook.getSheetAt(0);
+                for (int rowNum = file == first ? 6 : 1; rowNum <= (file == first ? 10 : 5); rowNum++) {
+                    sheet.removeRow(sheet.getRow(rowNum));
+                }
+                try (FileOutputStream out = new FileOutputStream(file)) {
+                    workbook.write(out);
+                }
+            }
+        }
+        Assert.assertTrue(first.setLastModified(second.lastModified() - 60000));
+
+        results = new ArrayList<>();
+        ConnectorFacadeFactory.getInstance().newInstance(apiConfig()).search( ObjectClass.ACCOUNT, null, handler, null);
+        List<ConnectorObject> single = results;
+
+        APIConfiguration multiConfig = apiConfig();
+        multiConfig.getConfigurationProperties().setPropertyValue("directoryPathProperty","target/test-classes/multi" );
+        multiConfig.getConfigurationProperties().setPropertyValue("multiFileProperty",true );
+        multiConfig.getConfigurationProperties().setPropertyValue("parallelismProperty",2 );
+        results = new ArrayList<>();
+        ConnectorFacadeFactory.getInstance().newInstance(multiConfig).search( ObjectClass.ACCOUNT, null, handler, null);
+        Assert.assertEquals(single, results);
+
+        multiConfig.getConfigurationProperties().setPropertyValue("newestFilesProperty",1 );
+        results = new ArrayList<>();
+        ConnectorFacadeFactory.getInstance().newInstance(multiConfig).search( ObjectClass.ACCOUNT, null, handler, null);
+        Assert.assertEquals(single.subList(5, 10), results);
+    }
+
+    @Test
+    public void metrics() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(ConnectorMetrics.OBJECT_NAME);
+        long rowsRead = ConnectorMetrics.getInstance().getRowsRead();
+        long accountsEmitted = ConnectorMetrics.getInstance().getAccountsEmitted();
+
+        results = new ArrayList<>();
+        ConnectorFacadeFactory.getInstance().newInstance(apiConfig()).search( ObjectClass.ACCOUNT, null, handler, null);
+        // a watcher of another test may read at the same time
+        Assert.assertTrue((Long) server.getAttribute(name, "RowsRead") >= rowsRead + 10);
+        Assert.assertTrue((Long) server.getAttribute(name, "AccountsEmitted") >= accountsEmitted + 10);
+        Assert.assertTrue((Long) server.getAttribute(name, "Parses") > 0);
+    }
+
+    @Test
+    public void searchSnapshotCache() {
+        ConnectorFacadeFactory factory = ConnectorFacadeFactory.getInstance();
+        APIConfiguration cacheConfig = apiConfig();
+        cacheConfig.getConfigurationProperties().setPropertyValue("snapshotCacheProperty",true );
+
+        for (int i = 0; i < 2; i++) {
+            results = new ArrayList<>();
+            factory.newInstance(cacheConfig).search( ObjectClass.ACCOUNT, null, handler, null);
+            Assert.assertEquals(10, results.size());
+        }
+        Assert.assertEquals(1, SnapshotCache.getInstance().size());
+    }
+
+    @Test
+    public void searchClearedProperties() {
+        // a host may clear any optional property, it then falls back to its default
+        APIConfiguration clearedConfig = apiConfig();
+        clearedConfig.getConfigurationProperties().setPropertyValue("uidSortedProperty",false );
+        String[] cleared = {"snapshotCacheProperty", "snapshotIdleTimeoutProperty",
+            "mergeMemoryBudgetProperty", "multiFileProperty", "writeBeforeReadProperty",
+            "uidIndexProperty", "columnarSnapshotProperty"};
+        for (String property : cleared) {
+            clearedConfig.getConfigurationProperties().setPropertyValue(property,null );
+        }
+        ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(clearedConfig);
+        results = new ArrayList<>();
+        facade.search( ObjectClass.ACCOUNT, null, handler, null);
+        Assert.assertEquals(10, results.size());
+        Assert.assertNotNull(facade.getObject(ObjectClass.ACCOUNT, new Uid("38"), null));
+    }
+
+    @Test
+    public void snapshotIdleTimeout() throws Exception {
+        File file = new File("target/test-classes/idle/example.xlsx");
+        copyExample(new XSSFWorkbook(), file);
+
+        APIConfiguration cacheConfig = apiConfig();
+        cacheConfig.getConfigurationProperties().setPropertyValue("directoryPathProperty","target/test-classes/idle" );
+        cacheConfig.getConfigurationProperties().setPropertyValue("snapshotCacheProperty",true );
+        cacheConfig.getConfigurationProperties().setPropertyValue("snapshotIdleTimeoutProperty",1 );
+        results = new ArrayList<>();
+        ConnectorFacadeFactory.getInstance().newInstance(cacheConfig).search( ObjectClass.ACCOUNT, null, handler, null);
+        Assert.assertEquals(10, results.size());
+        FileFingerprint fingerprint = FileFingerprint.of(file.getPath());
+        Assert.assertTrue(SnapshotCache.getInstance().isLoaded(fingerprint));
+
+        // evicted without another query touching the cache
+        for (int i = 0; i < 50 && SnapshotCache.getInstance().isLoaded(fingerprint); i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertFalse(SnapshotCache.getInstance().isLoaded(fingerprint));
+    }
+
+    @Test
+    public void searchColumnarSnapshot() throws Exception {
+        File file = new File("target/test-classes/columnar/example.xlsx");
+        File workDirectory = new File("target/test-classes/work/columnar");
+        copyExample(new XSSFWorkbook(), file);
+
+        APIConfiguration columnarConfig = apiConfig();
+        columnarConfig.getConfigurationProperties().setPropertyValue("directoryPathProperty","target/test-classes/columnar" );
+        columnarConfig.getConfigurationProperties().setPropertyValue("columnarSnapshotProperty",true );
+        columnarConfig.getConfigurationProperties().setPropertyValue("workDirectoryProperty",workDirectory.getPath() );
+        ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(columnarConfig);
+
+        results = new ArrayList<>();
+        ConnectorFacadeFactory.getInstance().newInstance(apiConfig()).search( ObjectClass.ACCOUNT, null, handler, null);
+        Set<ConnectorObject> parsed = new HashSet<>(results);
+
+        long hits = ConnectorMetrics.getInstance().getColumnarSnapshotHits();
+        for (int i = 0; i < 2; i++) {
+            results = new ArrayList<>();
+            facade.search( ObjectClass.ACCOUNT, null, handler, null);
+            Assert.assertEquals(parsed, new HashSet<>(results));
+        }
+        Assert.assertEquals(1, workDirectory.listFiles((dir, name) -> name.endsWith(".xcol")).length);
+        Assert.assertEquals(hits + 1, ConnectorMetrics.getInstance().getColumnarSnapshotHits());
+
+        ConnectorObject account = facade.getObject(ObjectClass.ACCOUNT, new Uid("38"),
+            new OperationOptionsBuilder().setAttributesToGet("email").build());
+        Assert.assertNotNull(account.getAttributeByName("email"));
+        Assert.assertNull(account.getAttributeByName("first_name"));
+        Assert.assertNull(facade.getObject(ObjectClass.ACCOUNT, new Uid("404"), null));
+
+        // a new version of the export replaces the snapshot
+        try (Workbook workbook = new XSSFWorkbook(new FileInputStream(file))) {
+            org.apache.poi.ss.usermodel.Sheet sheet = workbook.getSheetAt(0);
+            sheet.removeRow(sheet.getRow(1));
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                workbook.write(out);
+            }
+        }
+        results = new ArrayList<>();
+        facade.search( ObjectClass.ACCOUNT, null, handler, null);
+        Assert.assertEquals(9, results.size());
+    }
+
+    @Test
+    public void searchWatched() throws Exception {
+        File file = new File("target/test-classes/watch/example.xlsx");
+        copyExample(new XSSFWorkbook(), file);
+
+        APIConfiguration watchConfig = apiConfig();
+        watchConfig.getConfigurationProperties().setPropertyValue("directoryPathProperty","target/test-classes/watch" );
+        watchConfig.getConfigurationProperties().setPropertyValue("snapshotCacheProperty",true );
+        watchConfig.getConfigurationProperties().setPropertyValue("watchDirectoryProperty",true );
+        watchConfig.getConfigurationProperties().setPropertyValue("watchQuietPeriodProperty",1 );
+        ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(watchConfig);
+        try {
+            results = new ArrayList<>();
+            facade.search( ObjectClass.ACCOUNT, null, handler, null);
+            Assert.assertEquals(10, results.size());
+
+            try (Workbook workbook = new XSSFWorkbook(new FileInputStream(file))) {
+                org.apache.poi.ss.usermodel.Sheet sheet = workbook.getSheetAt(0);
+                sheet.removeRow(sheet.getRow(1));
+                try (FileOutputStream out = new FileOutputStream(file)) {
+                    workbook.write(out);
+                }
+            }
+            // the new version is loaded without a query asking for it
+            FileFingerprint fingerprint = FileFingerprint.of(file.getPath());
+            for (int i = 0; i < 300 && !SnapshotCache.getInstance().isLoaded(fingerprint); i++) {
+                Thread.sleep(100);
+            }
+            Assert.assertTrue(SnapshotCache.getInstance().isLoaded(fingerprint));
+
+            results = new ArrayList<>();
+            facade.search( ObjectClass.ACCOUNT, null, handler, null);
+            Assert.assertEquals(9, results.size());
+        } finally {
+            SnapshotCache.getInstance().clear();
+        }
+    }
+
+    @Test
+    public void watcherStops() throws Exception {
+        File file = new File("target/test-classes/watch-stop/example.xlsx");
+        copyExample(new XSSFWorkbook(), file);
+
+        APIConfiguration watchConfig = apiConfig();
+        watchConfig.getConfigurationProperties().setPropertyValue("directoryPathProperty","target/test-classes/watch-stop" );
+        watchConfig.getConfigurationProperties().setPropertyValue("snapshotCacheProperty",true );
+        watchConfig.getConfigurationProperties().setPropertyValue("snapshotIdleTimeoutProperty",1 );
+        watchConfig.getConfigurationProperties().setPropertyValue("watchDirectoryProperty",true );
+        ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(watchConfig);
+        try {
+            results = new ArrayList<>();
+            facade.search( ObjectClass.ACCOUNT, null, handler, null);
+            Assert.assertEquals(10, results.size());
+            Assert.assertTrue(DirectoryWatcher.isWatching(file.getParent()));
+
+            // no instance used the watcher for the snapshot idle timeout
+            for (int i = 0; i < 50 && DirectoryWatcher.isWatching(file.getParent()); i++) {
+                Thread.sleep(100);
+            }
+            Assert.assertFalse(DirectoryWatcher.isWatching(file.getParent()));
+        } finally {
+            SnapshotCache.getInstance().clear();
+        }
+    }
+
+    @Test
+    public void write() throws Exception {
+        File file = new File("target/test-classes/write/example.xlsx");
+        File workDirectory = new File("target/test-classes/work/write");
+        copyExample(new XSSFWorkbook(), file);
+
+        APIConfiguration writeConfig = apiConfig();
+        writeConfig.getConfigurationProperties().setPropertyValue("directoryPathProperty","target/test-classes/write" );
+        writeConfig.getConfigurationProperties().setPropertyValue("workDirectoryProperty",workDirectory.getPath() );
+        writeConfig.getConfigurationProperties().setPropertyValue("writeBatchSizeProperty",1 );
+        ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(writeConfig);
+
+        Uid created = facade.create(ObjectClass.ACCOUNT, new HashSet<>(Arrays.asList(
+            new Name("50"),
+            AttributeBuilder.build("first_name", "Ada"),
+            AttributeBuilder.build("role", "Engineer", "Manager"))), null);
+        Assert.assertEquals("50", created.getUidValue());
+        ConnectorObject account = facade.getObject(ObjectClass.ACCOUNT, created, null);
+        Assert.assertEquals("Ada", AttributeUtil.getStringValue(account.getAttributeByName("first_name")));
+        Assert.assertEquals(Arrays.asList("Engineer", "Manager"), account.getAttributeByName("role").getValue());
+
+        try {
+            facade.create(ObjectClass.ACCOUNT, Collections.singleton(new Name("43")), null);
+            Assert.fail();
+        } catch (AlreadyExistsException e) {
+            // expected
+        }
+
+        facade.update(ObjectClass.ACCOUNT, new Uid("43"), new HashSet<>(Arrays.asList(
+            AttributeBuilder.build("email", "gradeigh@example.com"),
+            AttributeBuilder.build("role", "Auditor", "Actuary"))), null);
+        account = facade.getObject(ObjectClass.ACCOUNT, new Uid("43"), null);
+        Assert.assertEquals("gradeigh@example.com", AttributeUtil.getStringValue(account.getAttributeByName("email")));
+        Assert.assertEquals("Glassard", AttributeUtil.getStringValue(account.getAttributeByName("last_name")));
+        Assert.assertEquals(Arrays.asList("Auditor", "Actuary"), account.getAttributeByName("role").getValue());
+
+        facade.delete(ObjectClass.ACCOUNT, new Uid("38"), null);
+        Assert.assertNull(facade.getObject(ObjectClass.ACCOUNT, new Uid("38"), null));
+        try {
+            facade.delete(ObjectClass.ACCOUNT, new Uid("404"), null);
+            Assert.fail();
+        } catch (UnknownUidException e) {
+            // expected
+        }
+
+        // changes of a batch stay journaled until the batch is full or the write interval passed,
+        // searches read the file as it is
+        writeConfig.getConfigurationProperties().setPropertyValue("writeBatchSizeProperty",10 );
+        facade = ConnectorFacadeFactory.getInstance().newInstance(writeConfig);
+        FileFingerprint fingerprint = FileFingerprint.of(file.getPath());
+        facade.delete(ObjectClass.ACCOUNT, new Uid("49"), null);
+        facade.create(ObjectClass.ACCOUNT, Collections.singleton(new Name("49")), null);
+        facade.delete(ObjectClass.ACCOUNT, new Uid("5"), null);
+        Assert.assertEquals(fingerprint, FileFingerprint.of(file.getPath()));
+        Assert.assertEquals(1, workDirectory.listFiles((dir, name) -> name.endsWith(".journal")).length);
+
+        results = new ArrayList<>();
+        facade.search( ObjectClass.ACCOUNT, null, handler, null);
+        Assert.assertEquals(10, results.size());
+        Assert.assertEquals(fingerprint, FileFingerprint.of(file.getPath()));
+
+        writeConfig.getConfigurationProperties().setPropertyValue("writeIntervalProperty",1 );
+        facade = ConnectorFacadeFactory.getInstance().newInstance(writeConfig);
+        Thread.sleep(1100);
+        results = new ArrayList<>();
+        facade.search( ObjectClass.ACCOUNT, null, handler, null);
+        Assert.assertEquals(9, results.size());
+        Assert.assertEquals(0, workDirectory.listFiles((dir, name) -> name.endsWith(".journal")).length);
+        account = facade.getObject(ObjectClass.ACCOUNT, new Uid("49"), null);
+        Assert.assertNull(account.getAttributeByName("first_name"));
+
+        // reads that are to see the pending changes write them first
+        writeConfig.getConfigurationProperties().setPropertyValue("writeIntervalProperty",0 );
+        writeConfig.getConfigurationProperties().setPropertyValue("writeBeforeReadProperty",true );
+        facade = ConnectorFacadeFactory.getInstance().newInstance(writeConfig);
+        facade.delete(ObjectClass.ACCOUNT, new Uid("32"), null);
+        Assert.assertEquals(1, workDirectory.listFiles((dir, name) -> name.endsWith(".journal")).length);
+        Assert.assertNull(facade.getObject(ObjectClass.ACCOUNT, new Uid("32"), null));
+        Assert.assertEquals(0, workDirectory.listFiles((dir, name) -> name.endsWith(".journal")).length);
+    }
+
+    @Test
+    public void writeKeepsCells() throws Exception {
+        File file = new File("target/test-classes/write-cells/example.xlsx");
+        copyExample(new XSSFWorkbook(), file);
+        int bold;
+        try (Workbook workbook = new XSSFWorkbook(new FileInputStream(file))) {
+            CellStyle style = workbook.createCellStyle();
+            Font font = workbook.createFont();
+            font.setBold(true);
+            style.setFont(font);
+            bold = style.getIndex();
+            org.apache.poi.ss.usermodel.Sheet sheet = workbook.getSheetAt(0);
+            sheet.getRow(1).getCell(3).setCellStyle(style);
+            sheet.getRow(3).getCell(1).setCellStyle(style);
+            workbook.createSheet("Notes").createRow(0).createCell(1).setCellValue(2.5);
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                workbook.write(out);
+            }
+        }
+
+        APIConfiguration writeConfig = apiConfig();
+        writeConfig.getConfigurationProperties().setPropertyValue("directoryPathProperty","target/test-classes/write-cells" );
+        writeConfig.getConfigurationProperties().setPropertyValue("workDirectoryProperty","target/test-classes/work/write-cells" );
+        writeConfig.getConfigurationProperties().setPropertyValue("writeBatchSizeProperty",1 );
+        ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(writeConfig);
+        facade.update(ObjectClass.ACCOUNT, new Uid("43"), Collections.singleton(
+            AttributeBuilder.build("email", "gradeigh@example.com")), null);
+        facade.delete(ObjectClass.ACCOUNT, new Uid("49"), null);
+
+        // untouched rows, replaced cells and other sheets keep their styles and types
+        try (Workbook workbook = new XSSFWorkbook(new FileInputStream(file))) {
+            org.apache.poi.ss.usermodel.Sheet sheet = workbook.getSheetAt(0);
+            Assert.assertEquals(9, sheet.getLastRowNum());
+            Assert.assertEquals("gradeigh@example.com", sheet.getRow(1).getCell(3).getStringCellValue());
+            Assert.assertEquals(bold, sheet.getRow(1).getCell(3).getCellStyle().getIndex());
+            Assert.assertEquals("93", new DataFormatter().formatCellValue(sheet.getRow(2).getCell(0)));
+            Assert.assertEquals(bold, sheet.getRow(2).getCell(1).getCellStyle().getIndex());
+            Assert.assertEquals(2.5, workbook.getSheet("Notes").getRow(0).getCell(1).getNumericCellValue(), 0);
+        }
+    }
+
+    @Test
+    public void writeRefusesFormulas() throws Exception {
+        File file = new File("target/test-classes/write-formulas/example.xlsx");
+        File workDirectory = new File("target/test-classes/work/write-formulas");
+        copyExample(new XSSFWorkbook(), file);
+        try (Workbook workbook = new XSSFWorkbook(new FileInputStream(file))) {
+            workbook.createSheet("Totals").createRow(0).createCell(0).setCellFormula("COUNT(Sheet0!A2:A11)");
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                workbook.write(out);
+            }
+        }
+
+        APIConfiguration writeConfig = apiConfig();
+        writeConfig.getConfigurationProperties().setPropertyValue("directoryPathProperty","target/test-classes/write-formulas" );
+        writeConfig.getConfigurationProperties().setPropertyValue("workDirectoryProperty",workDirectory.getPath() );
+        ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(writeConfig);
+        FileFingerprint fingerprint = FileFingerprint.of(file.getPath());
+        try {
+            facade.delete(ObjectClass.ACCOUNT, new Uid("49"), null);
+            Assert.fail();
+        } catch (ConnectorException e) {
+            Assert.assertTrue(e.getMessage().contains("would break the f of"));
+        }
+        Assert.assertEquals(fingerprint, FileFingerprint.of(file.getPath()));
+        Assert.assertFalse(workDirectory.exists()
+            && workDirectory.listFiles((dir, name) -> name.endsWith(".journal")).length > 0);
+    }
+
+    @Test
+    public void writeCreateHiddenDuplicate() throws Exception {
+        File file = new File("target/test-classes/write-hidden/example.xlsx");
+        copyExample(new XSSFWorkbook(), file);
+
+        APIConfiguration writeConfig = apiConfig();
+        writeConfig.getConfigurationProperties().setPropertyValue("directoryPathProperty","target/test-classes/write-hidden" );
+        writeConfig.getConfigurationProperties().setPropertyValue("workDirectoryProperty","target/test-classes/work/write-hidden" );
+        writeConfig.getConfigurationProperties().setPropertyValue("ignoreProperty","active" );
+        writeConfig.getConfigurationProperties().setPropertyValue("ignoreValueProperty","FALSE" );
+        ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(writeConfig);
+        Assert.assertNull(facade.getObject(ObjectClass.ACCOUNT, new Uid("43"), null));
+        try {
+            facade.create(ObjectClass.ACCOUNT, Collections.singleton(new Name("43")), null);
+            Assert.fail();
+        } catch (AlreadyExistsException e) {
+            // expected, the ignored row keeps the identifier
+        }
+
+        writeConfig.getConfigurationProperties().setPropertyValue("ignoreProperty",null );
+        writeConfig.getConfigurationProperties().setPropertyValue("ignoreValueProperty",null );
+        writeConfig.getConfigurationProperties().setPropertyValue("skipRulesProperty",new String[]{"active = FALSE"} );
+        facade = ConnectorFacadeFactory.getInstance().newInstance(writeConfig);
+        Assert.assertNull(facade.getObject(ObjectClass.ACCOUNT, new Uid("43"), null));
+        try {
+            facade.create(ObjectClass.ACCOUNT, Collections.singleton(new Name("43")), null);
+            Assert.fail();
+        } catch (AlreadyExistsException e) {
+            // expected, the skipped row keeps the identifier
+        }
+    }
+
+    @Test
+    public void sync() throws Exception {
+        File file = new File("target/test-classes/sync/example.xlsx");
+        copyExample(new XSSFWorkbook(), file);
+
+        APIConfiguration syncConfig = apiConfig();
+        syncConfig.getConfigurationProperties().setPropertyValue("directoryPathProperty","target/test-classes/sync" );
+        syncConfig.getConfigurationProperties().setPropertyValue("workDirectoryProperty","target/test-classes/work/sync" );
+        ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(syncConfig);
+        SyncToken token = facade.getLatestSyncToken(ObjectClass.ACCOUNT);
+
+        List<SyncDelta> deltas = new ArrayList<>();
+        facade.sync(ObjectClass.ACCOUNT, token, deltas::add, null);
+        Assert.assertTrue(deltas.isEmpty());
+
+        try (Workbook workbook = new XSSFWorkbook(new FileInputStream(file))) {
+            org.apache.poi.ss.usermodel.Sheet sheet = workbook.getSheetAt(0);
+            // 43 changes, 49 is deleted and 100 is created
+            sheet.getRow(1).getCell(2).setCellValue("Changed");
+            sheet.removeRow(sheet.getRow(2));
+            Row row = sheet.createRow(sheet.getLastRowNum() + 1);
+            row.createCell(0).setCellValue(100);
+            row.createCell(1).setCellValue("New");
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                workbook.write(out);
+            }
+        }
+
+        // a handler stopping after the first delta leaves the token where it was
+        facade.sync(ObjectClass.ACCOUNT, token, delta -> {
+            deltas.add(delta);
+            return false;
+        }, null);
+        Assert.assertEquals(1, deltas.size());
+        deltas.clear();
+
+        facade.sync(ObjectClass.ACCOUNT, token, deltas::add, null);
+        Map<String, SyncDeltaType> types = new HashMap<>();
+        deltas.forEach(delta -> types.put(delta.getUid().getUidValue(), delta.getDeltaType()));
+        Assert.assertEquals(3, deltas.size());
+        Assert.assertEquals(SyncDeltaType.UPDATE, types.get("43"));
+        Assert.assertEquals(SyncDeltaType.DELETE, types.get("49"));
+        Assert.assertEquals(SyncDeltaType.CREATE, types.get("100"));
+        Assert.assertEquals(facade.getLatestSyncToken(ObjectClass.ACCOUNT), deltas.get(0).getToken());
+    }
+
+    @Test
+    public void searchSheets() throws Exception {
+        File file = new File("target/test-classes/sheets/example.xlsx");
+        file.getParentFile().mkdirs();
+        try (Workbook workbook = new XSSFWorkbook(); FileOutputStream out = new FileOutputStream(file)) {
+            org.apache.poi.ss.usermodel.Sheet groups = workbook.createSheet("Groups");
+            String[][] groupRows = {{"name", "member"}, {"admins", "43"}, {"admins", "49"}, {"staff", "93"}};
+            for (int i = 0; i < groupRows.length; i++) {
+                Row row = groups.createRow(i);
+                row.createCell(0).setCellValue(groupRows[i][0]);
+                row.createCell(1).setCellValue(groupRows[i][1]);
+            }
+            org.apache.poi.ss.usermodel.Sheet accounts = workbook.createSheet("Accounts");
+            String[][] accountRows = {{"id", "groups"}, {"1", "admins;staff"}, {"2", "staff"}, {"3", ""}};
+            for (int i = 0; i < accountRows.length; i++) {
+                Row row = accounts.createRow(i);
+                row.createCell(0).setCellValue(accountRows[i][0]);
+                row.createCell(1).setCellValue(accountRows[i][1]);
+            }
+            workbook.write(out);
+        }
+        APIConfiguration sheetsConfig = apiConfig();
+        sheetsConfig.getConfigurationProperties().setPropertyValue("directoryPathProperty","target/test-classes/sheets" );
+        sheetsConfig.getConfigurationProperties().setPropertyValue("sheetProperty","Accounts" );
+        sheetsConfig.getConfigurationProperties().setPropertyValue("mergeProperty","" );
+        sheetsConfig.getConfigurationProperties().setPropertyValue("groupMembershipProperty","groups" );
+
+        results = new ArrayList<>();
+        ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(sheetsConfig);
+        facade.search( ObjectClass.ACCOUNT, null, handler, null);
+        Assert.assertEquals(3, results.size());
+        results = new ArrayList<>();
+        facade.search( ObjectClass.GROUP, null, handler, null);
+        Assert.assertEquals(2, results.size());
+        Assert.assertEquals(2, facade.schema().getObjectClassInfo().size());
+
+        sheetsConfig.getConfigurationProperties().setPropertyValue("objectClassSheetsProperty",
+            new String[]{"__GROUP__:Groups:name:member"} );
+        facade = ConnectorFacadeFactory.getInstance().newInstance(sheetsConfig);
+        results = new ArrayList<>();
+        facade.search( ObjectClass.GROUP, null, handler, null);
+        Assert.assertEquals(2, results.size());
+        ConnectorObject admins = facade.getObject(ObjectClass.GROUP, new Uid("admins"), null);
+        Assert.assertEquals(Arrays.asList("43", "49"), admins.getAttributeByName("member").getValue());
+        ObjectClassInfo group = facade.schema().findObjectClassInfo(ObjectClass.GROUP_NAME);
+        Assert.assertTrue(AttributeInfoUtil.find("member", group.getAttributeInfo()).isMultiValued());
+
+        // skip rules name account columns, the group sheet has none of them
+        sheetsConfig.getConfigurationProperties().setPropertyValue("skipRulesProperty", new String[]{"groups = staff"} );
+        facade = ConnectorFacadeFactory.getInstance().newInstance(sheetsConfig);
+        facade.test();
+        results = new ArrayList<>();
+        facade.search( ObjectClass.GROUP, null, handler, null);
+        Assert.assertEquals(2, results.size());
+        results = new ArrayList<>();
+        facade.search( ObjectClass.ACCOUNT, null, handler, null);
+        Assert.assertEquals(2, results.size());
+    }
+
+    @Test
+    public void searchXls() throws Exception {
+        results = new ArrayList<>();
+
+        copyExample(new HSSFWorkbook(), new File("target/test-classes/xls/example.xls"));
+
+        ConnectorFacadeFactory factory = ConnectorFacadeFactory.getInstance();
+        APIConfiguration xlsConfig = apiConfig();
+        xlsConfig.getConfigurationProperties().setPropertyValue("directoryPathProperty","target/test-classes/xls" );
+
+        factory.newInstance(xlsConfig).search( ObjectClass.ACCOUNT, null, handler, null);
+        Assert.assertEquals(10, results.size());
+    }
+
+    @Test
+    public void schemaSharedStrings() throws Exception {
+        // XSSFWorkbook stores text in the shared strings table, unlike the inline strings of example.xlsx
+        copyExample(new XSSFWorkbook(), new File("target/test-classes/sst/example.xlsx"));
+
+        ConnectorFacadeFactory factory = ConnectorFacadeFactory.getInstance();
+        APIConfiguration sstConfig = apiConfig();
+        sstConfig.getConfigurationProperties().setPropertyValue("directoryPathProperty","target/test-classes/sst" );
+
+        Schema schema = factory.newInstance(sstConfig).schema();
+        ObjectClassInfo account = schema.findObjectClassInfo(ObjectClass.ACCOUNT_NAME);
+        Assert.assertEquals(7, account.getAttributeInfo().size());
+        Assert.assertFalse(AttributeInfoUtil.find("email", account.getAttributeInfo()).isMultiValued());
+        Assert.assertTrue(AttributeInfoUtil.find("role", account.getAttributeInfo()).isMultiValued());
+    }
+
+    @Test
+    public void searchSparseHeading() throws Exception {
+        File file = new File("target/test-classes/sparse/example.xlsx");
+        file.getParentFile().mkdirs();
+        try (Workbook workbook = new XSSFWorkbook(); FileOutputStream out = new FileOutputStream(file)) {
+            org.apache.poi.ss.usermodel.Sheet sheet = workbook.createSheet();
+            // the second column has no name, the rows start narrower than the declared range
+            String[][] rows = {{"id", null, "email"}, {"1", "note", "one@example.com"}, {"2", null, "two@example.com", "x"}};
+            for (int i = 0; i < rows.length; i++) {
+                Row row = sheet.createRow(i);
+                for (int col = 0; col < rows[i].length; col++) {
+                    if (rows[i][col] != null) {
+                        row.createCell(col).setCellValue(rows[i][col]);
+                    }
+                }
+            }
+            workbook.write(out);
+        }
+        APIConfiguration sparseConfig = apiConfig();
+        sparseConfig.getConfigurationProperties().setPropertyValue("directoryPathProperty","target/test-classes/sparse" );
+        sparseConfig.getConfigurationProperties().setPropertyValue("mergeProperty","" );
+
+        ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(sparseConfig);
+        ConnectorObject one = facade.getObject(ObjectClass.ACCOUNT, new Uid("1"), null);
+        Assert.assertEquals("one@example.com", AttributeUtil.getStringValue(one.getAttributeByName("email")));
+        Assert.assertEquals(3, facade.schema().findObjectClassInfo(ObjectClass.ACCOUNT_NAME).getAttributeInfo().size());
+
+        sparseConfig.getConfigurationProperties().setPropertyValue("includesHeaderProperty",false );
+        sparseConfig.getConfigurationProperties().setPropertyValue("identifierProperty","col0" );
+        sparseConfig.getConfigurationProperties().setPropertyValue("ignoreProperty","col9" );
+        sparseConfig.getConfigurationProperties().setPropertyValue("mergeProperty","col1" );
+        facade = ConnectorFacadeFactory.getInstance().newInstance(sparseConfig);
+        ObjectClassInfo account = facade.schema().findObjectClassInfo(ObjectClass.ACCOUNT_NAME);
+        Assert.assertNotNull(AttributeInfoUtil.find("col3", account.getAttributeInfo()));
+        ConnectorObject two = facade.getObject(ObjectClass.ACCOUNT, new Uid("2"), null);
+        Assert.assertEquals("x", AttributeUtil.getStringValue(two.getAttributeByName("col3")));
+    }
+
+    @Test
+    public void searchDelimited() throws Exception {
+        File csv = new File("target/test-classes/csv/example.csv");
+        csv.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(csv)) {
+            writeExample(out, ',');
+        }
+        APIConfiguration csvConfig = apiConfig();
+        csvConfig.getConfigurationProperties().setPropertyValue("directoryPathProperty","target/test-classes/csv" );
+        results = new ArrayList<>();
+        ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(csvConfig);
+        facade.search( ObjectClass.ACCOUNT, null, handler, null);
+        Assert.assertEquals(10, results.size());
+        ConnectorObject quoted = facade.getObject(ObjectClass.ACCOUNT, new Uid("43"), null);
+        Assert.assertEquals("O\"Neil, Jr.\nII", AttributeUtil.getStringValue(quoted.getAttributeByName("last_name")));
+
+        File tsv = new File("target/test-classes/tsv/example.tsv.gz");
+        tsv.getParentFile().mkdirs();
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(tsv))) {
+            writeExample(out, '\t');
+        }
+        APIConfiguration tsvConfig = apiConfig();
+        tsvConfig.getConfigurationProperties().setPropertyValue("directoryPathProperty","target/test-classes/tsv" );
+        tsvConfig.getConfigurationProperties().setPropertyValue("ignoreProperty","active" );
+        tsvConfig.getConfigurationProperties().setPropertyValue("ignoreValueProperty","FALSE" );
+        results = new ArrayList<>();
+        facade = ConnectorFacadeFactory.getInstance().newInstance(tsvConfig);
+        facade.search( ObjectClass.ACCOUNT, null, handler, null);
+        Assert.assertEquals(5, results.size());
+        Assert.assertEquals(7, facade.schema().findObjectClassInfo(ObjectClass.ACCOUNT_NAME).getAttributeInfo().size());
+    }
+
+    /**
+     * Writes the rows of example.xlsx as delimited text, quoting the last name of the first account.
+     */
+    private static void writeExample(OutputStream out, char delimiter) throws Exception {
+        DataFormatter formatter = new DataFormatter();
+        try (Workbook source = WorkbookFactory.create(new File("target/test-classes/example.xlsx"), null, true)) {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            for (Row row : source.getSheetAt(0)) {
+                for (int col = 0; col < row.getLastCellNum(); col++) {
+                    String cell = formatter.formatCellValue(row.getCell(col));
+                    if (row.getRowNum() == 1 && col == 2) {
+                        cell = "\"O\"\"Neil, Jr.\nII\"";
+                    }
+                    writer.write(col > 0 ? delimiter + cell : cell);
+                }
+                writer.write("\r\n");
+            }
+            writer.flush();
+        }
+    }
+
+    @Test
+    public void searchAsync() {
+        APIConfiguration asyncConfig = apiConfig();
+        asyncConfig.getConfigurationProperties().setPropertyValue("asyncQueueDepthProperty",2 );
+        ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(asyncConfig);
+
+        List<String> uids = new ArrayList<>();
+        Thread caller = Thread.currentThread();
+        facade.search(ObjectClass.ACCOUNT, null, connectorObject -> {
+            Assert.assertSame(caller, Thread.currentThread());
+            uids.add(connectorObject.getUid().getUidValue());
+            return true;
+        }, null);
+        Assert.assertEquals(Arrays.asList("43", "49", "93", "90", "73", "70", "81", "5", "32", "38"), uids);
+
+        uids.clear();
+        facade.search(ObjectClass.ACCOUNT, null, connectorObject -> {
+            uids.add(connectorObject.getUid().getUidValue());
+            return uids.size() < 3;
+        }, null);
+        Assert.assertEquals(3, uids.size());
+
+        try {
+            facade.search(ObjectClass.ACCOUNT, null, connectorObject -> {
+                throw new IllegalStateException("handler failed");
+            }, null);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("handler failed", e.getMessage());
+        }
+
+        asyncConfig.getConfigurationProperties().setPropertyValue("uidSortedCheckProperty","fail" );
+        try {
+            ConnectorFacadeFactory.getInstance().newInstance(asyncConfig).search(ObjectClass.ACCOUNT, null, handler, null);
+            Assert.fail();
+        } catch (ConnectorException e) {
+            Assert.assertTrue(e.getMessage().contains("not sorted"));
+        }
+    }
+
+    /**
+     * Writes the rows of example.xlsx into the given workbook and saves it to file.
+     */
+    static void copyExample(Workbook target, File file) throws Exception {
+        file.getParentFile().mkdirs();
+        try (Workbook source = WorkbookFactory.create(new File("target/test-classes/example.xlsx"), null, true);
+             Workbook workbook = target;
+             FileOutputStream out = new FileOutputStream(file)) {
+            org.apache.poi.ss.usermodel.Sheet sheet = workbook.createSheet();
+            for (Row sourceRow : source.getSheetAt(0)) {
+                Row row = sheet.createRow(sourceRow.getRowNum());
+                for (Cell sourceCell : sourceRow) {
+                    Cell cell = row.createCell(sourceCell.getColumnIndex());
+                    switch (sourceCell.getCellType()) {
+                        case NUMERIC: cell.setCellValue(sourceCell.getNumericCellValue()); break;
+                        case BOOLEAN: cell.setCellValue(sourceCell.getBooleanCellValue()); break;
+                        default: cell.setCellValue(sourceCell.getStringCellValue());
+                    }
+                }
+            }
+            workbook.write(out);
+        }
+    }
+
+    /**
+     * Returns the named directory under target/test-classes/work, deleting whatever an earlier run
+     * left in it.
+     */
+    static File workDirectory(String name) throws IOException {
+        File directory = new File("target/test-classes/work", name);
+        if (directory.exists()) {
+            try (Stream<Path> paths = Files.walk(directory.toPath())) {
+                for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(path);
+                }
+            }
+        }
+        return directory;
+    }
+
     @Test(expected = ConnectorIOException.class)
     public void resourceFileNotFound() {
         ConnectorFacadeFactory factory = ConnectorFacadeFactory.getInstance();
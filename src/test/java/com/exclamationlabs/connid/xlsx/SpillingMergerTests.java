@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SpillingMergerTests {
+
+    @Test
+    public void mergeSpilledRuns() throws Exception {
+        List<String> merged = new ArrayList<>();
+        File directory = new File("target/test-classes/work/spill");
+
+        // a budget of one byte spills every row into its own run
+        try (SpillingMerger merger = new SpillingMerger(1, directory)) {
+            merger.add("b", 1, new String[]{"b", "first"});
+            merger.add("a", 2, new String[]{"a", null});
+            merger.add("b", 3, new String[]{"b", "second"});
+            merger.add("c", 4, new String[]{"c", "only"});
+            merger.add("a", 5, new String[]{"a", "last"});
+
+            merger.merge((rowNum, cells) -> merged.add(rowNum + ":" + cells[0] + ":" + cells[1]));
+        }
+
+        Assert.assertEquals(5, merged.size());
+        Assert.assertEquals("2:a:null", merged.get(0));
+        Assert.assertEquals("5:a:last", merged.get(1));
+        Assert.assertEquals("1:b:first", merged.get(2));
+        Assert.assertEquals("3:b:second", merged.get(3));
+        Assert.assertEquals("4:c:only", merged.get(4));
+        Assert.assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void mergeInMemory() throws Exception {
+        List<Integer> rows = new ArrayList<>();
+
+        try (SpillingMerger merger = new SpillingMerger(Long.MAX_VALUE, new File("target/test-classes/work/spill"))) {
+            merger.add("z", 1, new String[]{"z"});
+            merger.add("y", 2, new String[]{"y"});
+
+            merger.merge((rowNum, cells) -> rows.add(rowNum));
+        }
+
+        Assert.assertEquals(2, rows.get(0).intValue());
+        Assert.assertEquals(1, rows.get(1).intValue());
+    }
+
+    @Test
+    public void mergeInIdentifierOrder() throws Exception {
+        List<String> merged = new ArrayList<>();
+
+        // spilled and buffered rows are ordered alike, digits by value first, equal values as strings
+        try (SpillingMerger merger = new SpillingMerger(200, new File("target/test-classes/work/spill"))) {
+            for (String identifier : new String[]{"a", "10", "1a", "7", "2", "007", "9"}) {
+                merger.add(identifier, merged.size(), new String[]{identifier});
+            }
+            merger.merge((rowNum, cells) -> merged.add(cells[0]));
+        }
+        Assert.assertEquals(Arrays.asList("2", "007", "7", "9", "10", "1a", "a"), merged);
+
+        // the numeric order does not break transitivity with other identifiers
+        Assert.assertTrue(AccountRowHandler.compareIdentifiers("2", "10") < 0);
+        Assert.assertTrue(AccountRowHandler.compareIdentifiers("10", "1a") < 0);
+        Assert.assertTrue(AccountRowHandler.compareIdentifiers("2", "1a") < 0);
+        Assert.assertNotEquals(0, AccountRowHandler.compareIdentifiers("7", "007"));
+    }
+}
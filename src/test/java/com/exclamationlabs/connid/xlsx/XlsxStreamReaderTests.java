@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2019. Exclamation Labs https://www.exclamationlabs.com/
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.exclamationlabs.connid.xlsx;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class XlsxStreamReaderTests {
+
+    /**
+     * golden/cells.txt holds the cells of golden/cells.xlsx as XSSFSheetXMLHandler formatted
+     * them in the US locale: numbers in common formats, dates, text, booleans, errors and formulas.
+     */
+    @Test
+    public void decodeGolden() throws Exception {
+        String golden = new String(Files.readAllBytes(new File("target/test-classes/golden/cells.txt").toPath()),
+            StandardCharsets.UTF_8);
+        Locale locale = Locale.getDefault();
+        Locale.setDefault(Locale.US);
+        try {
+            for (int parallelism : new int[]{1, 4}) {
+                XlsxStreamReader reader = new XlsxStreamReader("target/test-classes/golden/cells.xlsx");
+                reader.setParallelism(parallelism);
+                StringBuilder decoded = new StringBuilder();
+                reader.readRows((rowNum, cells) -> {
+                    decoded.append(rowNum);
+                    for (String cell : cells) {
+                        decoded.append('\t').append(cell == null ? "<null>" : cell);
+                    }
+                    decoded.append('\n');
+                    return true;
+                });
+                reader.close();
+                Assert.assertEquals(golden, decoded.toString());
+            }
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    @Test
+    public void generalInteger() {
+        Assert.assertEquals("43", CellDecoder.generalInteger("43"));
+        Assert.assertEquals("43", CellDecoder.generalInteger("43.0"));
+        Assert.assertEquals("0", CellDecoder.generalInteger("-0.0"));
+        Assert.assertEquals("7", CellDecoder.generalInteger("007"));
+        Assert.assertEquals("-5", CellDecoder.generalInteger("-5"));
+        Assert.assertNull(CellDecoder.generalInteger("2.5"));
+        Assert.assertNull(CellDecoder.generalInteger("1E3"));
+        Assert.assertNull(CellDecoder.generalInteger("99999999999"));
+    }
+}